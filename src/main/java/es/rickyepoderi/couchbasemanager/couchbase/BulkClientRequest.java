@@ -37,6 +37,8 @@ package es.rickyepoderi.couchbasemanager.couchbase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>The bulk request is a representation for doing several requests to
@@ -64,130 +66,370 @@ import java.util.List;
  * before the unlock. For that reason the last operation can be launched
  * at the same time of the previous or once they are finished.</p>
  * 
+ * <p>The previous operations are waited in parallel using a 
+ * CompletionBarrier, which opens when all of them are finished or as soon
+ * as one of them fails. In LISTENER completion mode no thread waits for the
+ * operations: the last operation is launched async the moment the barrier
+ * opens and its completion finishes the bulk. In THREAD mode a thread of
+ * the completion executor waits for the barrier and then launches and waits
+ * the last operation.</p>
+ * 
  * @author ricky
  */
 public class BulkClientRequest {
     
     /**
-     * Inner thread to launch async operations.
-     */
-    private Thread thread = null;
-    
-    /**
-     * The executor (used to read the last response from the thread).
-     */
-    private Executor executor = null;
-    
-    /**
-     * The list of requests launched before the last one.
-     */
-    private List<ClientRequest> ops = null;
-    
-    /**
-     * The last client request when launched at the same time.
-     */
-    private ClientRequest last = null;
-    
-    /**
-     * The type of the last operation when launched after the previous ops.
+     * The last operation of the bulk when it is launched after the 
+     * previous ops are finished.
      */
-    private OperationType type = null;
-    
-    /**
-     * The id of the last operation when launched after the previous ops.
-     */
-    private String id = null;
+    protected static class Operation {
+        
+        /**
+         * The type of the last operation.
+         */
+        private OperationType type = null;
+        
+        /**
+         * The id of the last operation.
+         */
+        private String id = null;
+        
+        /**
+         * The data of the last operation.
+         */
+        private Object data = null;
+        
+        /**
+         * The cas of the last operation (null if not used).
+         */
+        private Long cas = null;
+        
+        /**
+         * The time of the last operation (null if not used).
+         */
+        private Integer time = null;
+        
+        /**
+         * The operation to launch when this one finishes successfully 
+         * (null if this is the last one).
+         */
+        private Operation next = null;
+        
+        /**
+         * Constructor with all the properties.
+         * @param type The type of the operation
+         * @param id The id of the object
+         * @param data The data (it can be null)
+         * @param cas The cas (it can be null)
+         * @param time The expiration time (it can be null)
+         */
+        public Operation(OperationType type, String id, Object data, Long cas, Integer time) {
+            this.type = type;
+            this.id = id;
+            this.data = data;
+            this.cas = cas;
+            this.time = time;
+        }
+        
+        /**
+         * Getter for the type.
+         * @return The type of the operation
+         */
+        public OperationType getType() {
+            return type;
+        }
+        
+        /**
+         * Getter for the next operation in the chain.
+         * @return The next operation or null
+         */
+        public Operation getNext() {
+            return next;
+        }
+        
+        /**
+         * Setter for the next operation in the chain.
+         * @param next The operation to launch after this one
+         */
+        public void setNext(Operation next) {
+            this.next = next;
+        }
+        
+        /**
+         * Launches the operation with the client.
+         * @param client The client used to launch the op
+         * @return The request launched
+         */
+        public ClientRequest launch(Client client) {
+            switch (type) {
+                case ADD:
+                    return client.launchAdd(id, data, time);
+                case SET:
+                    return client.launchSet(id, data, time);
+                case CAS:
+                    return client.launchCas(id, data, cas, time);
+                case DELETE:
+                    if (cas != null) {
+                        return client.launchDelete(id, cas);
+                    } else {
+                        return client.launchDelete(id);
+                    }
+                case UNLOCK:
+                    return client.launchUnlock(id, cas);
+                case TOUCH:
+                    return client.launchTouch(id, time);
+                default:
+                    throw new IllegalStateException(String.format("Illegal last operation: %s!", type));
+            }
+        }
+    }
     
     /**
-     * The data of the last operation when launched after the previous ops.
+     * The executor runnable to wait the operations to finish (THREAD mode).
      */
-    private byte[] data = null;
+    private class Executor implements Runnable {
+
+        /**
+         * The client used to launch ops.
+         */
+        private Client client = null;
+        
+        /**
+         * Constructor.
+         * @param client The client used to launch ops
+         */
+        public Executor(Client client) {
+            this.client = client;
+        }
+        
+        /**
+         * Method that waits for the barrier of the previous operations, then
+         * (if the last is already launched) it waits for the last one. If the 
+         * last one is marked to be launched after waiting the previous ones, 
+         * it is launched and then waited. If during the process some operation
+         * return error, the process stops and this response is set.
+         */
+        @Override
+        public void run() {
+            ClientResult res;
+            try {
+                res = waitForBarrier(client, barrier);
+                if (res == null || res.isSuccess()) {
+                    if (isLastExecuted()) {
+                        // already launched => just wait too
+                        res = waitForLastCompletion(client);
+                    } else {
+                        // launch last
+                        res = launchAndWaitLastOperation(client);
+                    }
+                }
+            } catch (RuntimeException e) {
+                res = ClientResult.createClientResultError(getType(), e);
+            }
+            finish(res);
+        }
+    }
     
     /**
-     * The cas of the last operation when launched after the previous ops.
+     * Code executed when the barrier is opened in LISTENER mode. It runs
+     * in the thread that completes the last operation so it does not block.
      */
-    private Long cas = null;
+    private class OpsCompleted implements Runnable {
+        
+        /**
+         * The client used to launch ops.
+         */
+        private Client client = null;
+        
+        /**
+         * Constructor.
+         * @param client The client used to launch ops
+         */
+        public OpsCompleted(Client client) {
+            this.client = client;
+        }
+        
+        /**
+         * If some operation failed the bulk is finished, if not the ops
+         * are registered in the durability poller and the last operation 
+         * is launched when all of them are durable (right now if no 
+         * durability is configured).
+         */
+        @Override
+        public void run() {
+            ClientResult res = barrier.getResult();
+            if (res != null && !res.isSuccess()) {
+                client.getExecutor().execute(new Finisher(res));
+            } else {
+                client.getPoller().watch(barrier.getRequests(), barrier.getResults(), 
+                        res, new LastLauncher(client));
+            }
+        }
+    }
     
     /**
-     * The time of the last operation when launched after the previous ops.
+     * Code executed when the previous ops are finished and durable in 
+     * LISTENER mode. It launches the last operation and its completion 
+     * finishes the bulk.
      */
-    private Integer time = null;
+    private class LastLauncher implements ExecOnCompletion {
+        
+        /**
+         * The client used to launch ops.
+         */
+        private Client client = null;
+        
+        /**
+         * Constructor.
+         * @param client The client used to launch ops
+         */
+        public LastLauncher(Client client) {
+            this.client = client;
+        }
+        
+        /**
+         * Launch the last operation or finish if the durability failed.
+         * @param res The result of the previous ops
+         */
+        @Override
+        public void execute(ClientResult res) {
+            if (res != null && !res.isSuccess()) {
+                finish(res);
+            } else {
+                if (!isLastExecuted()) {
+                    last = operation.launch(client);
+                    last.execOnCompletion(client, new NextLauncher(client, operation, null));
+                } else {
+                    last.execOnCompletion(client, new Finisher(null));
+                }
+            }
+        }
+    }
     
     /**
-     * The executor runnable to wait the operation to finish.
+     * Code executed when an operation of the last chain is completed in 
+     * LISTENER mode. It launches the next operation of the chain or 
+     * finishes the bulk if there is no more ops or the result is an error.
      */
-    private class Executor implements Runnable {
-
+    private class NextLauncher implements ExecOnCompletion {
+        
         /**
          * The client used to launch ops.
          */
         private Client client = null;
         
         /**
-         * The bulk used.
+         * The operation launched whose result is received.
+         */
+        private Operation launched = null;
+        
+        /**
+         * The result of the operation before the launched one (null if first).
          */
-        private BulkClientRequest bulk = null;
+        private ClientResult previous = null;
         
         /**
-         * The exec to execute at the end.
+         * Constructor.
+         * @param client The client used to launch ops
+         * @param launched The operation launched in the chain
+         * @param previous The result of the previous operation in the chain
          */
-        private ExecOnCompletion exec = null;
+        public NextLauncher(Client client, Operation launched, ClientResult previous) {
+            this.client = client;
+            this.launched = launched;
+            this.previous = previous;
+        }
         
         /**
-         * The result to return.
+         * Launch the next operation or finish the bulk.
+         * @param res The result of the launched operation in the chain
+         */
+        @Override
+        public void execute(ClientResult res) {
+            res = chainResult(launched, previous, res);
+            Operation next = launched.getNext();
+            if (next == null || res == null || !res.isSuccess()) {
+                finish(res);
+            } else {
+                last = next.launch(client);
+                last.execOnCompletion(client, new NextLauncher(client, next, res));
+            }
+        }
+    }
+    
+    /**
+     * Code that finishes the bulk with a result. It is used as the exec
+     * of the last operation or as a task with an error result.
+     */
+    private class Finisher implements ExecOnCompletion, Runnable {
+        
+        /**
+         * The result to finish with when run as a task.
          */
         private ClientResult res = null;
         
         /**
-         * Constructor using the operations.
-         * @param client The client to use
-         * @param bulk The bulk to use
-         * @param exec The exec op
+         * Constructor via result.
+         * @param res The result (null if used as an exec)
          */
-        public Executor(Client client, BulkClientRequest bulk, ExecOnCompletion exec) {
-            this.client = client;
-            this.bulk = bulk;
-            this.exec = exec;
-            this.res = null;
+        public Finisher(ClientResult res) {
+            this.res = res;
         }
         
         /**
-         * Getter for the result.
-         * @return The result
+         * Finish with the result of the last operation.
+         * @param result The result of the last operation
          */
-        public ClientResult getClientResult() {
-            return res;
+        @Override
+        public void execute(ClientResult result) {
+            finish(result);
         }
         
         /**
-         * Method that wait for the previous operations, then (if the last
-         * is already launched) it waits for the last one. If the last one
-         * is marked to be launched after waiting the previous ones, it is
-         * launched and then waited. If during the process some operation
-         * return error, the process stops and this response is set.
+         * Finish with the result passed in the constructor.
          */
         @Override
         public void run() {
-            // first wait for all the ops
-            res = bulk.waitForOpsCompletion(client);
-            // now we have to finish the last operation
-            // which can be already launched or the operation should
-            // wait for the previous ops to terminate (CAS mainly)
-            if (res == null || res.isSuccess()) {
-                if (bulk.isLastExecuted()) {
-                    // already launched => just wait too
-                    res = bulk.waitForLastCompletion(client);
-                } else {
-                    // launch last
-                    res = bulk.launchAndWaitLastOperation(client);
-                }
-            }
-            if (exec != null) {
-                exec.execute(res);
-            }
+            finish(res);
         }
     }
     
+    /**
+     * Latch that is released when the async execution finishes.
+     */
+    private CountDownLatch done = null;
+    
+    /**
+     * The result of the async execution.
+     */
+    private volatile ClientResult result = null;
+    
+    /**
+     * The code to execute when the async execution finishes.
+     */
+    private ExecOnCompletion exec = null;
+    
+    /**
+     * The barrier over the previous ops when executed async.
+     */
+    private CompletionBarrier barrier = null;
+    
+    /**
+     * The list of requests launched before the last one.
+     */
+    private List<ClientRequest> ops = null;
+    
+    /**
+     * The last client request when launched (at the same time or once
+     * the previous ops are finished).
+     */
+    private ClientRequest last = null;
+    
+    /**
+     * The last operation when launched after the previous ops.
+     */
+    private Operation operation = null;
+    
     /**
      * Empty constructor.
      */
@@ -198,14 +440,28 @@ public class BulkClientRequest {
     
     /**
      * Method that return if the last operation is executed with the others
-     * (last is used) or after the others (type and the rest of props are used).
+     * (last is used) or after the others (operation is used).
      * @return true if the last operation was executed at the same time, false
      *         otherwise.
      */
     protected boolean isLastExecuted() {
         // the last operation was executed not waiting for the
-        // ops previously if type is null;
-        return this.type == null;
+        // ops previously if operation is null;
+        return this.operation == null;
+    }
+    
+    /**
+     * Return the type of the last operation.
+     * @return The type of the last operation or null
+     */
+    protected OperationType getType() {
+        if (this.operation != null) {
+            return this.operation.getType();
+        } else if (this.last != null) {
+            return this.last.getType();
+        } else {
+            return null;
+        }
     }
     
     /**
@@ -213,24 +469,47 @@ public class BulkClientRequest {
      * @param op The op to add to the list of launched ops.
      */
     protected void addOperation(ClientRequest op) {
-        if (this.last != null || this.type != null) {
+        if (this.last != null || this.operation != null) {
             throw new IllegalStateException("A new operation cannot be added after finish!");
         }
         this.ops.add(op);
     }
     
+    /**
+     * Return the number of operations added before the last one.
+     * @return The number of operations
+     */
+    public int getOperationCount() {
+        return this.ops.size();
+    }
+    
     /**
      * Finish the bulk operation with another operation. This operation is also
      * launched at the same time.
      * @param last The last operation launched
      */
     protected void finish(ClientRequest last) {
-        if (this.last != null || this.type != null) {
+        if (this.last != null || this.operation != null) {
             throw new IllegalStateException("Already finished!");
         }
         this.last = last;
     }
     
+    /**
+     * Finish the bulk with an operation that will be launched when the
+     * previous finish.
+     * @param client The client used to launch the op
+     * @param operation The last operation
+     * @param exec The exec to execute at finish
+     */
+    protected void finish(Client client, Operation operation, ExecOnCompletion exec) {
+        if (this.last != null || this.operation != null) {
+            throw new IllegalStateException("Already finished!");
+        }
+        this.operation = operation;
+        execOnCompletion(client, exec);
+    }
+    
     /**
      * The last operation is an ADD but it will be launched when the previous 
      * finish.
@@ -242,14 +521,7 @@ public class BulkClientRequest {
      */
     protected void finishAdd(Client client, String id, byte[] data, int time, 
             ExecOnCompletion exec) {
-        if (this.last != null || this.type != null) {
-            throw new IllegalStateException("Already finished!");
-        }
-        this.type = OperationType.ADD;
-        this.id = id;
-        this.data = data;
-        this.time = time;
-        execOnCompletion(client, exec);
+        finish(client, new Operation(OperationType.ADD, id, data, null, time), exec);
     }
     
     /**
@@ -257,22 +529,14 @@ public class BulkClientRequest {
      * finish.
      * @param client The client used to launch the op
      * @param id The id to add
-     * @param data The data to add
+     * @param data The data to add (serialized or already encoded)
      * @param cas The cas for the operation
      * @param time The expiration time
      * @param exec The exec to execute at finish
      */
-    protected void finishCas(Client client, String id, byte[] data, long cas, 
+    protected void finishCas(Client client, String id, Object data, long cas, 
             int time, ExecOnCompletion exec) {
-        if (this.last != null || this.type != null) {
-            throw new IllegalStateException("Already finished!");
-        }
-        this.type = OperationType.CAS;
-        this.id = id;
-        this.data = data;
-        this.cas = cas;
-        this.time = time;
-        execOnCompletion(client, exec);
+        finish(client, new Operation(OperationType.CAS, id, data, cas, time), exec);
     }
     
     /**
@@ -286,14 +550,7 @@ public class BulkClientRequest {
      */
     protected void finishSet(Client client, String id, byte[] data, int time, 
             ExecOnCompletion exec) {
-        if (this.last != null || this.type != null) {
-            throw new IllegalStateException("Already finished!");
-        }
-        this.type = OperationType.SET;
-        this.id = id;
-        this.data = data;
-        this.time = time;
-        execOnCompletion(client, exec);
+        finish(client, new Operation(OperationType.SET, id, data, null, time), exec);
     }
     
     /**
@@ -305,13 +562,7 @@ public class BulkClientRequest {
      * @param exec The exec to execute at finish
      */
     protected void finishDelete(Client client, String id, long cas, ExecOnCompletion exec) {
-        if (this.last != null || this.type != null) {
-            throw new IllegalStateException("Already finished!");
-        }
-        this.type = OperationType.DELETE;
-        this.id = id;
-        this.cas = cas;
-        execOnCompletion(client, exec);
+        finish(client, new Operation(OperationType.DELETE, id, null, cas, null), exec);
     }
     
     /**
@@ -322,46 +573,63 @@ public class BulkClientRequest {
      * @param exec The exec to execute at finish
      */
     protected void finishDelete(Client client, String id, ExecOnCompletion exec) {
-        if (this.last != null || this.type != null) {
-            throw new IllegalStateException("Already finished!");
+        finish(client, new Operation(OperationType.DELETE, id, null, null, null), exec);
+    }
+    
+    /**
+     * Returns the result of an operation in the last chain. The TOUCH after
+     * an UNLOCK can find the object locked (or changed) by another server
+     * that took it just after the unlock. The session was already released
+     * by the unlock and the other server refreshes the expiration, so the
+     * result of the unlock is maintained instead of the error.
+     * @param op The operation that returned the result
+     * @param previous The result of the previous operation (null if first)
+     * @param res The result of the operation
+     * @return The result to use for the chain
+     */
+    protected static ClientResult chainResult(Operation op, ClientResult previous, ClientResult res) {
+        if (OperationType.TOUCH.equals(op.getType()) && previous != null && previous.isSuccess()
+                && res != null && (res.isLockError() || res.isExists())) {
+            return previous;
         }
-        this.type = OperationType.DELETE;
-        this.id = id;
-        execOnCompletion(client, exec);
+        return res;
+    }
+    
+    /**
+     * The last operations are an UNLOCK followed by a TOUCH, both launched
+     * when the previous finish. Couchbase has no touchAndUnlock and a 
+     * locked object cannot be touched, so the touch is launched once the
+     * unlock finishes successfully (see chainResult).
+     * @param client The client used to launch the op
+     * @param id The id to unlock and touch
+     * @param cas The cas of the lock
+     * @param time The expiration time
+     * @param exec The exec to execute at finish
+     */
+    protected void finishUnlockTouch(Client client, String id, long cas, int time,
+            ExecOnCompletion exec) {
+        Operation unlock = new Operation(OperationType.UNLOCK, id, null, cas, null);
+        unlock.setNext(new Operation(OperationType.TOUCH, id, null, null, time));
+        finish(client, unlock, exec);
     }
     
     /**
      * Intermediate method that launches the last operation when it was
-     * specified as later op. The op is launched synchronously so the 
-     * response is waited and returned.
+     * specified as later op. The op is launched and the response is waited 
+     * and returned. If the operation is a chain the next ones are launched
+     * while the result is a success.
      * @param client The client to launch the operation
      * @return The response for the last operation
      */
     protected ClientResult launchAndWaitLastOperation(Client client) {
-        ClientResult res;
         // launch the operation once the previous ops are finished
-        switch (this.type) {
-            case ADD:
-                res = client.addSync(this.id, this.data, this.time);
-                break;
-            case SET:
-                res = client.setSync(this.id, this.data, this.time);
-                break;
-            case CAS:
-                res = client.casSync(this.id, this.data, this.cas, this.time);
-                break;
-            case DELETE:
-                if (this.cas != null) {
-                    res = client.deleteSync(this.id, this.cas);
-                } else {
-                    res = client.deleteSync(this.id);
-                }
-                break;
-            default:
-                res = ClientResult.createClientResultError(type, 
-                        new IllegalAccessException(String.format("Illegal last operation: %s!", type.toString())));
-                break;
-        }
+        Operation op = this.operation;
+        ClientResult res = null;
+        do {
+            this.last = op.launch(client);
+            res = chainResult(op, res, client.waitForCompletion(this.last));
+            op = op.getNext();
+        } while (op != null && res.isSuccess());
         return res;
     }
     
@@ -375,75 +643,109 @@ public class BulkClientRequest {
     }
     
     /**
-     * Method that iterate over all the previous ops and waits them to complete.
+     * Method that waits all the previous ops to complete. The ops are
+     * waited in parallel and the first error stops the wait.
      * @param client The client used for waiting
      * @return null in case no previous operation exists, the first error
      *         response or the last success.
      */
     protected ClientResult waitForOpsCompletion(Client client) {
-        ClientResult res = null;
-        // wait all the operations to finish
-        for (ClientRequest req : this.ops) {
-            res = client.waitForCompletion(req);
-            if (!res.isSuccess()) {
-                break;
-            }
+        CompletionBarrier b = new CompletionBarrier(this.ops, client.getTimeout());
+        b.start(null);
+        return waitForBarrier(client, b);
+    }
+    
+    /**
+     * Waits the barrier to open and then waits for the durability of the
+     * operations if the client is configured with PersistTo or ReplicateTo.
+     * @param client The client used for waiting
+     * @param b The barrier to wait
+     * @return null in case no previous operation exists, the first error
+     *         response or the last success.
+     */
+    protected ClientResult waitForBarrier(Client client, CompletionBarrier b) {
+        if (!b.await(client.getTimeout())) {
+            return ClientResult.createClientResultError(getType(), 
+                    new Exception("Operations are still executing!"));
+        }
+        ClientResult res = b.getResult();
+        if (res != null && res.isSuccess()) {
+            res = client.getPoller().waitFor(b.getRequests(), b.getResults(), res);
         }
         return res;
     }
     
     /**
      * Method that waits for completion no matter if the last operation
-     * was executed at the same time or after the previous one. If a thread
-     * was used this method joins to the thread, if no thread was used just normal
-     * waitForCompletion is used. Remember that if any op returns an error 
-     * the precess stops and that error is returned.
+     * was executed at the same time or after the previous one. If the
+     * bulk was executed async this method waits it to finish, if not just 
+     * normal waitForCompletion is used. Remember that if any op returns an 
+     * error the precess stops and that error is returned.
      * @param client The client to use
      * @return if any previous operation is an error that error response, if 
      *         not the last operation result.
      */
     protected ClientResult waitForCompletion(Client client) {
-        if (this.last == null && this.type == null) {
+        if (this.last == null && this.operation == null) {
             throw new IllegalStateException("Cannot wait an unfinished operation!");
         }
         ClientResult res;
-        // the bulk can be executed at once (addOperation and finish)
-        if (this.isLastExecuted()) {
-            // the bulk was all launched with no thread
+        if (this.done == null) {
+            // the bulk was all launched and not executed async
             res = this.waitForOpsCompletion(client);
             if (res == null || res.isSuccess()) {
                 res = this.waitForLastCompletion(client);
             }
         } else {
-            // the last operation was delayed to the end of ops
-            // join the thread at wait it to finish
+            // wait the async execution to finish
+            boolean finished = false;
             try {
-                thread.join(client.getTimeout());
+                finished = done.await(client.getTimeout(), TimeUnit.MILLISECONDS);
             } catch(InterruptedException e) {}
-            if (thread.isAlive()) {
-                res = ClientResult.createClientResultError(type, 
-                        new Exception("Thread is still alive!"));
+            if (!finished) {
+                res = ClientResult.createClientResultError(getType(), 
+                        new Exception("Operation is still executing!"));
             } else {
-                res = executor.getClientResult();
+                res = this.result;
             }
         }
         return res;
     }
     
     /**
-     * Method that launches the executor thread in case the operation should
-     * be executed asynchronously.
+     * Finish the async execution of the bulk with the result.
+     * @param res The final result of the bulk
+     */
+    private void finish(ClientResult res) {
+        this.result = res;
+        this.done.countDown();
+        if (this.exec != null) {
+            this.exec.execute(res);
+        }
+    }
+    
+    /**
+     * Method that launches the async execution of the bulk. A barrier is
+     * created over the previous ops. In LISTENER mode the last operation is
+     * launched when the barrier opens, in THREAD mode the executor task
+     * waits the barrier in the completion executor of the client.
      * @param client The client to execute
      * @param exec The exec to launch after bulk finishes
      */
-    protected void execOnCompletion(Client client, ExecOnCompletion exec) {
-        if (this.last == null && this.type == null) {
+    protected synchronized void execOnCompletion(Client client, ExecOnCompletion exec) {
+        if (this.last == null && this.operation == null) {
             throw new IllegalStateException("Cannot exec an unfinished operation!");
         }
-        if (thread == null) {
-            executor = new Executor(client, this, exec);
-            thread = new Thread(executor);
-            thread.start();
+        if (this.done == null) {
+            this.exec = exec;
+            this.done = new CountDownLatch(1);
+            this.barrier = new CompletionBarrier(this.ops, client.getTimeout());
+            if (CompletionMode.LISTENER.equals(client.getCompletionMode())) {
+                this.barrier.start(new OpsCompleted(client));
+            } else {
+                this.barrier.start(null);
+                client.getExecutor().execute(new Executor(client));
+            }
         }
     }
 }
@@ -0,0 +1,198 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.spy.memcached.internal.BulkFuture;
+
+/**
+ *
+ * <p>Request that wraps a multi-get (bulk get) of several keys. The request
+ * is launched asynchronously and the results are only waited the first
+ * time any of the keys is requested. The values are stored in the 
+ * request, so the same request can be asked for all the keys without 
+ * any more round trips.</p>
+ * 
+ * <p>If the multi-get fails (timeout or any other error) the request
+ * is marked as failed and it returns null for every key, the caller
+ * should fall back to the single get in that case.</p>
+ * 
+ * @author ricky
+ */
+public class BulkGetRequest {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(BulkGetRequest.class.getName());
+    
+    /**
+     * The future of the multi-get.
+     */
+    private BulkFuture<Map<String,Object>> future = null;
+    
+    /**
+     * The keys requested.
+     */
+    private Set<String> keys = null;
+    
+    /**
+     * The values received (null until the request is waited).
+     */
+    private Map<String,byte[]> values = null;
+    
+    /**
+     * If the request failed.
+     */
+    private boolean failed = false;
+    
+    /**
+     * The keys whose value was already returned.
+     */
+    private Set<String> consumed = null;
+    
+    /**
+     * Constructor using the future and the keys.
+     * @param future The future of the multi-get
+     * @param keys The keys requested
+     */
+    protected BulkGetRequest(BulkFuture<Map<String,Object>> future, Collection<String> keys) {
+        this.future = future;
+        this.keys = new HashSet<String>(keys);
+        this.consumed = new HashSet<String>();
+    }
+    
+    /**
+     * Returns if the key was requested in this multi-get.
+     * @param key The key
+     * @return true if the key was requested
+     */
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+    
+    /**
+     * Return the keys requested in this multi-get.
+     * @return The keys
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(keys);
+    }
+    
+    /**
+     * Returns if the multi-get is already finished.
+     * @return true if finished
+     */
+    public boolean isDone() {
+        return future.isDone();
+    }
+    
+    /**
+     * Returns if the multi-get failed. The request should be waited before.
+     * @return true if it failed
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * Waits the multi-get to complete (only the first time) and returns
+     * all the values received. The keys not found are not present in the
+     * map. If the operation failed null is returned.
+     * @param timeout The timeout to wait
+     * @return The values or null if the multi-get failed
+     */
+    public synchronized Map<String,byte[]> waitForCompletion(long timeout) {
+        if (values == null && !failed) {
+            try {
+                Map<String,Object> received = future.get(timeout, TimeUnit.MILLISECONDS);
+                values = new HashMap<String,byte[]>(received.size());
+                for (Map.Entry<String,Object> e: received.entrySet()) {
+                    if (e.getValue() instanceof byte[]) {
+                        values.put(e.getKey(), (byte[]) e.getValue());
+                    }
+                }
+            } catch (Exception e) {
+                log.log(Level.FINE, "Error waiting the multi-get", e);
+                future.cancel(false);
+                failed = true;
+            }
+        }
+        return values;
+    }
+    
+    /**
+     * Return the value of one key. The multi-get is waited if it is not
+     * finished yet. The key is marked as consumed.
+     * @param key The key to return
+     * @param timeout The timeout to wait
+     * @return The value received, null if not found or failed (check isFailed)
+     */
+    public synchronized byte[] getValue(String key, long timeout) {
+        Map<String,byte[]> received = waitForCompletion(timeout);
+        if (received == null) {
+            return null;
+        } else {
+            consumed.add(key);
+            return received.get(key);
+        }
+    }
+    
+    /**
+     * Return the number of keys requested whose value was never returned.
+     * @return The number of keys not consumed
+     */
+    public synchronized int getNotConsumed() {
+        return keys.size() - consumed.size();
+    }
+    
+    /**
+     * Cancels the multi-get if not finished.
+     */
+    public void cancel() {
+        if (!future.isDone()) {
+            future.cancel(false);
+        }
+    }
+}
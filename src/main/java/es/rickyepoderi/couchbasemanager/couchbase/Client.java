@@ -36,11 +36,18 @@
 package es.rickyepoderi.couchbasemanager.couchbase;
 
 import com.couchbase.client.CouchbaseClient;
+import es.rickyepoderi.couchbasemanager.couchbase.transcoders.RawTranscoder;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ObserveResponse;
 import net.spy.memcached.PersistTo;
 import net.spy.memcached.ReplicateTo;
 
@@ -65,6 +72,12 @@ public class Client {
      */
     private CouchbaseClient client = null;
     
+    /**
+     * The pass-through transcoder used for all the keys (sessions and
+     * external attributes are already serialized).
+     */
+    private RawTranscoder transcoder = new RawTranscoder();
+    
     /**
      * The number of nodes to persist an operation.
      */
@@ -80,6 +93,21 @@ public class Client {
      */
     private long timeout = 30000L;
     
+    /**
+     * Shared and bounded executor that waits for async operations.
+     */
+    private CompletionExecutor executor = null;
+    
+    /**
+     * The way async operations are waited.
+     */
+    private CompletionMode completionMode = CompletionMode.THREAD;
+    
+    /**
+     * The poller that checks the durability of the write operations.
+     */
+    private DurabilityPoller poller = null;
+    
     /**
      * Constructor of the client. It uses the typical couchbase client 
      * arguments. persistTo=ZERO. replicateTo=ZERO. timeout=30000.
@@ -91,7 +119,7 @@ public class Client {
      */
     public Client(List<URI> baseURIs, String bucket, String username, 
             String password) throws IOException {
-        client = new CouchbaseClient(baseURIs, bucket, username, password);
+        this(baseURIs, bucket, username, password, PersistTo.ZERO, ReplicateTo.ZERO);
     }
     
     /**
@@ -107,9 +135,7 @@ public class Client {
      */
     public Client(List<URI> baseURIs, String bucket, String username, 
             String password, PersistTo persistTo, ReplicateTo replicateTo) throws IOException {
-        this(baseURIs, bucket, username, password);
-        this.persistTo = persistTo;
-        this.replicateTo = replicateTo;
+        this(baseURIs, bucket, username, password, persistTo, replicateTo, 30000L);
     }
     
     /**
@@ -125,8 +151,34 @@ public class Client {
      */
     public Client(List<URI> baseURIs, String bucket, String username, 
             String password, PersistTo persistTo, ReplicateTo replicateTo, long timeout) throws IOException {
-        this(baseURIs, bucket, username, password, persistTo, replicateTo);
+        this(baseURIs, bucket, username, password, persistTo, replicateTo, timeout,
+                CompletionExecutor.DEFAULT_POOL_SIZE, CompletionExecutor.DEFAULT_QUEUE_SIZE);
+    }
+    
+    /**
+     * Constructor of the client with all the properties and the sizing of
+     * the completion executor.
+     * @param baseURIs The URIs where couchbase servers are
+     * @param bucket The bucket for the sessions
+     * @param username The username
+     * @param password The password
+     * @param persistTo  The number of nodes to persist
+     * @param replicateTo The number of nodes to replicate
+     * @param timeout The timeout for all operations
+     * @param completionPoolSize Max number of threads waiting async operations
+     * @param completionQueueSize Max number of async operations queued
+     * @throws IOException Some error creating the client
+     */
+    public Client(List<URI> baseURIs, String bucket, String username, 
+            String password, PersistTo persistTo, ReplicateTo replicateTo, long timeout,
+            int completionPoolSize, int completionQueueSize) throws IOException {
+        // the executor first (it validates the sizes and threads are lazily created)
+        this.executor = new CompletionExecutor(completionPoolSize, completionQueueSize);
+        this.client = new CouchbaseClient(baseURIs, bucket, username, password);
+        this.persistTo = persistTo;
+        this.replicateTo = replicateTo;
         this.timeout = timeout;
+        this.poller = new DurabilityPoller(this);
     }
 
     /**
@@ -177,11 +229,75 @@ public class Client {
         this.timeout = timeout;
     }
     
+    /**
+     * Getter for the completion executor.
+     * @return The executor used to wait async operations
+     */
+    public CompletionExecutor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Encodes a document with the transcoder of the client (compression
+     * included).
+     * @param data The serialized object
+     * @return The encoded document
+     */
+    public CachedData encode(byte[] data) {
+        return transcoder.encode(data);
+    }
+    
+    /**
+     * Getter for the transcoder used for all the keys.
+     * @return The pass-through transcoder
+     */
+    public RawTranscoder getTranscoder() {
+        return transcoder;
+    }
+    
+    /**
+     * Getter for the completion mode.
+     * @return The way async operations are waited
+     */
+    public CompletionMode getCompletionMode() {
+        return completionMode;
+    }
+
+    /**
+     * Setter for the completion mode.
+     * @param completionMode The new completion mode
+     */
+    public void setCompletionMode(CompletionMode completionMode) {
+        this.completionMode = completionMode;
+    }
+    
+    /**
+     * Getter for the durability poller.
+     * @return The poller that checks PersistTo and ReplicateTo
+     */
+    public DurabilityPoller getPoller() {
+        return poller;
+    }
+    
+    /**
+     * Return the histogram of the durability lag (time since the operation
+     * is finished until PersistTo and ReplicateTo are reached) for an 
+     * operation type.
+     * @param type The operation type
+     * @return The histogram
+     */
+    public LatencyHistogram getDurabilityHistogram(OperationType type) {
+        return poller.getHistogram(type);
+    }
+    
     /**
      * Shutdowns the client.
      */
     public void shutdown() {
         client.shutdown();
+        transcoder.shutdown();
+        poller.shutdown();
+        executor.shutdown();
     }
     
     /**
@@ -189,28 +305,77 @@ public class Client {
      * the completion of the method. So although always asynch methods are 
      * executed this method gives the synch way of execution. Since v0.2 the
      * PersistTo and ReplicateTo parameters are also used to force a write
-     * operation to persist or replicate to a number of nodes.
+     * operation to persist or replicate to a number of nodes (now the 
+     * durability poller is used instead of observePoll).
      * @param request The request to execute
      * @return The client result of the operation
      */
     public ClientResult waitForCompletion(ClientRequest request) {
         ClientResult response = request.waitForCompletion(timeout);
-        if (response.isSuccess() && response.getCas() != -1 && (request.isOperation() || request.isCAS())) {
-            // assure that all operations (set, cas, delete, add are waited)
-            log.log(Level.FINE, "Doing the observePoll: {0} - {1}", 
-                    new Object[]{request.getType(), response.getCas()});
-            client.observePoll(response.getKey(), response.getCas(), 
-                    persistTo, replicateTo, 
-                    request.getType().equals(OperationType.DELETE));
+        if (poller.needsObserve(request, response)) {
+            List<ClientRequest> requests = new ArrayList<ClientRequest>(1);
+            requests.add(request);
+            List<ClientResult> results = new ArrayList<ClientResult>(1);
+            results.add(response);
+            response = poller.waitFor(requests, results, response);
         }
         return response;
     }
     
+    /**
+     * Check if the client needs to wait for PersistTo or ReplicateTo.
+     * @return true if any of them is not ZERO
+     */
+    public boolean isDurabilityRequired() {
+        return !PersistTo.ZERO.equals(persistTo) || !ReplicateTo.ZERO.equals(replicateTo);
+    }
+    
+    /**
+     * Observes a key in all the nodes.
+     * @param key The key to observe
+     * @param cas The cas of the last write
+     * @return The response for each node
+     */
+    protected Map<MemcachedNode, ObserveResponse> observe(String key, long cas) {
+        return client.observe(key, cas);
+    }
+    
+    /**
+     * Checks if the cas of the key in the master node is still the one
+     * passed (nobody modified it since). Observe is used, so the value is
+     * not read.
+     * @param key The key to check
+     * @param cas The cas of the last known write
+     * @return true if the key exists with that cas, false if modified, 
+     *         missing or error
+     */
+    public boolean isCurrent(String key, long cas) {
+        try {
+            ObserveResponse r = observe(key, cas).get(getPrimary(key));
+            return ObserveResponse.FOUND_PERSISTED.equals(r) 
+                    || ObserveResponse.FOUND_NOT_PERSISTED.equals(r);
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Error observing the key " + key, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Return the master node of a key.
+     * @param key The key
+     * @return The master node
+     */
+    protected MemcachedNode getPrimary(String key) {
+        return client.getNodeLocator().getPrimary(key);
+    }
+    
     /**
      * After one operation is created this method executes it asynchronously.
      * The exec parameter let us execute some code after the operation is
-     * finished. This method launches the request using a thread and this thread
-     * waits for the operation to finish and then executes the exec. Since v0.2
+     * finished. This method launches the request in the shared completion
+     * executor, a pooled thread waits for the operation to finish (THREAD
+     * mode) or is only taken when the operation is finished (LISTENER mode)
+     * and then executes the exec. Since v0.2
      * it waits to PersistTo and ReplicateTo.
      * @param request The request to execute async
      * @param exec The code to execute after the operation is performed (can be null)
@@ -226,7 +391,7 @@ public class Client {
      * @return The result of this operation
      */
     public ClientResult getAndLockSync(String id, int exp) {
-        ClientRequest req = ClientRequest.createGetAndLockResult(client.asyncGetAndLock(id, exp));
+        ClientRequest req = ClientRequest.createGetAndLockResult(client.asyncGetAndLock(id, exp, transcoder));
         return this.waitForCompletion(req);
     }
     
@@ -236,9 +401,44 @@ public class Client {
      * @return The result of this operation
      */
     public ClientResult getsSync(String id) {
-        ClientRequest req = ClientRequest.createGets(client.asyncGets(id));
+        ClientRequest req = ClientRequest.createGets(client.asyncGets(id, transcoder));
         return req.waitForCompletion(timeout);
     }
+
+    /**
+     * Method to execute an async getAndLock operation.
+     * @param id The data to receive
+     * @param exp The expiration timeout
+     * @param exec The exec to execute after the completion
+     * @return The client request with the exec assigned
+     */
+    public ClientRequest getAndLockAsync(String id, int exp, ExecOnCompletion exec) {
+        ClientRequest req = ClientRequest.createGetAndLockResult(client.asyncGetAndLock(id, exp, transcoder));
+        this.execOnCompletion(req, exec);
+        return req;
+    }
+
+    /**
+     * Method to execute an async gets operation.
+     * @param id The data to receive
+     * @param exec The exec to execute after the completion
+     * @return The client request with the exec assigned
+     */
+    public ClientRequest getsAsync(String id, ExecOnCompletion exec) {
+        ClientRequest req = ClientRequest.createGets(client.asyncGets(id, transcoder));
+        this.execOnCompletion(req, exec);
+        return req;
+    }
+
+    /**
+     * Method that launches a multi-get of several keys. The request is
+     * not waited, the values are retrieved from the returned request.
+     * @param ids The keys to retrieve
+     * @return The bulk get request
+     */
+    public BulkGetRequest getBulkAsync(Collection<String> ids) {
+        return new BulkGetRequest(client.asyncGetBulk(ids, transcoder), ids);
+    }
     
     /**
      * Method to execute a sync set operation.
@@ -248,7 +448,7 @@ public class Client {
      * @return The result of this operation
      */
     public ClientResult setSync(String id, byte[] data, int exp) {
-        ClientRequest req = ClientRequest.createSet(client.set(id, exp, data));
+        ClientRequest req = ClientRequest.createSet(client.set(id, exp, data, transcoder));
         return this.waitForCompletion(req);
     }
     
@@ -261,7 +461,7 @@ public class Client {
      * @return The client request with the exec assigned
      */
     public ClientRequest setAsync(String id, byte[] data, int exp, ExecOnCompletion exec) {
-        ClientRequest req = ClientRequest.createSet(client.set(id, exp, data));
+        ClientRequest req = ClientRequest.createSet(client.set(id, exp, data, transcoder));
         this.execOnCompletion(req, exec);
         return req;
     }
@@ -276,7 +476,7 @@ public class Client {
      */
     public ClientResult casSync(String id, byte[] data, long cas, int exp) {
         ClientRequest req = ClientRequest.createCas(
-                client.asyncCAS(id, cas, exp, data, client.getTranscoder()));
+                client.asyncCAS(id, cas, exp, data, transcoder));
         return this.waitForCompletion(req);
     }
     
@@ -291,7 +491,7 @@ public class Client {
      */
     public ClientRequest casAsync(String id, byte[] data, long cas, int exp, ExecOnCompletion exec) {
         ClientRequest req = ClientRequest.createCas(
-                client.asyncCAS(id, cas, exp, data, client.getTranscoder()));
+                client.asyncCAS(id, cas, exp, data, transcoder));
         this.execOnCompletion(req, exec);
         return req;
     }
@@ -398,7 +598,7 @@ public class Client {
      * @return The result of this operation
      */
     public ClientResult addSync(String id, byte[] data, int exp) {
-        ClientRequest req = ClientRequest.createAdd(client.add(id, exp, data));
+        ClientRequest req = ClientRequest.createAdd(client.add(id, exp, data, transcoder));
         return this.waitForCompletion(req);
     }
     
@@ -410,11 +610,89 @@ public class Client {
      * @return The request launched with the op attached
      */
     public ClientRequest addAsync(String id, byte[] data, int exp, ExecOnCompletion exec) {
-        ClientRequest req = ClientRequest.createAdd(client.add(id, exp, data));
+        ClientRequest req = ClientRequest.createAdd(client.add(id, exp, data, transcoder));
         this.execOnCompletion(req, exec);
         return req;
     }
     
+    //
+    // LAUNCH OPS (no waiting, no exec)
+    //
+    
+    /**
+     * Launches an add operation and returns the request.
+     * @param id The id of the object
+     * @param data The serialized object to add
+     * @param exp The expiration time
+     * @return The request launched
+     */
+    protected ClientRequest launchAdd(String id, Object data, int exp) {
+        return ClientRequest.createAdd(client.add(id, exp, data, transcoder));
+    }
+    
+    /**
+     * Launches a set operation and returns the request.
+     * @param id The id of the object
+     * @param data The serialized object to set
+     * @param exp The expiration time
+     * @return The request launched
+     */
+    protected ClientRequest launchSet(String id, Object data, int exp) {
+        return ClientRequest.createSet(client.set(id, exp, data, transcoder));
+    }
+    
+    /**
+     * Launches a cas operation and returns the request.
+     * @param id The id of the object
+     * @param data The serialized object to cas (or already encoded)
+     * @param cas The cas to use
+     * @param exp The expiration time
+     * @return The request launched
+     */
+    protected ClientRequest launchCas(String id, Object data, long cas, int exp) {
+        return ClientRequest.createCas(
+                client.asyncCAS(id, cas, exp, data, transcoder));
+    }
+    
+    /**
+     * Launches a delete operation with cas and returns the request.
+     * @param id The id of the object
+     * @param cas The cas to use
+     * @return The request launched
+     */
+    protected ClientRequest launchDelete(String id, long cas) {
+        return ClientRequest.createDelete(client.delete(id, cas));
+    }
+    
+    /**
+     * Launches a delete operation without cas and returns the request.
+     * @param id The id of the object
+     * @return The request launched
+     */
+    protected ClientRequest launchDelete(String id) {
+        return ClientRequest.createDelete(client.delete(id));
+    }
+    
+    /**
+     * Launches an unlock operation.
+     * @param id The id of the object
+     * @param cas The cas of the lock
+     * @return The client request launched
+     */
+    protected ClientRequest launchUnlock(String id, long cas) {
+        return ClientRequest.createUnlock(client.asyncUnlock(id, cas));
+    }
+    
+    /**
+     * Launches a touch operation.
+     * @param id The id of the object
+     * @param exp The new expiration time
+     * @return The client request launched
+     */
+    protected ClientRequest launchTouch(String id, int exp) {
+        return ClientRequest.createTouch(client.touch(id, exp));
+    }
+    
     //
     // BULK OPS
     //
@@ -436,7 +714,7 @@ public class Client {
      * @param exp The expiration time
      */
     public void addOperationAdd(BulkClientRequest bulk, String id, byte[] data, int exp) {
-        bulk.addOperation(ClientRequest.createAdd(client.add(id, exp, data)));
+        bulk.addOperation(ClientRequest.createAdd(client.add(id, exp, data, transcoder)));
     }
     
     /**
@@ -447,7 +725,7 @@ public class Client {
      * @param exp The expiration time
      */
     public void addOperationSet(BulkClientRequest bulk, String id, byte[] data, int exp) {
-        bulk.addOperation(ClientRequest.createSet(client.set(id, exp, data)));
+        bulk.addOperation(ClientRequest.createSet(client.set(id, exp, data, transcoder)));
     }
     
     /**
@@ -492,7 +770,7 @@ public class Client {
      */
     public void finishAddAsync(BulkClientRequest bulk, String id, 
             byte[] data, int exp, ExecOnCompletion exec) {
-        bulk.finish(ClientRequest.createAdd(client.add(id, exp, data)));
+        bulk.finish(ClientRequest.createAdd(client.add(id, exp, data, transcoder)));
         bulk.execOnCompletion(this, exec);
     }
     
@@ -509,7 +787,7 @@ public class Client {
     public void finishCasAsync(BulkClientRequest bulk, String id, 
             byte[] data, long cas, int exp, ExecOnCompletion exec) {
         bulk.finish(ClientRequest.createCas(
-                client.asyncCAS(id, cas, exp, data, client.getTranscoder())));
+                client.asyncCAS(id, cas, exp, data, transcoder)));
         bulk.execOnCompletion(this, exec);
     }
     
@@ -524,7 +802,36 @@ public class Client {
      */
     public void finishSetAsync(BulkClientRequest bulk, String id, 
             byte[] data, int exp, ExecOnCompletion exec) {
-        bulk.finish(ClientRequest.createSet(client.set(id, exp, data)));
+        bulk.finish(ClientRequest.createSet(client.set(id, exp, data, transcoder)));
+        bulk.execOnCompletion(this, exec);
+    }
+    
+    /**
+     * Finish a bulk operation with a SET of a document already encoded
+     * (see encode). It is async.
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param data The encoded object to set
+     * @param exp The expiration time
+     * @param exec The exec to execute when bulk finishes
+     */
+    public void finishSetAsync(BulkClientRequest bulk, String id, 
+            CachedData data, int exp, ExecOnCompletion exec) {
+        bulk.finish(ClientRequest.createSet(client.set(id, exp, (Object) data, transcoder)));
+        bulk.execOnCompletion(this, exec);
+    }
+    
+    /**
+     * Finish a bulk operation with a TOUCH which is launched at the same
+     * time, not waiting for the previous ops to finish. It is async.
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param exp The expiration time
+     * @param exec The exec to execute when bulk finishes
+     */
+    public void finishTouchAsync(BulkClientRequest bulk, String id, 
+            int exp, ExecOnCompletion exec) {
+        bulk.finish(ClientRequest.createTouch(client.touch(id, exp)));
         bulk.execOnCompletion(this, exec);
     }
     
@@ -569,7 +876,7 @@ public class Client {
      */
     public ClientResult finishAddSync(BulkClientRequest bulk, 
             String id, byte[] data, int exp) {
-        bulk.finish(ClientRequest.createAdd(client.add(id, exp, data)));
+        bulk.finish(ClientRequest.createAdd(client.add(id, exp, data, transcoder)));
         return bulk.waitForCompletion(this);
     }
     
@@ -587,7 +894,7 @@ public class Client {
     public ClientResult finishCasSync(BulkClientRequest bulk, 
             String id, byte[] data, long cas, int exp) {
         bulk.finish(ClientRequest.createCas(
-                client.asyncCAS(id, cas, exp, data, client.getTranscoder())));
+                client.asyncCAS(id, cas, exp, data, transcoder)));
         return bulk.waitForCompletion(this);
     }
     
@@ -603,7 +910,22 @@ public class Client {
      */
     public ClientResult finishSetSync(BulkClientRequest bulk, 
             String id, byte[] data, int exp) {
-        bulk.finish(ClientRequest.createSet(client.set(id, exp, data)));
+        bulk.finish(ClientRequest.createSet(client.set(id, exp, data, transcoder)));
+        return bulk.waitForCompletion(this);
+    }
+    
+    /**
+     * Finish a bulk operation with a TOUCH launched at the same time (there is
+     * no waiting for the previous operations to finish). It is a sync method,
+     * the result (first error or last result) is returned.
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param exp The expiration time
+     * @return The result of the bulk (first error or last result)
+     */
+    public ClientResult finishTouchSync(BulkClientRequest bulk, 
+            String id, int exp) {
+        bulk.finish(ClientRequest.createTouch(client.touch(id, exp)));
         return bulk.waitForCompletion(this);
     }
     
@@ -665,6 +987,35 @@ public class Client {
         bulk.finishCas(this, id, data, cas, exp, exec);
     }
     
+    /**
+     * Wait for previous ops and then launches the CAS of a document already
+     * encoded (see encode). It is async.
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param data The encoded object to cas
+     * @param cas The cas to use
+     * @param exp The expiration time
+     * @param exec The exec to use when bulk finishes
+     */
+    public void waitAndFinishCasAsync(BulkClientRequest bulk, 
+            String id, CachedData data, long cas, int exp, ExecOnCompletion exec) {
+        bulk.finishCas(this, id, data, cas, exp, exec);
+    }
+    
+    /**
+     * Wait for previous ops and then launches the UNLOCK and the TOUCH
+     * (the touch is launched when the unlock finishes). It is async.
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param cas The cas of the lock
+     * @param exp The expiration time
+     * @param exec The exec to use when bulk finishes
+     */
+    public void waitAndFinishUnlockTouchAsync(BulkClientRequest bulk, 
+            String id, long cas, int exp, ExecOnCompletion exec) {
+        bulk.finishUnlockTouch(this, id, cas, exp, exec);
+    }
+    
     /**
      * Wait for previous ops and then launches the SET. It is async.
      * @param bulk The bulk to use
@@ -715,7 +1066,7 @@ public class Client {
             String id, byte[] data, int exp) {
         ClientResult res = bulk.waitForOpsCompletion(this);
         if (res == null || res.isSuccess()) {
-            bulk.finish(ClientRequest.createAdd(client.add(id, exp, data)));
+            bulk.finish(ClientRequest.createAdd(client.add(id, exp, data, transcoder)));
             res = bulk.waitForLastCompletion(this);
         }
         return res;
@@ -736,8 +1087,36 @@ public class Client {
         ClientResult res = bulk.waitForOpsCompletion(this);
         if (res == null || res.isSuccess()) {
             bulk.finish(ClientRequest.createCas(
-                client.asyncCAS(id, cas, exp, data, client.getTranscoder())));
+                client.asyncCAS(id, cas, exp, data, transcoder)));
+            res = bulk.waitForLastCompletion(this);
+        }
+        return res;
+    }
+    
+    /**
+     * Wait for previous ops, then launches the UNLOCK and, if success, the
+     * TOUCH. So it is sync and the result is returned (first error or last 
+     * result). A LOCKED or EXISTS in the touch is not an error (another
+     * server took the session just after the unlock).
+     * @param bulk The bulk to use
+     * @param id The id of the object
+     * @param cas The cas of the lock
+     * @param exp The expiration time
+     * @return The result of the bulk (first error or last result)
+     */
+    public ClientResult waitAndFinishUnlockTouchSync(BulkClientRequest bulk, 
+            String id, long cas, int exp) {
+        ClientResult res = bulk.waitForOpsCompletion(this);
+        if (res == null || res.isSuccess()) {
+            bulk.finish(ClientRequest.createUnlock(client.asyncUnlock(id, cas)));
             res = bulk.waitForLastCompletion(this);
+            if (res.isSuccess()) {
+                ClientResult touch = this.touchSync(id, exp);
+                // locked or changed by other server after the unlock => saved
+                if (!touch.isLockError() && !touch.isExists()) {
+                    res = touch;
+                }
+            }
         }
         return res;
     }
@@ -755,7 +1134,7 @@ public class Client {
             String id, byte[] data, int exp) {
         ClientResult res = bulk.waitForOpsCompletion(this);
         if (res == null || res.isSuccess()) {
-            bulk.finish(ClientRequest.createSet(client.set(id, exp, data)));
+            bulk.finish(ClientRequest.createSet(client.set(id, exp, data, transcoder)));
             res = bulk.waitForLastCompletion(this);
         }
         return res;
@@ -38,6 +38,7 @@ package es.rickyepoderi.couchbasemanager.couchbase;
 import java.util.concurrent.Future;
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
 
 /**
@@ -51,9 +52,12 @@ import net.spy.memcached.internal.OperationFuture;
 public class ClientRequest {
     
     /**
-     * Internal thread that waits the operation to finish.
+     * Internal task that waits the operation to finish. It is executed
+     * in the completion executor of the client. If durability is required
+     * the request is registered in the durability poller which calls the
+     * executor again when it is durable.
      */
-    private class Executor implements Runnable {
+    private class Executor implements Runnable, ExecOnCompletion {
 
         /**
          * The client should be used cos request waitForCompletion now 
@@ -97,19 +101,73 @@ public class ClientRequest {
         }
         
         /**
-         * The method waits the request to complete and then
-         * execute the code if passed.
+         * The method waits the request to complete and then registers it
+         * in the durability poller (which executes immediately if no 
+         * durability is needed).
          */
         @Override
         public void run() {
-            res = client.waitForCompletion(req);
-            if (exec != null) {
-                exec.execute(res);
+            res = req.waitForCompletion(client.getTimeout());
+            client.getPoller().watch(req, res, this);
+        }
+        
+        /**
+         * The request is finished and durable, execute the code if passed.
+         * @param result The result of the request
+         */
+        @Override
+        public void execute(ClientResult result) {
+            try {
+                res = result;
+                if (exec != null) {
+                    exec.execute(res);
+                }
+            } finally {
+                req.executing = false;
             }
         }
     
     }
     
+    /**
+     * Listener registered in the future when the LISTENER completion mode
+     * is used. No thread is used while the operation is in flight, when
+     * the future completes the Executor is sent to the completion executor
+     * (the wait returns immediately at that point).
+     */
+    private class Listener implements OperationCompletionListener {
+        
+        /**
+         * The executor to launch when the operation is completed.
+         */
+        private Executor executor = null;
+        
+        /**
+         * The client whose completion executor is used.
+         */
+        private Client client = null;
+        
+        /**
+         * Constructor.
+         * @param client The client
+         * @param executor The executor to run at completion
+         */
+        public Listener(Client client, Executor executor) {
+            this.client = client;
+            this.executor = executor;
+        }
+        
+        /**
+         * The operation is completed, execute the code in the pool.
+         * @param future The future completed
+         * @throws Exception Some error
+         */
+        @Override
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            client.getExecutor().execute(executor);
+        }
+    }
+    
     /**
      * The operation of the request
      */
@@ -132,9 +190,14 @@ public class ClientRequest {
     private OperationFuture<Boolean> futureOperation = null;
     
     /**
-     * The thread that waits for completion when asynchronous executed.
+     * The request was already launched to be executed asynchronously.
+     */
+    private boolean launched = false;
+    
+    /**
+     * The request is waiting in the completion executor.
      */
-    private Thread thread = null;
+    private volatile boolean executing = false;
     
     /**
      * Constructor for the client request. It is private cos it can only be called 
@@ -281,6 +344,20 @@ public class ClientRequest {
         return this.futureCas;
     }
     
+    /**
+     * Return the future of the operation whatever the type is.
+     * @return The future of the couchbase operation
+     */
+    protected OperationFuture<?> getFuture() {
+        if (this.isObject()) {
+            return this.futureObject;
+        } else if (this.isCAS()) {
+            return this.futureCas;
+        } else {
+            return this.futureOperation;
+        }
+    }
+    
     /**
      * Method that waits the operation to complete synchronously. The 
      * method is protected cos the Client one should be used, now PersistTo
@@ -301,24 +378,33 @@ public class ClientRequest {
     
     /**
      * Executes the operation asynch but after it is finished a code is
-     * executed. This method uses an internal thread.
+     * executed. This method uses the completion executor of the client. In
+     * THREAD mode the executor is launched at this moment, in LISTENER mode
+     * a listener is registered in the future and the executor is only
+     * launched when the operation is finished.
      * @param client The client to be used to wait for the operation
      * @param exec The code to execute at finishing
      */
-    protected void execOnCompletion(Client client, ExecOnCompletion exec) {
-        if (thread == null) {
-            thread = new Thread(new Executor(client, this, exec));
-            thread.start();
+    protected synchronized void execOnCompletion(Client client, ExecOnCompletion exec) {
+        if (!launched) {
+            launched = true;
+            executing = true;
+            Executor executor = new Executor(client, this, exec);
+            if (CompletionMode.LISTENER.equals(client.getCompletionMode())) {
+                this.getFuture().addListener(new Listener(client, executor));
+            } else {
+                client.getExecutor().execute(executor);
+            }
         }
     }
     
     /**
      * Returns if there is an operation in progress. The operation is in
-     * progress if the thread is alive.
+     * progress if the executor has not finished it yet.
      * @return true if there is an operation is progress.
      */
     public boolean isExecuting() {
-        return (thread != null) && thread.isAlive();
+        return executing;
     }
     
     /**
@@ -47,6 +47,10 @@ import net.spy.memcached.ops.OperationStatus;
  * by two fixed element OperationStatus and the type (the type is the same
  * than the ClientRequest which originated the result) and two optional
  * elements: cas and object (only some operations returns a cas or an object).
+ * The spymemcached status is mapped once to a ResultStatus enum which is
+ * used for all the checks, the OperationStatus message is only kept for
+ * diagnostics. Value-less results (not found, exists, locked and temporary
+ * failure) are shared singletons.
  * 
  * @author ricky
  */
@@ -55,7 +59,26 @@ public class ClientResult {
     /**
      * OperationStatus set when an exception is thrown
      */
-    static public final OperationStatus EXCEPTION = new OperationStatus(false, "EXCEPTION");
+    static public final OperationStatus EXCEPTION = ResultStatus.EXCEPTION.getOperationStatus();
+    
+    /**
+     * Shared results for value-less outcomes: [type][status].
+     */
+    private static final ClientResult[][] SHARED = 
+            new ClientResult[OperationType.values().length][ResultStatus.values().length];
+    
+    static {
+        for (OperationType type : OperationType.values()) {
+            for (ResultStatus code : ResultStatus.values()) {
+                if (isShareable(code)) {
+                    ClientResult res = new ClientResult(type);
+                    res.code = code;
+                    res.status = code.getOperationStatus();
+                    SHARED[type.ordinal()][code.ordinal()] = res;
+                }
+            }
+        }
+    }
     
     /**
      * The type of the operation. It is the same type than the request which
@@ -68,6 +91,11 @@ public class ClientResult {
      */
     private OperationStatus status = null;
     
+    /**
+     * The status mapped to the enum (never null).
+     */
+    private ResultStatus code = null;
+    
     /**
      * CAS of the operation. It is only produced in get operations.
      */
@@ -126,6 +154,27 @@ public class ClientResult {
         this.key = key;
     }
     
+    /**
+     * Check if the result for the status can be shared (no value, no cas,
+     * no key, no exception).
+     * @param code The status
+     * @return true if a shared instance can be used
+     */
+    private static boolean isShareable(ResultStatus code) {
+        return ResultStatus.NOT_FOUND.equals(code) || ResultStatus.EXISTS.equals(code)
+                || ResultStatus.LOCKED.equals(code) || ResultStatus.TEMP_FAIL.equals(code);
+    }
+    
+    /**
+     * Return the shared result for a type and a value-less status.
+     * @param type The type of the operation
+     * @param code The status
+     * @return The shared result
+     */
+    protected static ClientResult createClientResultShared(OperationType type, ResultStatus code) {
+        return SHARED[type.ordinal()][code.ordinal()];
+    }
+    
     /**
      * Create a result for the operations that return a OperationFuture&lt;CASValue&lt;Object&gt;&gt;.
      * Method are protected cos they can only be used inside the package.
@@ -139,16 +188,27 @@ public class ClientResult {
         try {
             CASValue<Object> casValue = future.get(timeout, TimeUnit.MILLISECONDS);
             res.status = future.getStatus();
+            res.code = ResultStatus.fromOperationStatus(res.status);
+            if (isShareable(res.code)) {
+                return createClientResultShared(type, res.code);
+            }
             res.key = future.getKey();
-            if (res.status.isSuccess()) {
-                res.cas = future.get().getCas();
+            if (res.code.isSuccess() && casValue.getValue() == null) {
+                // the document could not be decoded => never a success without value
+                res.code = ResultStatus.ERROR;
+                res.status = new OperationStatus(false, "The value of " + res.key + " cannot be decoded");
+                res.cas = -1;
+                res.value = null;
+            } else if (res.code.isSuccess()) {
+                res.cas = casValue.getCas();
                 res.value = (byte[]) casValue.getValue();
             } else {
                 res.cas = -1;
                 res.value = null;
             }
         } catch (Exception e) {
-            res.status = EXCEPTION;
+            res.code = ResultStatus.fromException(e);
+            res.status = res.code.getOperationStatus();
             res.cas = -1;
             res.value = null;
             res.key = null;
@@ -166,28 +226,40 @@ public class ClientResult {
      * @return The result for this operation
      */
     protected static ClientResult createClientResultCas(long timeout, OperationType type, OperationFuture<CASResponse> future) {
-        ClientResult res = new ClientResult(type);
-        res.cas = -1;
-        res.value = null;
-        res.key = null;
         try {
             CASResponse cas = future.get(timeout, TimeUnit.MILLISECONDS);
             if (CASResponse.OK.equals(cas)) {
-                res.status = new OperationStatus(true, "CAS OK!");
+                ClientResult res = new ClientResult(type);
+                res.code = ResultStatus.SUCCESS;
+                res.status = res.code.getOperationStatus();
                 res.key = future.getKey();
                 res.cas = future.getCas();
+                return res;
             } else if (CASResponse.NOT_FOUND.equals(cas)) {
-                res.status = new OperationStatus(false, "NOT_FOUND");
+                return createClientResultShared(type, ResultStatus.NOT_FOUND);
             } else if (CASResponse.EXISTS.equals(cas)) {
-                res.status = new OperationStatus(false, "EXISTS");
+                return createClientResultShared(type, ResultStatus.EXISTS);
             } else {
+                // diagnostics: keep the spymemcached status if mapped
+                ClientResult res = new ClientResult(type);
+                res.status = future.getStatus();
+                res.code = ResultStatus.fromOperationStatus(res.status);
+                if (res.code.isSuccess()) {
+                    res.code = ResultStatus.ERROR;
+                }
+                if (isShareable(res.code)) {
+                    return createClientResultShared(type, res.code);
+                }
                 res.status = new OperationStatus(false, "CAS UNKNOWN ERROR: " + cas);
+                return res;
             }
         } catch (Throwable e) {
-            res.status = EXCEPTION;
+            ClientResult res = new ClientResult(type);
+            res.code = ResultStatus.fromException(e);
+            res.status = res.code.getOperationStatus();
             res.exception = e;
+            return res;
         }
-        return res;
     }
     
     /**
@@ -206,14 +278,19 @@ public class ClientResult {
         try {
             future.get(timeout, TimeUnit.MILLISECONDS);
             res.status = future.getStatus();
-            if (res.status.isSuccess()) {
+            res.code = ResultStatus.fromOperationStatus(res.status);
+            if (isShareable(res.code)) {
+                return createClientResultShared(type, res.code);
+            }
+            if (res.code.isSuccess()) {
                 if (!OperationType.UNLOCK.equals(type) && !OperationType.TOUCH.equals(type)) {
                     res.cas = future.getCas();
                 }
                 res.key = future.getKey();
             }
         } catch (Exception e) {
-            res.status = EXCEPTION;
+            res.code = ResultStatus.fromException(e);
+            res.status = res.code.getOperationStatus();
             res.exception = e;
         }
         return res;
@@ -227,7 +304,8 @@ public class ClientResult {
      */
     protected static ClientResult createClientResultError(OperationType type, Exception e) {
         ClientResult res = new ClientResult(type);
-        res.status = EXCEPTION;
+        res.code = ResultStatus.fromException(e);
+        res.status = res.code.getOperationStatus();
         res.exception = e;
         return res;
     }
@@ -248,6 +326,14 @@ public class ClientResult {
         return status;
     }
 
+    /**
+     * Getter for the status code.
+     * @return The status mapped to the enum (never null)
+     */
+    public ResultStatus getCode() {
+        return code;
+    }
+
     /**
      * Getter for the type.
      * @return The type of the operation (never null)
@@ -285,7 +371,7 @@ public class ClientResult {
      * @return true if success, false otherwise.
      */
     public boolean isSuccess() {
-        return status.isSuccess();
+        return ResultStatus.SUCCESS.equals(code);
     }
     
     /**
@@ -294,8 +380,7 @@ public class ClientResult {
      * @return true if the error is not found, false otherwise
      */
     public boolean isNotFound() {
-        return status.getMessage().equals("NOT_FOUND") || 
-                status.getMessage().equals("Not found");
+        return ResultStatus.NOT_FOUND.equals(code);
     }
     
     /**
@@ -304,7 +389,15 @@ public class ClientResult {
      * @return true if the operation returned a lock error, false otherwise
      */
     public boolean isLockError() {
-        return status.getMessage().equals("LOCK_ERROR");
+        return ResultStatus.LOCKED.equals(code);
+    }
+    
+    /**
+     * Checks if the operation returned EXISTS (cas mismatch).
+     * @return true if the cas was not valid, false otherwise
+     */
+    public boolean isExists() {
+        return ResultStatus.EXISTS.equals(code);
     }
     
     /**
@@ -318,7 +411,10 @@ public class ClientResult {
         sb.append(": ");
         sb.append(this.type);
         sb.append(" ");
+        sb.append(this.code);
+        sb.append("(");
         sb.append(this.status.getMessage());
+        sb.append(")");
         sb.append(" CAS=");
         sb.append(this.cas);
         sb.append(" Value=");
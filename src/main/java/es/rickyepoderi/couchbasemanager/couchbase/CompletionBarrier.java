@@ -0,0 +1,244 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+
+/**
+ * <p>Aggregate barrier over a list of requests already launched. A listener
+ * is registered in every future, so all the operations are waited in
+ * parallel (no request is waited after the previous one). The barrier
+ * opens when all the operations are finished successfully or as soon as
+ * one of them returns an error (fail fast).</p>
+ * 
+ * <p>When the barrier opens the result is the first error received or the
+ * result of the last request in the list if all of them were successful
+ * (null if the list is empty). An optional Runnable is executed at opening,
+ * it is run by the thread that completes the last operation (usually the
+ * spymemcached listener thread) so it should not block.</p>
+ * 
+ * @author ricky
+ */
+public class CompletionBarrier {
+    
+    /**
+     * Listener for one of the requests of the barrier.
+     */
+    private class Listener implements OperationCompletionListener {
+        
+        /**
+         * The index of the request in the list.
+         */
+        private int index = 0;
+        
+        /**
+         * Constructor via index.
+         * @param index The index of the request
+         */
+        public Listener(int index) {
+            this.index = index;
+        }
+        
+        /**
+         * The operation finished, the result is checked and the barrier is
+         * opened if it is an error or the last one.
+         * @param future The future finished
+         * @throws Exception Some error
+         */
+        @Override
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            // the future is done => the result is immediately returned
+            ClientResult res = requests.get(index).waitForCompletion(timeout);
+            results.set(index, res);
+            if (!res.isSuccess()) {
+                open(res);
+            } else if (pending.decrementAndGet() == 0) {
+                open(results.get(results.length() - 1));
+            }
+        }
+    }
+    
+    /**
+     * The requests to wait.
+     */
+    private List<ClientRequest> requests = null;
+    
+    /**
+     * The results of the requests (null if the request is not finished).
+     */
+    private AtomicReferenceArray<ClientResult> results = null;
+    
+    /**
+     * Number of requests still pending.
+     */
+    private AtomicInteger pending = null;
+    
+    /**
+     * Whether the barrier was opened.
+     */
+    private AtomicBoolean opened = new AtomicBoolean(false);
+    
+    /**
+     * The latch to wait for the barrier.
+     */
+    private CountDownLatch latch = new CountDownLatch(1);
+    
+    /**
+     * The result of the barrier (first error or last result).
+     */
+    private volatile ClientResult result = null;
+    
+    /**
+     * The code to execute when the barrier is opened.
+     */
+    private Runnable onOpen = null;
+    
+    /**
+     * Timeout used to read the result of a finished operation.
+     */
+    private long timeout = 0L;
+    
+    /**
+     * Constructor via the list of requests.
+     * @param requests The requests to wait for
+     * @param timeout The timeout for the operations
+     */
+    public CompletionBarrier(List<ClientRequest> requests, long timeout) {
+        this.requests = requests;
+        this.timeout = timeout;
+        this.results = new AtomicReferenceArray<ClientResult>(requests.size());
+        this.pending = new AtomicInteger(requests.size());
+    }
+    
+    /**
+     * Registers the listeners in all the requests. If the list is empty the
+     * barrier is opened right now.
+     * @param onOpen The code to execute when opening (it can be null)
+     */
+    public void start(Runnable onOpen) {
+        this.onOpen = onOpen;
+        if (requests.isEmpty()) {
+            open(null);
+        } else {
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).getFuture().addListener(new Listener(i));
+            }
+        }
+    }
+    
+    /**
+     * Opens the barrier with the result. Only the first call is considered.
+     * @param res The result for the barrier
+     */
+    private void open(ClientResult res) {
+        if (opened.compareAndSet(false, true)) {
+            this.result = res;
+            latch.countDown();
+            if (onOpen != null) {
+                onOpen.run();
+            }
+        }
+    }
+    
+    /**
+     * Wait for the barrier to open.
+     * @param timeout The time to wait in ms
+     * @return true if the barrier was opened, false if timeout
+     */
+    public boolean await(long timeout) {
+        try {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Check if the barrier is opened.
+     * @return true if opened
+     */
+    public boolean isOpened() {
+        return opened.get();
+    }
+    
+    /**
+     * The result of the barrier: the first error or the result of the
+     * last operation. Null if not opened or no requests.
+     * @return The result
+     */
+    public ClientResult getResult() {
+        return result;
+    }
+    
+    /**
+     * Return the result of one of the requests.
+     * @param index The index of the request
+     * @return The result or null if not finished
+     */
+    public ClientResult getResult(int index) {
+        return results.get(index);
+    }
+    
+    /**
+     * Return the results of all the requests (null for the requests not 
+     * finished).
+     * @return The list of results in the same order than the requests
+     */
+    public List<ClientResult> getResults() {
+        List<ClientResult> list = new ArrayList<ClientResult>(results.length());
+        for (int i = 0; i < results.length(); i++) {
+            list.add(results.get(i));
+        }
+        return list;
+    }
+    
+    /**
+     * The requests of the barrier.
+     * @return The list of requests
+     */
+    public List<ClientRequest> getRequests() {
+        return requests;
+    }
+}
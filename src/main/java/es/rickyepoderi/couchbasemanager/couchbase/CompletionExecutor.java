@@ -0,0 +1,309 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Shared executor that runs the code that waits for asynchronous couchbase
+ * operations and then executes the ExecOnCompletion. Previous versions
+ * created a new thread for every async operation, now a bounded pool of
+ * named daemon threads is owned by the Client and re-used by all the
+ * requests.</p>
+ * 
+ * <p>The pool has a fixed number of threads and a bounded queue. When the
+ * queue is full the task is handed off to a fallback pool that creates
+ * threads on demand (the old behavior). The task is never executed in the
+ * calling thread, the caller can be the spymemcached listener thread or
+ * a request thread and neither of them should be blocked waiting for
+ * another operation. This way the pool never loses an operation and the
+ * extra threads are only created under bursts.</p>
+ * 
+ * @author ricky
+ */
+public class CompletionExecutor {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(CompletionExecutor.class.getName());
+    
+    /**
+     * Default number of threads in the pool.
+     */
+    public static final int DEFAULT_POOL_SIZE = 16;
+    
+    /**
+     * Default size of the queue of pending tasks.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    
+    /**
+     * Time idle threads are maintained in the pool (in seconds).
+     */
+    private static final long KEEP_ALIVE_TIME = 60L;
+    
+    /**
+     * Counter to give a different name to each executor.
+     */
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+    
+    /**
+     * Thread factory that creates named daemon threads.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        
+        /**
+         * The prefix of the names.
+         */
+        private String prefix = null;
+        
+        /**
+         * The counter of threads.
+         */
+        private AtomicInteger threadNumber = new AtomicInteger(1);
+        
+        /**
+         * Constructor via prefix.
+         * @param prefix The prefix for the thread names
+         */
+        public NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        
+        /**
+         * Create a new daemon thread with the next name.
+         * @param r The runnable of the thread
+         * @return The new thread
+         */
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+    
+    /**
+     * Rejection policy. When the queue is full the task is handed off to the
+     * fallback pool and the rejection is counted. If the executor is
+     * shutdown the task is really rejected.
+     */
+    private class FallbackPolicy implements RejectedExecutionHandler {
+        
+        /**
+         * Execute the task in the fallback pool.
+         * @param r The task rejected
+         * @param e The executor
+         */
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (e.isShutdown()) {
+                throw new RejectedExecutionException("The completion executor is shutdown!");
+            }
+            rejected.incrementAndGet();
+            log.log(Level.FINE, "Queue is full, running the task in the fallback pool: {0}", 
+                    Thread.currentThread().getName());
+            fallback.execute(r);
+        }
+    }
+    
+    /**
+     * The real pool.
+     */
+    private ThreadPoolExecutor executor = null;
+    
+    /**
+     * The pool that runs the tasks when the queue is full (threads are
+     * created on demand and destroyed when idle).
+     */
+    private ThreadPoolExecutor fallback = null;
+    
+    /**
+     * Number of tasks that were executed by the fallback cos the queue was full.
+     */
+    private AtomicLong rejected = new AtomicLong(0);
+    
+    /**
+     * Number of tasks submitted.
+     */
+    private AtomicLong submitted = new AtomicLong(0);
+    
+    /**
+     * The size of the queue.
+     */
+    private int queueSize = 0;
+    
+    /**
+     * Constructor with default values.
+     */
+    public CompletionExecutor() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE);
+    }
+    
+    /**
+     * Constructor via the size of the pool and the queue.
+     * @param poolSize The number of threads in the pool
+     * @param queueSize The maximum number of tasks waiting for a thread
+     */
+    public CompletionExecutor(int poolSize, int queueSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool size should be greater than 0");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The queue size should be greater than 0");
+        }
+        this.queueSize = queueSize;
+        int number = poolNumber.getAndIncrement();
+        this.fallback = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS, 
+                new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory("couchbase-completion-" + number + "-fallback-"));
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new NamedThreadFactory("couchbase-completion-" + number + "-"),
+                new FallbackPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Execute the task in the pool (or in the fallback pool if the queue
+     * is full).
+     * @param task The task to execute
+     */
+    public void execute(Runnable task) {
+        submitted.incrementAndGet();
+        executor.execute(task);
+    }
+    
+    /**
+     * Shutdowns the pool. Tasks already queued are executed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        fallback.shutdown();
+    }
+    
+    /**
+     * Getter for the number of threads.
+     * @return The size of the pool
+     */
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+    
+    /**
+     * Getter for the maximum size of the queue.
+     * @return The queue size
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+    
+    /**
+     * Number of tasks waiting in the queue right now.
+     * @return The tasks queued
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+    
+    /**
+     * Approximate number of threads that are executing tasks right now.
+     * @return The number of active threads
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+    
+    /**
+     * Approximate number of tasks completed by the pool threads.
+     * @return The number of tasks completed
+     */
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+    
+    /**
+     * Number of tasks submitted to the executor.
+     * @return The tasks submitted
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+    
+    /**
+     * Number of tasks that were executed in the fallback pool because
+     * the queue was full.
+     * @return The rejected tasks
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * String representation.
+     * @return The representation with the counters
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getSimpleName())
+                .append(": pool=")
+                .append(getPoolSize())
+                .append(" queued=")
+                .append(getQueued())
+                .append("/")
+                .append(queueSize)
+                .append(" active=")
+                .append(getActive())
+                .append(" completed=")
+                .append(getCompleted())
+                .append(" rejected=")
+                .append(getRejected())
+                .toString();
+    }
+}
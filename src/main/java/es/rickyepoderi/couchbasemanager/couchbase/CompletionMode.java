@@ -0,0 +1,59 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+/**
+ *
+ * ENUM that lists the ways an async operation is waited before executing
+ * the ExecOnCompletion code.
+ * 
+ * <ul>
+ * <li>THREAD: a thread of the completion executor is taken at launch and
+ * it is blocked in the future until the operation finishes (the thread is
+ * parked during the whole network round trip).</li>
+ * <li>LISTENER: a completion listener is registered in the spymemcached
+ * OperationFuture and the completion executor is only used once the
+ * operation is finished to run the code. This way the number of threads
+ * is constant no matter the number of operations in flight.</li>
+ * </ul>
+ * 
+ * @author ricky
+ */
+public enum CompletionMode {
+    
+    THREAD,
+    LISTENER
+}
@@ -0,0 +1,608 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ObserveResponse;
+import net.spy.memcached.PersistTo;
+import net.spy.memcached.ReplicateTo;
+
+/**
+ * <p>Asynchronous checker of the PersistTo and ReplicateTo requirements.
+ * Previous versions called <em>observePoll</em> synchronously after every
+ * write operation, so a bulk save blocked a thread for every key one after
+ * the other. Now the keys of a write (or all the keys of a bulk) are 
+ * registered as a batch and a single thread polls all the batches in the
+ * same loop. The <em>observe</em> of the client is blocking (it waits the
+ * response of all the nodes of the key), so in every loop the observes
+ * of all the pending keys are sent in parallel using a small pool of
+ * threads (observeThreads) and the loop only collects the responses.</p>
+ * 
+ * <p>When all the keys of a batch reach the required durability the exec
+ * of the batch is executed (in the completion executor of the client) with
+ * the result passed at registration. If a key is modified by another client
+ * or the operation timeout is reached the exec receives an error result.
+ * The time since registration until each key is durable is recorded in a
+ * histogram per operation type (durability lag).</p>
+ * 
+ * @author ricky
+ */
+public class DurabilityPoller {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(DurabilityPoller.class.getName());
+    
+    /**
+     * Default interval between polls (10ms as observePoll).
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 10L;
+    
+    /**
+     * Default number of threads that send the observes.
+     */
+    public static final int DEFAULT_OBSERVE_THREADS = 4;
+    
+    /**
+     * A key to check inside a batch.
+     */
+    private static class Key {
+        
+        /**
+         * The request of the key.
+         */
+        private ClientRequest request = null;
+        
+        /**
+         * The result of the write operation (key and cas).
+         */
+        private ClientResult result = null;
+        
+        /**
+         * The observe launched in the current loop.
+         */
+        private Future<Integer> check = null;
+        
+        /**
+         * Constructor.
+         * @param request The request
+         * @param result The result of the request
+         */
+        public Key(ClientRequest request, ClientResult result) {
+            this.request = request;
+            this.result = result;
+        }
+        
+        /**
+         * If the operation is a delete (not found is the good response).
+         * @return true if it is a delete
+         */
+        public boolean isDelete() {
+            return OperationType.DELETE.equals(request.getType());
+        }
+    }
+    
+    /**
+     * A batch of keys that finishes all together.
+     */
+    private class Batch {
+        
+        /**
+         * The keys still not durable.
+         */
+        private List<Key> pending = null;
+        
+        /**
+         * The result to pass to the exec if success.
+         */
+        private ClientResult result = null;
+        
+        /**
+         * The exec to execute when finished.
+         */
+        private ExecOnCompletion exec = null;
+        
+        /**
+         * The time the batch was registered.
+         */
+        private long start = 0L;
+        
+        /**
+         * The time the batch should be finished.
+         */
+        private long deadline = 0L;
+        
+        /**
+         * Constructor.
+         * @param pending The keys to check
+         * @param result The result for the exec
+         * @param exec The exec to execute
+         */
+        public Batch(List<Key> pending, ClientResult result, ExecOnCompletion exec) {
+            this.pending = pending;
+            this.result = result;
+            this.exec = exec;
+            this.start = System.currentTimeMillis();
+            this.deadline = this.start + client.getTimeout();
+        }
+        
+        /**
+         * Launch the observe of all the pending keys in the pool.
+         */
+        public void launch() {
+            for (final Key key : pending) {
+                key.check = observers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return check(key);
+                    }
+                });
+            }
+        }
+        
+        /**
+         * Poll all the pending keys of the batch (collect the observes 
+         * launched before).
+         * @return true if the batch is finished (success or error)
+         */
+        public boolean poll() {
+            Iterator<Key> it = pending.iterator();
+            try {
+                while (it.hasNext()) {
+                    Key key = it.next();
+                    int check = waitCheck(key);
+                    if (check > 0) {
+                        getHistogram(key.request.getType()).record(System.currentTimeMillis() - start);
+                        it.remove();
+                    } else if (check < 0) {
+                        cancel();
+                        finish(ClientResult.createClientResultError(key.request.getType(), 
+                                new Exception("The key was modified while observing: " + key.result.getKey())));
+                        return true;
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Error observing keys", e);
+                cancel();
+                finish(ClientResult.createClientResultError(result == null? null : result.getType(), e));
+                return true;
+            }
+            if (pending.isEmpty()) {
+                finish(result);
+                return true;
+            } else if (System.currentTimeMillis() > deadline) {
+                finish(ClientResult.createClientResultError(result == null? null : result.getType(), 
+                        new Exception("Durability requirement not reached in time!")));
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Cancel the observes of the keys not collected (the batch is
+         * finished before all of them were waited).
+         */
+        private void cancel() {
+            for (Key key : pending) {
+                if (key.check != null) {
+                    key.check.cancel(true);
+                    key.check = null;
+                }
+            }
+        }
+        
+        /**
+         * Finish the batch executing the exec in the completion executor.
+         * The executor never runs the task in the calling thread (a full
+         * queue is handed off to its fallback pool), so the poller thread is
+         * not blocked by the exec. If the executor is already shutdown the
+         * exec is executed here.
+         * @param res The result to pass
+         */
+        private void finish(ClientResult res) {
+            if (exec != null) {
+                Callback callback = new Callback(exec, res);
+                try {
+                    client.getExecutor().execute(callback);
+                } catch (RejectedExecutionException e) {
+                    log.log(Level.FINE, "The completion executor is shutdown, executing the exec in the poller");
+                    callback.run();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Task to execute the exec of a batch.
+     */
+    private static class Callback implements Runnable {
+        
+        /**
+         * The exec to execute.
+         */
+        private ExecOnCompletion exec = null;
+        
+        /**
+         * The result to pass.
+         */
+        private ClientResult res = null;
+        
+        /**
+         * Constructor.
+         * @param exec The exec
+         * @param res The result
+         */
+        public Callback(ExecOnCompletion exec, ClientResult res) {
+            this.exec = exec;
+            this.res = res;
+        }
+        
+        /**
+         * Execute the exec with the result.
+         */
+        @Override
+        public void run() {
+            exec.execute(res);
+        }
+    }
+    
+    /**
+     * The polling loop. It takes the new batches and polls all of them.
+     * It is re-scheduled while there are batches pending.
+     */
+    private class Poller implements Runnable {
+        
+        /**
+         * Poll all the batches.
+         */
+        @Override
+        public void run() {
+            Batch batch;
+            while ((batch = incoming.poll()) != null) {
+                active.add(batch);
+            }
+            // all the observes in parallel, then collect them
+            for (Batch b : active) {
+                b.launch();
+            }
+            Iterator<Batch> it = active.iterator();
+            while (it.hasNext()) {
+                if (it.next().poll()) {
+                    it.remove();
+                }
+            }
+            if (!active.isEmpty()) {
+                schedule(pollInterval);
+            } else {
+                scheduled.set(false);
+                if (!incoming.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    schedule(0L);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Code that releases a latch (used in sync waits).
+     */
+    private static class LatchExec implements ExecOnCompletion {
+        
+        /**
+         * The latch to release.
+         */
+        private CountDownLatch latch = new CountDownLatch(1);
+        
+        /**
+         * The result received.
+         */
+        private volatile ClientResult res = null;
+        
+        /**
+         * Keep the result and release the latch.
+         * @param result The result
+         */
+        @Override
+        public void execute(ClientResult result) {
+            this.res = result;
+            latch.countDown();
+        }
+    }
+    
+    /**
+     * The client used to observe.
+     */
+    private Client client = null;
+    
+    /**
+     * The single thread that polls.
+     */
+    private ScheduledThreadPoolExecutor scheduler = null;
+    
+    /**
+     * The threads that send the observes.
+     */
+    private ExecutorService observers = null;
+    
+    /**
+     * New batches not yet taken by the poller.
+     */
+    private ConcurrentLinkedQueue<Batch> incoming = new ConcurrentLinkedQueue<Batch>();
+    
+    /**
+     * Batches being polled (only used by the poller thread).
+     */
+    private List<Batch> active = new ArrayList<Batch>();
+    
+    /**
+     * If the poller is scheduled.
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    /**
+     * Time between polls in ms.
+     */
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+    
+    /**
+     * Durability lag for each operation type.
+     */
+    private LatencyHistogram[] histograms = null;
+    
+    /**
+     * Constructor via client.
+     * @param client The client to use
+     */
+    public DurabilityPoller(Client client) {
+        this(client, DEFAULT_POLL_INTERVAL, DEFAULT_OBSERVE_THREADS);
+    }
+    
+    /**
+     * Constructor via client, interval and threads.
+     * @param client The client to use
+     * @param pollInterval The time between polls in ms
+     * @param observeThreads The number of threads that send the observes
+     */
+    public DurabilityPoller(Client client, long pollInterval, int observeThreads) {
+        this.client = client;
+        this.pollInterval = pollInterval;
+        this.histograms = new LatencyHistogram[OperationType.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "couchbase-durability-poller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.observers = Executors.newFixedThreadPool(observeThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "couchbase-durability-observer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Schedule the poller.
+     * @param delay The delay in ms
+     */
+    private void schedule(long delay) {
+        scheduler.schedule(new Poller(), delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Check if a request needs to be observed.
+     * @param request The request
+     * @param response The result of the request
+     * @return true if it should be observed
+     */
+    protected boolean needsObserve(ClientRequest request, ClientResult response) {
+        return client.isDurabilityRequired() && response != null && response.isSuccess() 
+                && response.getCas() != -1 && (request.isOperation() || request.isCAS());
+    }
+    
+    /**
+     * Register a batch of requests to be observed. The exec is executed
+     * with the result when all of them are durable (or the error if there 
+     * is a problem). If no request needs to be observed the exec is 
+     * executed right now in the calling thread.
+     * @param requests The requests finished
+     * @param results The results of the requests
+     * @param result The result to pass to the exec if success
+     * @param exec The exec to execute
+     */
+    public void watch(List<ClientRequest> requests, List<ClientResult> results, 
+            ClientResult result, ExecOnCompletion exec) {
+        List<Key> keys = new ArrayList<Key>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            if (needsObserve(requests.get(i), results.get(i))) {
+                keys.add(new Key(requests.get(i), results.get(i)));
+            }
+        }
+        if (keys.isEmpty()) {
+            if (exec != null) {
+                exec.execute(result);
+            }
+        } else {
+            incoming.add(new Batch(keys, result, exec));
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(0L);
+            }
+        }
+    }
+    
+    /**
+     * Register one request to be observed.
+     * @param request The request finished
+     * @param result The result of the request
+     * @param exec The exec to execute when durable
+     */
+    public void watch(ClientRequest request, ClientResult result, ExecOnCompletion exec) {
+        List<ClientRequest> requests = new ArrayList<ClientRequest>(1);
+        requests.add(request);
+        List<ClientResult> results = new ArrayList<ClientResult>(1);
+        results.add(result);
+        watch(requests, results, result, exec);
+    }
+    
+    /**
+     * Sync version of the watch, the method waits for the requests to
+     * be durable.
+     * @param requests The requests finished
+     * @param results The results of the requests
+     * @param result The result to return if success
+     * @return The result passed or an error result
+     */
+    public ClientResult waitFor(List<ClientRequest> requests, List<ClientResult> results, 
+            ClientResult result) {
+        LatchExec exec = new LatchExec();
+        watch(requests, results, result, exec);
+        try {
+            // the poller finishes the batch at timeout, a bit more to be sure
+            if (exec.latch.await(client.getTimeout() + 1000L, TimeUnit.MILLISECONDS)) {
+                return exec.res;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return ClientResult.createClientResultError(result == null? null : result.getType(), 
+                new Exception("Durability requirement not reached in time!"));
+    }
+    
+    /**
+     * Check a key against the couchbase cluster. 
+     * @param key The key to check
+     * @return 1 if the key is durable, 0 if not yet, -1 if the key was modified
+     */
+    private int check(Key key) {
+        PersistTo persistTo = client.getPersistTo();
+        ReplicateTo replicateTo = client.getReplicateTo();
+        String id = key.result.getKey();
+        Map<MemcachedNode, ObserveResponse> responses = client.observe(id, key.result.getCas());
+        MemcachedNode master = client.getPrimary(id);
+        boolean persistedMaster = false;
+        int persistedReplicas = 0;
+        int replicated = 0;
+        for (Map.Entry<MemcachedNode, ObserveResponse> e : responses.entrySet()) {
+            ObserveResponse r = e.getValue();
+            if (ObserveResponse.MODIFIED.equals(r)) {
+                return -1;
+            }
+            boolean isMaster = e.getKey() == master;
+            boolean persisted = key.isDelete()? ObserveResponse.NOT_FOUND_PERSISTED.equals(r) 
+                    : ObserveResponse.FOUND_PERSISTED.equals(r);
+            boolean present = key.isDelete()? 
+                    ObserveResponse.NOT_FOUND_PERSISTED.equals(r) || ObserveResponse.NOT_FOUND_NOT_PERSISTED.equals(r) :
+                    ObserveResponse.FOUND_PERSISTED.equals(r) || ObserveResponse.FOUND_NOT_PERSISTED.equals(r);
+            if (isMaster) {
+                persistedMaster = persisted;
+            } else {
+                if (persisted) {
+                    persistedReplicas++;
+                }
+                if (present) {
+                    replicated++;
+                }
+            }
+        }
+        boolean persistOk = persistTo.getValue() == 0 
+                || (persistedMaster && persistedReplicas >= persistTo.getValue() - 1);
+        boolean replicateOk = replicated >= replicateTo.getValue();
+        return persistOk && replicateOk ? 1 : 0;
+    }
+    
+    /**
+     * Waits for the observe of a key launched in the pool.
+     * @param key The key
+     * @return 1 if the key is durable, 0 if not yet, -1 if the key was modified
+     */
+    private int waitCheck(Key key) {
+        try {
+            return key.check.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            key.check = null;
+        }
+    }
+    
+    /**
+     * Return the durability lag histogram for an operation type.
+     * @param type The type of the operation (null for unknown)
+     * @return The histogram
+     */
+    public LatencyHistogram getHistogram(OperationType type) {
+        return histograms[type == null? OperationType.SET.ordinal() : type.ordinal()];
+    }
+    
+    /**
+     * Shutdowns the poller.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        observers.shutdownNow();
+    }
+}
@@ -0,0 +1,212 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Simple lock-free histogram of latencies in milliseconds. The buckets
+ * are powers of two: bucket 0 counts latencies of 0ms, bucket 1 of 1ms,
+ * bucket 2 of 2-3ms, bucket 3 of 4-7ms and so on. The last bucket counts
+ * everything above.</p>
+ * 
+ * @author ricky
+ */
+public class LatencyHistogram {
+    
+    /**
+     * Number of buckets (the last one is about 17 min).
+     */
+    public static final int BUCKETS = 22;
+    
+    /**
+     * The counters for each bucket.
+     */
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    
+    /**
+     * Total number of values recorded.
+     */
+    private AtomicLong count = new AtomicLong(0);
+    
+    /**
+     * Sum of all the values recorded.
+     */
+    private AtomicLong sum = new AtomicLong(0);
+    
+    /**
+     * Maximum value recorded.
+     */
+    private AtomicLong max = new AtomicLong(0);
+    
+    /**
+     * Empty constructor.
+     */
+    public LatencyHistogram() {
+        // empty
+    }
+    
+    /**
+     * Return the bucket for a latency.
+     * @param millis The latency in ms
+     * @return The index of the bucket
+     */
+    protected static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        int idx = 64 - Long.numberOfLeadingZeros(millis);
+        return idx < BUCKETS ? idx : BUCKETS - 1;
+    }
+    
+    /**
+     * Return the upper limit (inclusive) of a bucket in ms.
+     * @param bucket The bucket index
+     * @return The upper limit of latencies of the bucket
+     */
+    public static long upperLimit(int bucket) {
+        if (bucket == 0) {
+            return 0L;
+        } else if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        } else {
+            return (1L << bucket) - 1;
+        }
+    }
+    
+    /**
+     * Records a new latency.
+     * @param millis The latency in ms
+     */
+    public void record(long millis) {
+        buckets.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        long current = max.get();
+        while (millis > current && !max.compareAndSet(current, millis)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Number of values recorded.
+     * @return The count
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * The maximum latency recorded.
+     * @return The max in ms
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * The mean of all the latencies.
+     * @return The mean in ms
+     */
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0.0 : (double) sum.get() / c;
+    }
+    
+    /**
+     * Return the counter of a bucket.
+     * @param bucket The bucket index
+     * @return The count of latencies in that bucket
+     */
+    public long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+    
+    /**
+     * Return the upper limit of the bucket that contains the percentile.
+     * @param percentile The percentile (0-100)
+     * @return The upper limit in ms of the bucket
+     */
+    public long getPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0L;
+        }
+        long target = (long) Math.ceil(c * percentile / 100.0);
+        long acc = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            acc += buckets.get(i);
+            if (acc >= target) {
+                return Math.min(upperLimit(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * Clears all the counters.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+    
+    /**
+     * String representation.
+     * @return The representation with count, mean and some percentiles
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getSimpleName())
+                .append(": count=")
+                .append(getCount())
+                .append(" mean=")
+                .append(String.format("%.2f", getMean()))
+                .append("ms p50<=")
+                .append(getPercentile(50))
+                .append("ms p99<=")
+                .append(getPercentile(99))
+                .append("ms max=")
+                .append(getMax())
+                .append("ms")
+                .toString();
+    }
+}
@@ -0,0 +1,139 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import net.spy.memcached.ops.OperationStatus;
+
+/**
+ *
+ * ENUM with the possible status of a ClientResult. The spymemcached status
+ * (a message string that is not always the same for the same error, for 
+ * example "NOT_FOUND" and "Not found") is mapped once when the result is
+ * created and then the result is checked using the enum. Every value has a
+ * preallocated OperationStatus which is used when the result is created
+ * by the manager itself (cas responses, errors and shared results).
+ * 
+ * @author ricky
+ */
+public enum ResultStatus {
+    
+    SUCCESS(true),
+    NOT_FOUND(false),
+    EXISTS(false),
+    LOCKED(false),
+    TIMEOUT(false),
+    TEMP_FAIL(false),
+    EXCEPTION(false),
+    ERROR(false);
+    
+    /**
+     * The preallocated operation status for this value.
+     */
+    private final OperationStatus status;
+    
+    /**
+     * Constructor via success.
+     * @param success If the status is a success
+     */
+    private ResultStatus(boolean success) {
+        this.status = new OperationStatus(success, name());
+    }
+    
+    /**
+     * Return the preallocated OperationStatus for the value.
+     * @return The operation status (message is the name of the enum)
+     */
+    public OperationStatus getOperationStatus() {
+        return status;
+    }
+    
+    /**
+     * Check if the status is a success.
+     * @return true if success
+     */
+    public boolean isSuccess() {
+        return status.isSuccess();
+    }
+    
+    /**
+     * Maps the status returned by spymemcached to the enum.
+     * @param status The spymemcached status
+     * @return The enum value
+     */
+    public static ResultStatus fromOperationStatus(OperationStatus status) {
+        if (status == null) {
+            return ERROR;
+        } else if (status.isSuccess()) {
+            return SUCCESS;
+        }
+        String message = status.getMessage();
+        if (message == null) {
+            return ERROR;
+        } else if (message.equals("NOT_FOUND") || message.equals("Not found")) {
+            return NOT_FOUND;
+        } else if (message.equals("LOCK_ERROR")) {
+            return LOCKED;
+        } else if (message.equals("EXISTS") || message.startsWith("Data exists")) {
+            return EXISTS;
+        } else if (message.startsWith("Temporary failure") || message.equals("TMPFAIL") 
+                || message.equals("TEMP_FAIL")) {
+            return TEMP_FAIL;
+        } else if (message.contains("timed out")) {
+            return TIMEOUT;
+        } else {
+            return ERROR;
+        }
+    }
+    
+    /**
+     * Maps an exception to the enum.
+     * @param e The exception thrown waiting the operation
+     * @return TIMEOUT for timeouts, EXCEPTION for the rest
+     */
+    public static ResultStatus fromException(Throwable e) {
+        Throwable cause = e;
+        if (e instanceof ExecutionException && e.getCause() != null) {
+            cause = e.getCause();
+        }
+        if (cause instanceof TimeoutException || cause.getClass().getSimpleName().contains("Timeout")) {
+            return TIMEOUT;
+        } else {
+            return EXCEPTION;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.couchbase.transcoders;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.compat.CloseUtil;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * <p>Pass-through transcoder for the spymemcached client. The sessions and
+ * the external attributes are already serialized by the manager, so the
+ * byte arrays are sent as they are, the default transcoder inspects the 
+ * object and compresses it with GZIP (16KB threshold) which is wasted 
+ * work.</p>
+ * 
+ * <p>The arrays are written with the same flag the default transcoder uses
+ * for byte arrays (SPECIAL_BYTEARRAY), so the documents are compatible 
+ * with the old versions of the manager. The decode also understands the 
+ * GZIP compression of the default transcoder (documents written by them).
+ * The bits of the RESERVED_MASK are reserved for the encodings of the
+ * manager, a document with an unknown reserved bit is not read.</p>
+ * 
+ * <p>Optionally the arrays bigger than the compressionThreshold are
+ * compressed with Deflate at BEST_SPEED level (much faster than the GZIP of
+ * the default transcoder) and marked with the DEFLATED flag. If the 
+ * compressed array is not smaller than MAX_RATIO of the original the 
+ * compression is discarded and the array is sent as it is. Versions of
+ * the manager without this flag cannot read compressed documents.</p>
+ * 
+ * @author ricky
+ */
+public class RawTranscoder implements Transcoder<Object> {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(RawTranscoder.class.getName());
+    
+    /**
+     * Flag of the default transcoder for the GZIP compression.
+     */
+    public static final int COMPRESSED = 2;
+    
+    /**
+     * Flag of the default transcoder for byte arrays.
+     */
+    public static final int SPECIAL_BYTEARRAY = 8 << 8;
+    
+    /**
+     * Bits reserved for the encodings of the manager.
+     */
+    public static final int RESERVED_MASK = 0xFF << 16;
+    
+    /**
+     * Reserved flag for the Deflate compression of the manager.
+     */
+    public static final int DEFLATED = 1 << 16;
+    
+    /**
+     * Reserved bits currently known by this transcoder.
+     */
+    protected static final int KNOWN_RESERVED = DEFLATED;
+    
+    /**
+     * Maximum ratio (compressed / original) to use the compressed array.
+     */
+    public static final double MAX_RATIO = 0.9;
+    
+    /**
+     * Arrays of this size or bigger are compressed (0 or less disabled).
+     */
+    private int compressionThreshold = 0;
+    
+    /**
+     * Free deflaters (creating one is expensive, they are reused).
+     */
+    private ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    
+    /**
+     * Free inflaters.
+     */
+    private ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    
+    /**
+     * Documents compressed.
+     */
+    private AtomicLong compressions = new AtomicLong(0);
+    
+    /**
+     * Compressions discarded because the ratio was poor.
+     */
+    private AtomicLong compressionSkips = new AtomicLong(0);
+    
+    /**
+     * Bytes before compression (only compressed documents).
+     */
+    private AtomicLong bytesIn = new AtomicLong(0);
+    
+    /**
+     * Bytes after compression.
+     */
+    private AtomicLong bytesOut = new AtomicLong(0);
+    
+    /**
+     * Time in ns compressing (discarded compressions included).
+     */
+    private AtomicLong compressionTime = new AtomicLong(0);
+    
+    /**
+     * Time in ns decompressing.
+     */
+    private AtomicLong decompressionTime = new AtomicLong(0);
+    
+    /**
+     * Documents decompressed.
+     */
+    private AtomicLong decompressions = new AtomicLong(0);
+    
+    /**
+     * The default transcoder for documents that are not byte arrays.
+     */
+    private SerializingTranscoder fallback = null;
+    
+    /**
+     * Empty constructor.
+     */
+    public RawTranscoder() {
+        this.fallback = new SerializingTranscoder();
+    }
+    
+    /**
+     * Getter for the compression threshold.
+     * @return The minimum size to compress (0 or less disabled)
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    
+    /**
+     * Setter for the compression threshold.
+     * @param compressionThreshold The new minimum size to compress
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * The decode is very cheap so it is done in the caller thread.
+     * @param d The data
+     * @return false
+     */
+    @Override
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    /**
+     * Encodes the byte array as it is or compressed if it is bigger than
+     * the threshold and the ratio is good.
+     * @param o The byte array
+     * @return The cached data with the SPECIAL_BYTEARRAY flag (and DEFLATED)
+     */
+    @Override
+    public CachedData encode(Object o) {
+        if (o instanceof CachedData) {
+            // already encoded by the caller (see Client.encode)
+            return (CachedData) o;
+        }
+        if (!(o instanceof byte[])) {
+            throw new IllegalArgumentException("Only byte arrays can be encoded: " 
+                    + (o == null? null : o.getClass().getName()));
+        }
+        byte[] data = (byte[]) o;
+        if (compressionThreshold > 0 && data.length >= compressionThreshold) {
+            byte[] compressed = deflate(data);
+            if (compressed != null) {
+                return new CachedData(SPECIAL_BYTEARRAY | DEFLATED, compressed, getMaxSize());
+            }
+        }
+        return new CachedData(SPECIAL_BYTEARRAY, data, getMaxSize());
+    }
+    
+    /**
+     * Compress the data using Deflate BEST_SPEED. The output is limited to
+     * MAX_RATIO of the data, if it does not fit the compression is discarded.
+     * @param data The data to compress
+     * @return The compressed data or null if the ratio is poor
+     */
+    protected byte[] deflate(byte[] data) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[(int) (data.length * MAX_RATIO)];
+            int length = 0;
+            while (!deflater.finished() && length < buf.length) {
+                length += deflater.deflate(buf, length, buf.length - length);
+            }
+            if (!deflater.finished()) {
+                log.log(Level.FINE, "Compression of {0} bytes discarded (poor ratio)", data.length);
+                compressionSkips.incrementAndGet();
+                return null;
+            }
+            compressions.incrementAndGet();
+            bytesIn.addAndGet(data.length);
+            bytesOut.addAndGet(length);
+            return Arrays.copyOf(buf, length);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+            long elapsed = System.nanoTime() - start;
+            compressionTime.addAndGet(elapsed);
+            log.log(Level.FINE, "Compression of {0} bytes took {1}ns", new Object[]{data.length, elapsed});
+        }
+    }
+    
+    /**
+     * Uncompress data compressed by deflate.
+     * @param data The compressed data
+     * @return The uncompressed data or null if error
+     */
+    protected byte[] inflate(byte[] data) {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(data);
+            byte[] buf = new byte[Math.max(data.length * 3, 64)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int r = inflater.inflate(buf, length, buf.length - length);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated deflate data");
+                }
+                length += r;
+            }
+            decompressions.incrementAndGet();
+            return (length == buf.length)? buf : Arrays.copyOf(buf, length);
+        } catch (DataFormatException e) {
+            log.log(Level.WARNING, "Error decompressing deflate data", e);
+            return null;
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+            decompressionTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decodes the document. Byte arrays are returned as they are (GZIP
+     * uncompressed if the default transcoder compressed it), other types
+     * are decoded by the default transcoder. A document that cannot be
+     * decoded (unknown reserved flags or corrupt data) throws an exception,
+     * so the operation finishes with an error (never a null value).
+     * @param d The data
+     * @return The byte array
+     * @throws IllegalStateException The document cannot be decoded
+     */
+    @Override
+    public Object decode(CachedData d) {
+        int flags = d.getFlags();
+        if ((flags & RESERVED_MASK & ~KNOWN_RESERVED) != 0) {
+            log.log(Level.SEVERE, "Unknown encoding flags {0}", Integer.toHexString(flags));
+            throw new IllegalStateException("Unknown encoding flags " + Integer.toHexString(flags));
+        }
+        if ((flags & SPECIAL_BYTEARRAY) != SPECIAL_BYTEARRAY) {
+            return fallback.decode(d);
+        }
+        byte[] data = decodeReserved(flags, d.getData());
+        if (data != null && (flags & COMPRESSED) != 0) {
+            data = gunzip(data);
+        }
+        if (data == null) {
+            throw new IllegalStateException("The document cannot be decoded (flags " 
+                    + Integer.toHexString(flags) + ")");
+        }
+        return data;
+    }
+    
+    /**
+     * Decodes the encodings of the manager (reserved bits).
+     * @param flags The flags of the document
+     * @param data The data
+     * @return The decoded data (null if error)
+     */
+    protected byte[] decodeReserved(int flags, byte[] data) {
+        if (data != null && (flags & DEFLATED) != 0) {
+            return inflate(data);
+        }
+        return data;
+    }
+    
+    /**
+     * Uncompress data compressed with GZIP by the default transcoder.
+     * @param data The compressed data
+     * @return The uncompressed data or null if error
+     */
+    protected static byte[] gunzip(byte[] data) {
+        GZIPInputStream gis = null;
+        ByteArrayOutputStream bos = null;
+        try {
+            gis = new GZIPInputStream(new ByteArrayInputStream(data));
+            bos = new ByteArrayOutputStream(data.length * 2);
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = gis.read(buf)) > 0) {
+                bos.write(buf, 0, r);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error decompressing gzip data", e);
+            return null;
+        } finally {
+            CloseUtil.close(gis);
+            CloseUtil.close(bos);
+        }
+    }
+
+    /**
+     * Releases the native memory of the deflaters and inflaters.
+     */
+    public void shutdown() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Maximum size of a document.
+     * @return CachedData.MAX_SIZE
+     */
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+    
+    /**
+     * Getter for the number of compressed documents.
+     * @return The documents compressed
+     */
+    public long getCompressions() {
+        return compressions.get();
+    }
+    
+    /**
+     * Getter for the compressions discarded for the ratio.
+     * @return The compressions discarded
+     */
+    public long getCompressionSkips() {
+        return compressionSkips.get();
+    }
+    
+    /**
+     * Getter for the number of decompressed documents.
+     * @return The documents decompressed
+     */
+    public long getDecompressions() {
+        return decompressions.get();
+    }
+    
+    /**
+     * The mean ratio of the compressed documents (compressed / original).
+     * @return The ratio (1.0 if nothing compressed)
+     */
+    public double getCompressionRatio() {
+        long in = bytesIn.get();
+        return (in == 0)? 1.0 : (double) bytesOut.get() / in;
+    }
+    
+    /**
+     * The mean time compressing a document (discarded ones included).
+     * @return The time in microseconds
+     */
+    public double getCompressionTime() {
+        long n = compressions.get() + compressionSkips.get();
+        return (n == 0)? 0.0 : compressionTime.get() / (n * 1000.0);
+    }
+    
+    /**
+     * The mean time decompressing a document.
+     * @return The time in microseconds
+     */
+    public double getDecompressionTime() {
+        long n = decompressions.get();
+        return (n == 0)? 0.0 : decompressionTime.get() / (n * 1000.0);
+    }
+    
+    /**
+     * String representation.
+     * @return The string representation
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getSimpleName())
+                .append("{threshold=").append(getCompressionThreshold())
+                .append(", compressions=").append(getCompressions())
+                .append(", skips=").append(getCompressionSkips())
+                .append(", ratio=").append(String.format("%.3f", getCompressionRatio()))
+                .append(", time=").append(String.format("%.1fus", getCompressionTime()))
+                .append(", decompressions=").append(getDecompressions())
+                .append(", decompressionTime=").append(String.format("%.1fus", getDecompressionTime()))
+                .append("}").toString();
+    }
+}
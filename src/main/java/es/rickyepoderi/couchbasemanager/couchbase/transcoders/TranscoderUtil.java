@@ -72,9 +72,20 @@ public class TranscoderUtil {
      * @return The object de-serialized
      */
     public Object deserialize(byte[] in) {
+        return deserialize(in, 0, in.length);
+    }
+    
+    /**
+     * De-serialize an object from a part of a byte array (no copy is done).
+     * @param in The array to read the object from
+     * @param off The position where the object starts
+     * @param len The length of the object
+     * @return The object de-serialized
+     */
+    public Object deserialize(byte[] in, int off, int len) {
         ByteArrayInputStream bis = null;
         try {
-            bis = new ByteArrayInputStream(in);
+            bis = new ByteArrayInputStream(in, off, len);
             return deserialize(bis);
         } finally {
             CloseUtil.close(bis);
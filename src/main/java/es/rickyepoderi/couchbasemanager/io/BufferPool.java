@@ -0,0 +1,207 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Pool of byte arrays used to serialize the sessions. The arrays are
+ * grouped in size classes (powers of two from 1KB to 1MB), an acquire 
+ * returns an array of the smallest class that fits the requested size 
+ * and the array should be released when it is not used anymore. Bigger
+ * arrays are never pooled.</p>
+ * 
+ * <p>The pool has a cap, the total bytes of the arrays waiting in the pool.
+ * When a released array exceeds the cap it is just discarded (the GC 
+ * collects it). Hits and misses of the acquire are counted.</p>
+ * 
+ * @author ricky
+ */
+public class BufferPool {
+    
+    /**
+     * Bits of the smallest size class (1KB).
+     */
+    private static final int MIN_BITS = 10;
+    
+    /**
+     * Bits of the biggest size class (1MB).
+     */
+    private static final int MAX_BITS = 20;
+    
+    /**
+     * The queues of free arrays, one per size class.
+     */
+    private ConcurrentLinkedQueue<byte[]>[] queues = null;
+    
+    /**
+     * Maximum bytes maintained in the pool.
+     */
+    private long capacity = 0L;
+    
+    /**
+     * Bytes currently in the pool.
+     */
+    private AtomicLong pooled = new AtomicLong(0);
+    
+    /**
+     * Acquires served with an array of the pool.
+     */
+    private AtomicLong hits = new AtomicLong(0);
+    
+    /**
+     * Acquires that allocated a new array.
+     */
+    private AtomicLong misses = new AtomicLong(0);
+    
+    /**
+     * Constructor using the cap of the pool.
+     * @param capacity The maximum bytes maintained in the pool
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long capacity) {
+        this.capacity = capacity;
+        this.queues = new ConcurrentLinkedQueue[MAX_BITS - MIN_BITS + 1];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+    
+    /**
+     * Returns the size class for the size.
+     * @param size The size requested
+     * @return The index of the class or -1 if it is too big
+     */
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_BITS)) {
+            return 0;
+        } else if (size > (1 << MAX_BITS)) {
+            return -1;
+        } else {
+            return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_BITS;
+        }
+    }
+    
+    /**
+     * Returns an array of at least the size passed. The array is taken from
+     * the pool if there is one free of its class.
+     * @param size The minimum size
+     * @return The array (its content is not cleared)
+     */
+    public byte[] acquire(int size) {
+        int idx = sizeClass(size);
+        if (idx < 0) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        byte[] buf = queues[idx].poll();
+        if (buf != null) {
+            pooled.addAndGet(-buf.length);
+            hits.incrementAndGet();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return new byte[1 << (idx + MIN_BITS)];
+    }
+    
+    /**
+     * Returns an array to the pool. Arrays that are not of a size class
+     * or that exceed the cap are discarded. The array should not be used
+     * after the release.
+     * @param buf The array to release
+     */
+    public void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        int idx = sizeClass(buf.length);
+        if (idx < 0 || buf.length != (1 << (idx + MIN_BITS))) {
+            return;
+        }
+        if (pooled.addAndGet(buf.length) > capacity) {
+            pooled.addAndGet(-buf.length);
+            return;
+        }
+        queues[idx].offer(buf);
+    }
+    
+    /**
+     * Getter for the cap of the pool.
+     * @return The maximum bytes in the pool
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Getter for the bytes currently in the pool.
+     * @return The bytes of the free arrays
+     */
+    public long getPooled() {
+        return pooled.get();
+    }
+    
+    /**
+     * Getter for the hits.
+     * @return The acquires served from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Getter for the misses.
+     * @return The acquires that allocated a new array
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * String representation.
+     * @return The string representation
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getSimpleName())
+                .append("{hits=").append(getHits())
+                .append(", misses=").append(getMisses())
+                .append(", pooled=").append(getPooled())
+                .append(", capacity=").append(getCapacity())
+                .append("}").toString();
+    }
+}
@@ -0,0 +1,91 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.io;
+
+/**
+ * <p>Compact digest of serialized data. A 64-bit FNV-1a hash is used, it
+ * is not a cryptographic hash but it is enough to detect if some bytes
+ * have changed (always used together with the length of the data).</p>
+ * 
+ * @author ricky
+ */
+public class Digest {
+    
+    /**
+     * Initial value of the hash.
+     */
+    public static final long INITIAL = 0xcbf29ce484222325L;
+    
+    /**
+     * FNV prime for 64 bits.
+     */
+    private static final long PRIME = 0x100000001b3L;
+    
+    /**
+     * Private constructor, only static methods.
+     */
+    private Digest() {
+        // empty
+    }
+    
+    /**
+     * Continues a hash with a part of a byte array. This way the hash of 
+     * several parts can be calculated.
+     * @param hash The previous hash (INITIAL for the first part)
+     * @param data The byte array
+     * @param off The offset inside the array
+     * @param len The number of bytes to hash
+     * @return The new hash
+     */
+    public static long hash(long hash, byte[] data, int off, int len) {
+        long h = hash;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            h ^= (data[i] & 0xff);
+            h *= PRIME;
+        }
+        return h;
+    }
+    
+    /**
+     * Hash of the whole byte array.
+     * @param data The byte array
+     * @return The hash
+     */
+    public static long hash(byte[] data) {
+        return hash(INITIAL, data, 0, data.length);
+    }
+}
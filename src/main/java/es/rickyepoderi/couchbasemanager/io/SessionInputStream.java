@@ -46,6 +46,10 @@ import java.util.Map;
  * <p>InputStream used to de-serialize a session. It has special methods to read
  * all the different elements of the session.</p>
  * 
+ * <p>The version of the format is detected in the constructor. If the array
+ * starts with the magic byte the version follows, if not it is the old V0
+ * format (no header, fixed ints for the lengths).</p>
+ * 
  * @author ricky
  */
 public class SessionInputStream extends ByteArrayInputStream {
@@ -55,6 +59,11 @@ public class SessionInputStream extends ByteArrayInputStream {
      */
     DataInputStream dis = null;
     
+    /**
+     * Version of the format read.
+     */
+    int version = SessionOutputStream.V0;
+    
     /**
      * Constructor using the byte array.
      * @param buf The byte array that contains a session
@@ -62,6 +71,43 @@ public class SessionInputStream extends ByteArrayInputStream {
     public SessionInputStream(byte[] buf) {
         super(buf);
         dis = new DataInputStream(this);
+        version = detectVersion(buf);
+        if (version > SessionOutputStream.V0) {
+            this.skip(2);
+        }
+    }
+    
+    /**
+     * Detects the version of the format of a serialized session.
+     * @param buf The serialized session
+     * @return The version (V0 if there is no magic byte)
+     */
+    public static int detectVersion(byte[] buf) {
+        if (buf != null && buf.length >= 2 && buf[0] == SessionOutputStream.MAGIC) {
+            return buf[1] & 0xFF;
+        }
+        return SessionOutputStream.V0;
+    }
+    
+    /**
+     * Getter for the version of the format.
+     * @return The version
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Reads a length, fixed int in V0 and a varint in the rest.
+     * @return The length
+     * @throws IOException Some error reading the length
+     */
+    private int readLength() throws IOException {
+        if (version == SessionOutputStream.V0) {
+            return dis.readInt();
+        } else {
+            return readVarInt();
+        }
     }
     
     /**
@@ -71,14 +117,14 @@ public class SessionInputStream extends ByteArrayInputStream {
      * @throws IOException Some error reading the byte array
      */
     public String readString() throws IOException {
-        int length = dis.readInt();
+        int length = readLength();
         if (length == -1) {
             return null;
         } else if (length == 0) {
             return "";
         } else {
             byte[] bytes = new byte[length]; 
-            dis.read(bytes);
+            dis.readFully(bytes);
             return new String(bytes, "UTF-8");
         }
     }
@@ -91,8 +137,8 @@ public class SessionInputStream extends ByteArrayInputStream {
      * @throws IOException Some error reading the object
      */
     public Object readObjectAsObject(TranscoderUtil trans) throws IOException {
-        // read the not used int that specifies the length
-        this.readInt();
+        // read the not used length
+        this.readLength();
         // read the object
         Object o = trans.deserialize(dis);
         return o;
@@ -106,7 +152,7 @@ public class SessionInputStream extends ByteArrayInputStream {
      * @throws IOException Some error reading from the buffer
      */
     public Map.Entry<Boolean,byte[]> readObjectAsArray() throws IOException {
-        int length = this.readInt();
+        int length = this.readLength();
         boolean isRef = false;
         if (length < 0) {
             // it is a ReferenceObject
@@ -120,6 +166,38 @@ public class SessionInputStream extends ByteArrayInputStream {
         return new AbstractMap.SimpleImmutableEntry<Boolean,byte[]>(isRef, data);
     }
     
+    /**
+     * It reads the length of the next object (negative if it is a reference)
+     * but not the object itself. The object starts at getPosition() and
+     * it should be skipped with skipObject. This way the object can be 
+     * used from the original array without any copy.
+     * @return The length of the object (negative for a ReferenceObject)
+     * @throws IOException Some error reading the length
+     */
+    public int readObjectLength() throws IOException {
+        return this.readLength();
+    }
+    
+    /**
+     * Skips an object whose length was read with readObjectLength.
+     * @param length The length read (negative for references)
+     * @throws IOException The array has not enough bytes
+     */
+    public void skipObject(int length) throws IOException {
+        length = Math.abs(length);
+        if (this.skip(length) < length) {
+            throw new IOException("Invalid length of the object");
+        }
+    }
+    
+    /**
+     * Current position in the byte array.
+     * @return The position of the next byte to read
+     */
+    public int getPosition() {
+        return this.pos;
+    }
+    
     /**
      * Method to read a long as DataInputStream.
      * @return The read long
@@ -146,4 +224,37 @@ public class SessionInputStream extends ByteArrayInputStream {
     public int readInt() throws IOException {
         return dis.readInt();
     }
+    
+    /**
+     * Method to read a zigzag varint long (see SessionOutputStream).
+     * @return The read long
+     * @throws IOException Some error reading the long or invalid varint
+     */
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = this.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of the varint");
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+    
+    /**
+     * Method to read a zigzag varint int.
+     * @return The read int
+     * @throws IOException Some error reading the int
+     */
+    public int readVarInt() throws IOException {
+        long l = readVarLong();
+        if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+            throw new IOException("Varint too big for an int");
+        }
+        return (int) l;
+    }
 }
@@ -37,7 +37,6 @@ package es.rickyepoderi.couchbasemanager.io;
 
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -45,14 +44,41 @@ import java.util.Arrays;
  * <p>OutputStream used to serialize a session. It has special methods to write
  * all the different elements of the session.</p>
  * 
+ * <p>Two formats are supported. The old one (V0) writes every length and 
+ * int as a fixed 4 byte int. The compact one (V1) starts with a magic 
+ * byte and the version and writes lengths and ints as zigzag varints 
+ * (see writeVarInt and writeVarLong). The fixed size primitives 
+ * (writeInt, writeLong and writeBoolean) are the same in both.</p>
+ * 
+ * <p>The stream can use a BufferPool. In that case the array is taken from
+ * the pool (sized with a hint, usually the previous size of the session),
+ * it grows using arrays of the pool and it is released in the close. So 
+ * the stream should not be used after the close.</p>
+ * 
  * @author ricky
  */
 public class SessionOutputStream extends ByteArrayOutputStream {
     
     /**
-     * Data input stream used to write common primitives.
+     * Magic byte of the versioned formats. The old format starts with the 
+     * length of the id as an int, so the first byte is always 0.
      */
-    DataOutputStream dos = null;
+    public static final byte MAGIC = (byte) 0xCB;
+    
+    /**
+     * Old format without header.
+     */
+    public static final int V0 = 0;
+    
+    /**
+     * Compact format with varints.
+     */
+    public static final int V1 = 1;
+    
+    /**
+     * Pool of arrays (null if not pooled).
+     */
+    BufferPool pool = null;
     
     /**
      * Mark to the previous size of the array.
@@ -60,12 +86,143 @@ public class SessionOutputStream extends ByteArrayOutputStream {
     int previous = -1;
     
     /**
-     * Empty constructor.
+     * Position of the data of the last object written (after the length).
+     */
+    int previousData = -1;
+    
+    /**
+     * Version of the format written.
+     */
+    int version = V0;
+    
+    /**
+     * Empty constructor (old format V0).
      */
     public SessionOutputStream() {
+        this(V0);
+    }
+    
+    /**
+     * Constructor using the version of the format. For versions greater 
+     * than V0 the magic and the version are written.
+     * @param version The version of the format
+     */
+    public SessionOutputStream(int version) {
+        this(version, null, 0);
+    }
+    
+    /**
+     * Constructor using the version and a pool of arrays.
+     * @param version The version of the format
+     * @param pool The pool to take the arrays from (null means no pool)
+     * @param sizeHint The expected size of the serialized session
+     */
+    public SessionOutputStream(int version, BufferPool pool, int sizeHint) {
         super();
-        dos = new DataOutputStream(this);
+        if (pool != null) {
+            this.pool = pool;
+            this.buf = pool.acquire(sizeHint);
+        }
         previous = -1;
+        previousData = -1;
+        this.version = version;
+        if (version > V0) {
+            this.write(MAGIC);
+            this.write(version);
+        }
+    }
+    
+    /**
+     * Getter for the version of the format.
+     * @return The version
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Ensures the array has space for the bytes passed. The new array is 
+     * taken from the pool (if any) and the old one is released.
+     * @param extra The bytes that are going to be written
+     */
+    private void ensureCapacity(int extra) {
+        int needed = count + extra;
+        if (needed > buf.length) {
+            int size = Math.max(buf.length << 1, needed);
+            byte[] bigger = (pool == null)? new byte[size] : pool.acquire(size);
+            System.arraycopy(buf, 0, bigger, 0, count);
+            if (pool != null) {
+                pool.release(buf);
+            }
+            buf = bigger;
+        }
+    }
+    
+    /**
+     * Writes a byte.
+     * @param b The byte to write
+     */
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+    
+    /**
+     * Writes a part of an array.
+     * @param b The array
+     * @param off The start of the bytes to write
+     * @param len The number of bytes to write
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+    
+    /**
+     * Writes a fixed 4 bytes int (big-endian as DataOutputStream).
+     * @param v The int
+     */
+    private void putInt(int v) {
+        ensureCapacity(4);
+        buf[count++] = (byte) (v >>> 24);
+        buf[count++] = (byte) (v >>> 16);
+        buf[count++] = (byte) (v >>> 8);
+        buf[count++] = (byte) v;
+    }
+    
+    /**
+     * Releases the array to the pool (if any). The stream is empty after 
+     * the close.
+     * @throws IOException Not thrown
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (pool != null) {
+            pool.release(buf);
+            buf = new byte[0];
+            count = 0;
+            previous = -1;
+        }
+        super.close();
+    }
+    
+    /**
+     * Write a length, a fixed int in V0 and a varint in the rest.
+     * @param length The length to write
+     * @throws IOException Some error writing the length
+     */
+    private void writeLength(int length) throws IOException {
+        if (version == V0) {
+            putInt(length);
+        } else {
+            writeVarInt(length);
+        }
     }
     
     /**
@@ -78,15 +235,14 @@ public class SessionOutputStream extends ByteArrayOutputStream {
     public int writeString(String s) throws IOException {
         previous = this.size();
         if (s == null) {
-            dos.writeInt(-1);
+            writeLength(-1);
         } else {
             byte[] bytes = s.getBytes("UTF-8");
-            dos.writeInt(bytes.length);
+            writeLength(bytes.length);
             if (bytes.length > 0) {
-                dos.write(bytes);
+                this.write(bytes, 0, bytes.length);
             }
         }
-        dos.flush();
         return this.size() - previous;
     }
     
@@ -115,10 +271,23 @@ public class SessionOutputStream extends ByteArrayOutputStream {
      * @throws IOException Some error writing the object
      */
     public int writeObjectAsArray(byte[] data, boolean isRef) throws IOException {
+        return writeObjectAsArray(data, 0, data.length, isRef);
+    }
+    
+    /**
+     * Write an object already serialized that is a part of a bigger array.
+     * @param data The array that contains the serialized object
+     * @param off The position where the object starts
+     * @param len The length of the object
+     * @param isRef The object is a reference
+     * @return The length written in the buffer 
+     * @throws IOException Some error writing the object
+     */
+    public int writeObjectAsArray(byte[] data, int off, int len, boolean isRef) throws IOException {
         previous = this.size();
-        this.writeInt(isRef? -data.length : data.length);
-        this.write(data);
-        dos.flush();
+        this.writeLength(isRef? -len : len);
+        previousData = this.size();
+        this.write(data, off, len);
         return this.size() - previous;
     }
     
@@ -130,8 +299,7 @@ public class SessionOutputStream extends ByteArrayOutputStream {
      */
     public int writeBoolean(boolean b) throws IOException {
         previous = this.size();
-        dos.writeBoolean(b);
-        dos.flush();
+        this.write(b? 1 : 0);
         return this.size() - previous;
     }
     
@@ -143,8 +311,8 @@ public class SessionOutputStream extends ByteArrayOutputStream {
      */
     public int writeLong(long l) throws IOException {
         previous = this.size();
-        dos.writeLong(l);
-        dos.flush();
+        putInt((int) (l >>> 32));
+        putInt((int) l);
         return this.size() - previous;
     }
     
@@ -156,11 +324,47 @@ public class SessionOutputStream extends ByteArrayOutputStream {
      */
     public int writeInt(int i) throws IOException {
         previous = this.size();
-        dos.writeInt(i);
-        dos.flush();
+        putInt(i);
         return this.size() - previous;
     }
     
+    /**
+     * Write a byte into the array.
+     * @param b The byte to write
+     * @return The length written (1)
+     */
+    public int writeByte(int b) {
+        previous = this.size();
+        this.write(b);
+        return 1;
+    }
+    
+    /**
+     * Write a long as a zigzag varint (7 bits per byte, the high bit means
+     * more bytes follow). Small positive and negative values use few bytes.
+     * @param l The long to write
+     * @return The length written to the array (1 to 10 bytes)
+     */
+    public int writeVarLong(long l) {
+        previous = this.size();
+        long v = (l << 1) ^ (l >> 63);
+        while ((v & ~0x7FL) != 0) {
+            this.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        this.write((int) v);
+        return this.size() - previous;
+    }
+    
+    /**
+     * Write an int as a zigzag varint.
+     * @param i The int to write
+     * @return The length written to the array (1 to 5 bytes)
+     */
+    public int writeVarInt(int i) {
+        return writeVarLong(i);
+    }
+    
     /**
      * Method to undo the last write. The previous position is restored and the
      * byte array corresponding to the last write. Only one operation can be 
@@ -176,6 +380,15 @@ public class SessionOutputStream extends ByteArrayOutputStream {
         return copy;
     }
     
+    /**
+     * Undo the last object written returning its data (without the length).
+     * @return The data of the last object
+     * @throws IOException Some error doing the undo
+     */
+    public synchronized byte[] undoData() throws IOException {
+        return undo(getLastDataOffset() - this.previous);
+    }
+    
     /**
      * Method that return the last write but not modifying nothing.
      * @param offset An offset to avoid length or whatever
@@ -189,4 +402,36 @@ public class SessionOutputStream extends ByteArrayOutputStream {
         byte[] copy = Arrays.copyOfRange(this.buf, previous + offset, this.count);
         return copy;
     }
+    
+    /**
+     * Return the data of the last object written (without the length).
+     * @return The data of the last object
+     * @throws IOException Some error if the last write was not an object
+     */
+    public byte[] getLastData() throws IOException {
+        return getLastBytes(getLastDataOffset() - this.previous);
+    }
+    
+    /**
+     * Return the digest of the data of the last object written (without
+     * the length). No copy of the data is done.
+     * @return The digest of the data of the last object
+     * @throws IOException Some error if the last write was not an object
+     */
+    public synchronized long getLastDataDigest() throws IOException {
+        int offset = getLastDataOffset();
+        return Digest.hash(Digest.INITIAL, this.buf, offset, this.count - offset);
+    }
+    
+    /**
+     * Return the position of the data of the last object written.
+     * @return The position in the array after the length
+     * @throws IOException The last write was not an object
+     */
+    public int getLastDataOffset() throws IOException {
+        if (this.previous == -1 || this.previousData < this.previous) {
+            throw new IOException("The last write was not an object.");
+        }
+        return this.previousData;
+    }
 }
@@ -36,8 +36,12 @@
 package es.rickyepoderi.couchbasemanager.session;
 
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.Digest;
 import es.rickyepoderi.couchbasemanager.io.ReferenceObject;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * <p>Class that manages some important information about an attribute. This 
@@ -62,6 +66,20 @@ import java.io.Serializable;
  * attributes, externalized ones are always removed (except the reference 
  * itself).</p>
  * 
+ * <p>Reads and writes are separated. A write (setValue) always marks the
+ * attribute as modified, but a read (access) only marks it as accessed if 
+ * the value is immutable (the last persisted bytes are restored as the
+ * serialized value). Mutable values are marked as modified on read. For
+ * external attributes a digest (hash and length) of the last value 
+ * persisted in couchbase is kept to avoid setting the same bytes again.
+ * Internal attributes keep the digest of the persisted bytes when a mutable
+ * value is read, so a re-serialized value can be compared with them.</p>
+ * 
+ * <p>The serialized value can be a slice (offset and length) of a bigger 
+ * array, the whole session read from couchbase. This way the load does not
+ * copy the attributes, the bytes are only copied if the array itself is
+ * requested (getSerialized) and de-serialized if the value is accessed.</p>
+ * 
  * @author ricky
  */
 public class AttributeInfo implements Serializable {
@@ -77,15 +95,68 @@ public class AttributeInfo implements Serializable {
     private Object value = null;
     
     /**
-     * The serialized object of the attribute
+     * The serialized object of the attribute (it can be a bigger array)
      */
     private byte[] serialized = null;
     
+    /**
+     * Position of the serialized object inside the array
+     */
+    private int serializedOffset = 0;
+    
+    /**
+     * Length of the serialized object
+     */
+    private int serializedLength = 0;
+    
     /**
      * The object is a reference
      */
     private boolean isReference = false;
     
+    /**
+     * The last persisted bytes (read or written) of the attribute in the 
+     * session. It is lost when the value is set or when a mutable value
+     * is read (only the digest is kept).
+     */
+    private byte[] original = null;
+    
+    /**
+     * Position of the original bytes inside the array
+     */
+    private int originalOffset = 0;
+    
+    /**
+     * Length of the original bytes
+     */
+    private int originalLength = 0;
+    
+    /**
+     * Digest of the original bytes (calculated when needed).
+     */
+    private long originalDigest = 0L;
+    
+    /**
+     * Length of the digested original bytes (-1 unknown).
+     */
+    private int originalDigestLength = -1;
+    
+    /**
+     * Digest of the last value of a external attribute read from or 
+     * written to couchbase.
+     */
+    private long valueDigest = 0L;
+    
+    /**
+     * Length of the last value of a external attribute (-1 unknown).
+     */
+    private int valueLength = -1;
+    
+    /**
+     * The attribute was accessed (read or written) in this request.
+     */
+    private boolean accessed = false;
+    
     /**
      * Empty constructor.
      */
@@ -93,7 +164,17 @@ public class AttributeInfo implements Serializable {
         this.stats = null;
         this.value = null;
         this.serialized = null;
+        this.serializedOffset = 0;
+        this.serializedLength = 0;
         this.isReference = false;
+        this.original = null;
+        this.originalOffset = 0;
+        this.originalLength = 0;
+        this.originalDigest = 0L;
+        this.originalDigestLength = -1;
+        this.valueDigest = 0L;
+        this.valueLength = -1;
+        this.accessed = false;
     }
 
     /**
@@ -144,6 +225,9 @@ public class AttributeInfo implements Serializable {
         this.value = value;
         this.serialized = null;
         this.isReference = false;
+        this.original = null;
+        this.originalDigestLength = -1;
+        this.clearValueDigest();
     }
 
     /**
@@ -160,15 +244,56 @@ public class AttributeInfo implements Serializable {
         }
         // mark as modified and clean the old serialized array
         this.serialized = null;
+        this.original = null;
+        this.originalDigestLength = -1;
     }
 
     /**
-     * Getter for the serialized value.
+     * Getter for the serialized value. If the value is a slice of a bigger
+     * array it is copied now (only once).
      * @return The serialized value
      */
     public byte[] getSerialized() {
+        if (serialized != null && 
+                (serializedOffset != 0 || serializedLength != serialized.length)) {
+            byte[] copy = Arrays.copyOfRange(serialized, serializedOffset, 
+                    serializedOffset + serializedLength);
+            if (original == serialized && originalOffset == serializedOffset) {
+                this.original = copy;
+                this.originalOffset = 0;
+            }
+            this.serialized = copy;
+            this.serializedOffset = 0;
+        }
         return serialized;
     }
+    
+    /**
+     * Length of the serialized value (it avoids the copy of a slice).
+     * @return The length of the serialized value
+     */
+    public int getSerializedLength() {
+        return serialized == null? 0 : serializedLength;
+    }
+    
+    /**
+     * Digest of the serialized value (it avoids the copy of a slice).
+     * @return The digest of the serialized value
+     */
+    public long getSerializedDigest() {
+        return Digest.hash(Digest.INITIAL, serialized, serializedOffset, serializedLength);
+    }
+    
+    /**
+     * Writes the serialized value into the stream (no copy is done).
+     * @param sos The stream to write
+     * @param isReference If the value is written as a reference
+     * @return The length written
+     * @throws IOException Some error writing
+     */
+    public int writeSerialized(SessionOutputStream sos, boolean isReference) throws IOException {
+        return sos.writeObjectAsArray(serialized, serializedOffset, serializedLength, isReference);
+    }
 
     /**
      * Setter for the serialized value. When the object is read from the 
@@ -178,20 +303,134 @@ public class AttributeInfo implements Serializable {
      * @param isReference If the value is a reference
      */
     public void setSerialized(byte[] serialized, boolean isReference) {
-        this.serialized = serialized;
+        this.setSerialized(serialized, 0, (serialized == null)? 0 : serialized.length, isReference);
+    }
+    
+    /**
+     * Setter for the serialized value as a slice of a bigger array (the
+     * array is not copied, so it should not be modified later).
+     * @param buf The array that contains the serialized value
+     * @param offset The position of the value in the array
+     * @param length The length of the value
+     * @param isReference If the value is a reference
+     */
+    public void setSerialized(byte[] buf, int offset, int length, boolean isReference) {
+        this.serialized = buf;
+        this.serializedOffset = offset;
+        this.serializedLength = length;
         this.isReference = isReference;
+        if (buf != null) {
+            this.original = buf;
+            this.originalOffset = offset;
+            this.originalLength = length;
+            this.originalDigestLength = -1;
+        }
+    }
+    
+    /**
+     * Marks the attribute as accessed (read). If the value is immutable the
+     * attribute is not modified by a read, so the last persisted bytes
+     * are restored (if known). A mutable value is marked as modified and
+     * the persisted bytes are released (the digest is maintained).
+     * @param immutable If the value of the attribute is immutable
+     */
+    public void access(boolean immutable) {
+        this.accessed = true;
+        if (immutable && original != null) {
+            this.serialized = original;
+            this.serializedOffset = originalOffset;
+            this.serializedLength = originalLength;
+        } else {
+            digestOriginal();
+            this.serialized = null;
+            this.original = null;
+        }
+    }
+    
+    /**
+     * Calculates the digest of the original bytes if it is not known.
+     */
+    private void digestOriginal() {
+        if (originalDigestLength < 0 && original != null) {
+            this.originalDigest = Digest.hash(Digest.INITIAL, original, originalOffset, originalLength);
+            this.originalDigestLength = originalLength;
+        }
+    }
+    
+    /**
+     * Getter for the accessed mark.
+     * @return true if the attribute was read or written in this request
+     */
+    public boolean isAccessed() {
+        return accessed;
+    }
+    
+    /**
+     * Setter for the accessed mark.
+     * @param accessed The new accessed mark
+     */
+    public void setAccessed(boolean accessed) {
+        this.accessed = accessed;
+    }
+    
+    /**
+     * Sets the digest of the value of a external attribute. It should be
+     * called when the value is read from or written to couchbase.
+     * @param data The serialized value (null clears the digest)
+     */
+    public void setValueDigest(byte[] data) {
+        if (data == null) {
+            clearValueDigest();
+        } else {
+            this.valueDigest = Digest.hash(data);
+            this.valueLength = data.length;
+        }
+    }
+    
+    /**
+     * Clears the digest of the value, the value in couchbase is unknown.
+     */
+    public void clearValueDigest() {
+        this.valueDigest = 0L;
+        this.valueLength = -1;
+    }
+    
+    /**
+     * Checks if the serialized value of a external attribute is the same
+     * that is in couchbase (same digest and length).
+     * @param data The new serialized value
+     * @return true if the value is known and it is not changed
+     */
+    public boolean isValueDigest(byte[] data) {
+        return valueLength == data.length && valueDigest == Digest.hash(data);
+    }
+    
+    /**
+     * Checks if the new serialized value of an internal attribute is the
+     * same that was last persisted (the original bytes).
+     * @param digest The digest of the new serialized value
+     * @param length The length of the new serialized value
+     * @return true if the persisted value is known and it is not changed
+     */
+    public boolean isOriginalDigest(long digest, int length) {
+        digestOriginal();
+        return originalDigestLength == length && originalDigest == digest;
     }
     
     /**
      * Method that de-serializes the value from the serialize byte[] to the
-     * real value.
+     * real value. The serialized bytes are kept as the original until the
+     * access, only an immutable value keeps them after it.
      * @param trans  The transcoder to use
      */
     public void deserialize(TranscoderUtil trans) {
         if (isDeserialized()) {
             throw new IllegalStateException("The attribute is already de-serialized!");
         }
-        this.value = trans.deserialize(this.serialized);
+        this.value = trans.deserialize(this.serialized, this.serializedOffset, this.serializedLength);
+        this.original = this.serialized;
+        this.originalOffset = this.serializedOffset;
+        this.originalLength = this.serializedLength;
         this.serialized = null;
     }
     
@@ -0,0 +1,239 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import java.util.Arrays;
+
+/**
+ * <p>Probabilistic negative cache. Two counting bloom filters (generations)
+ * are used, ids are added to the current one and searched in both. When
+ * the current generation is half the time old or it has received size 
+ * ids it becomes the previous one and the old previous is discarded. So 
+ * an id is maintained between time/2 and time. Counting filters (one byte
+ * per counter) let an id to be removed when a session is created.</p>
+ * 
+ * <p>Each generation is dimensioned for a false positive probability of
+ * 1% with size ids (around 10 bytes per id). A false positive means an
+ * existing session is not found in this node during a short time, so this
+ * type should only be used when the number of stale ids is really high.</p>
+ * 
+ * @author ricky
+ */
+public class BloomNegativeCache extends NegativeCache {
+    
+    /**
+     * Number of hash functions (optimal for 1%).
+     */
+    private static final int HASHES = 7;
+    
+    /**
+     * Counters per id (optimal for 1%).
+     */
+    private static final int COUNTERS_PER_ID = 10;
+    
+    /**
+     * Current generation where ids are added.
+     */
+    private byte[] current = null;
+    
+    /**
+     * Previous generation (only searched).
+     */
+    private byte[] previous = null;
+    
+    /**
+     * Ids added to the current generation.
+     */
+    private int added = 0;
+    
+    /**
+     * Timestamp of the creation of the current generation.
+     */
+    private long created = 0;
+    
+    /**
+     * Constructor using the size and the time.
+     * @param size The maximum number of ids per generation
+     * @param time The time in milliseconds an id is maintained
+     */
+    public BloomNegativeCache(int size, long time) {
+        super(size, time);
+        int length = Math.max(size, 1) * COUNTERS_PER_ID;
+        this.current = new byte[length];
+        this.previous = new byte[length];
+        this.added = 0;
+        this.created = System.currentTimeMillis();
+    }
+    
+    /**
+     * Calculates the index of the i-th hash for the id. Double hashing
+     * is used with the string hash and a mix of it.
+     * @param h1 The first hash
+     * @param h2 The second hash
+     * @param i The number of the hash
+     * @param length The length of the filter
+     * @return The index of the counter
+     */
+    private static int index(int h1, int h2, int i, int length) {
+        int h = h1 + i * h2;
+        return (h & Integer.MAX_VALUE) % length;
+    }
+    
+    /**
+     * Second hash, a mix of the first one (murmur3 finalizer).
+     * @param h The first hash
+     * @return The second hash (always odd)
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+    
+    /**
+     * Checks if the id is in the filter (all the counters are not zero).
+     * @param filter The filter
+     * @param h1 The first hash
+     * @param h2 The second hash
+     * @return true if probably contained
+     */
+    private static boolean contains(byte[] filter, int h1, int h2) {
+        for (int i = 0; i < HASHES; i++) {
+            if (filter[index(h1, h2, i, filter.length)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Rotates the generations if the current one is old or full.
+     */
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if (now - created >= time) {
+            // both generations are expired
+            Arrays.fill(current, (byte) 0);
+            Arrays.fill(previous, (byte) 0);
+            added = 0;
+            created = now;
+        } else if (added >= size || now - created >= time / 2) {
+            byte[] tmp = previous;
+            previous = current;
+            Arrays.fill(tmp, (byte) 0);
+            current = tmp;
+            added = 0;
+            created = now;
+        }
+    }
+
+    /**
+     * Returns if the id is probably in the cache.
+     * @param id The session id
+     * @return true if the id is considered missing
+     */
+    @Override
+    public synchronized boolean contains(String id) {
+        rotate();
+        int h1 = id.hashCode();
+        int h2 = mix(h1);
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    /**
+     * Adds the id to the current generation. Counters saturate at 127.
+     * @param id The session id
+     */
+    @Override
+    public synchronized void add(String id) {
+        rotate();
+        int h1 = id.hashCode();
+        int h2 = mix(h1);
+        if (!contains(current, h1, h2)) {
+            for (int i = 0; i < HASHES; i++) {
+                int idx = index(h1, h2, i, current.length);
+                if (current[idx] < Byte.MAX_VALUE) {
+                    current[idx]++;
+                }
+            }
+            added++;
+        }
+    }
+    
+    /**
+     * Removes the id from a filter if it is contained. Saturated counters
+     * are never decremented.
+     * @param filter The filter
+     * @param h1 The first hash
+     * @param h2 The second hash
+     */
+    private static void remove(byte[] filter, int h1, int h2) {
+        if (contains(filter, h1, h2)) {
+            for (int i = 0; i < HASHES; i++) {
+                int idx = index(h1, h2, i, filter.length);
+                if (filter[idx] < Byte.MAX_VALUE) {
+                    filter[idx]--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the id from both generations.
+     * @param id The session id
+     */
+    @Override
+    public synchronized void remove(String id) {
+        int h1 = id.hashCode();
+        int h2 = mix(h1);
+        remove(current, h1, h2);
+        remove(previous, h1, h2);
+    }
+
+    /**
+     * Removes all the ids.
+     */
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(current, (byte) 0);
+        Arrays.fill(previous, (byte) 0);
+        added = 0;
+        created = System.currentTimeMillis();
+    }
+}
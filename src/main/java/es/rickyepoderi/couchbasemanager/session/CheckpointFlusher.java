@@ -0,0 +1,213 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Write-behind set of the sticky sessions whose save has been deferred
+ * (checkpoint mode). In sticky configuration this node is the owner of the
+ * session, so the session is only persisted every stickyCheckpointRequests
+ * requests. The sessions with deferred saves are registered here and a
+ * single background thread flushes the ones that are older than 
+ * stickyCheckpointTime. This way the copy in couchbase is never staler
+ * than that time (plus the flush interval).</p>
+ * 
+ * <p>Locked sessions (in the middle of a request) or sessions with a save
+ * in flight are skipped, the end of the request will save or re-register
+ * them. The backlog (number of pending sessions) and the maximum staleness
+ * (age of the oldest unsaved change) can be consulted at any time.</p>
+ * 
+ * @author ricky
+ */
+public class CheckpointFlusher {
+    
+    /**
+     * Logger for the class.
+     */
+    protected static final Logger log = Logger.getLogger(CheckpointFlusher.class.getName());
+    
+    /**
+     * Minimum interval between flushes in ms.
+     */
+    protected static final long MIN_FLUSH_INTERVAL = 100L;
+    
+    /**
+     * Task that flushes the sessions older than the checkpoint time.
+     */
+    private class Flusher implements Runnable {
+
+        /**
+         * Flush the old sessions. Exceptions are logged cos an exception
+         * would cancel the scheduled task.
+         */
+        @Override
+        public void run() {
+            try {
+                flush(false, false, false);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Error flushing checkpoints", e);
+            }
+        }
+    }
+    
+    /**
+     * The manager of the sessions.
+     */
+    private CouchbaseManager manager = null;
+    
+    /**
+     * The sessions with deferred saves by id.
+     */
+    private ConcurrentHashMap<String, CouchbaseWrapperSession> pending = 
+            new ConcurrentHashMap<String, CouchbaseWrapperSession>();
+    
+    /**
+     * The single thread that flushes.
+     */
+    private ScheduledThreadPoolExecutor scheduler = null;
+    
+    /**
+     * Maximum time in ms a change can be unsaved.
+     */
+    private long checkpointTime = 0L;
+    
+    /**
+     * Constructor via manager and checkpoint time.
+     * @param manager The manager that uses the flusher
+     * @param checkpointTime The maximum time in ms a change can be unsaved
+     */
+    public CheckpointFlusher(CouchbaseManager manager, long checkpointTime) {
+        this.manager = manager;
+        this.checkpointTime = checkpointTime;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "couchbase-checkpoint-flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Starts the flusher. The task is executed every half of the 
+     * checkpoint time.
+     */
+    public void start() {
+        long interval = Math.max(checkpointTime / 2, MIN_FLUSH_INTERVAL);
+        scheduler.scheduleWithFixedDelay(new Flusher(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops the flusher. Pending sessions are not flushed (see flush).
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * Registers a session with a deferred save.
+     * @param session The session
+     */
+    public void add(CouchbaseWrapperSession session) {
+        pending.put(session.getId(), session);
+    }
+    
+    /**
+     * Removes a session (it was saved or deleted).
+     * @param id The id of the session
+     */
+    public void remove(String id) {
+        if (id != null) {
+            pending.remove(id);
+        }
+    }
+    
+    /**
+     * Return the number of sessions with deferred saves.
+     * @return The backlog of the flusher
+     */
+    public int getBacklog() {
+        return pending.size();
+    }
+    
+    /**
+     * Return the age of the oldest unsaved change.
+     * @return The maximum staleness in ms (0 if no pending sessions)
+     */
+    public long getMaxStaleness() {
+        long now = System.currentTimeMillis();
+        long max = 0L;
+        for (CouchbaseWrapperSession session : pending.values()) {
+            max = Math.max(max, session.getStaleness(now));
+        }
+        return max;
+    }
+    
+    /**
+     * Flushes the pending sessions. If all is false only the sessions older
+     * than the checkpoint time are saved. Busy sessions are skipped unless
+     * force is set (stopping), then the save in flight is waited and the
+     * session is saved although it is locked.
+     * @param all Flush all the sessions no matter the staleness
+     * @param sync Save synchronously (used when stopping)
+     * @param force Do not skip busy sessions (used when stopping)
+     */
+    public void flush(boolean all, boolean sync, boolean force) {
+        long now = System.currentTimeMillis();
+        int flushed = 0;
+        for (CouchbaseWrapperSession session : pending.values()) {
+            if (all || session.getStaleness(now) >= checkpointTime) {
+                try {
+                    if (session.checkpoint(sync, force)) {
+                        flushed++;
+                    }
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Error flushing the checkpoint of the session", e);
+                }
+            }
+        }
+        manager.getStats().addCheckpointFlushes(flushed);
+        log.log(Level.FINE, "CheckpointFlusher.flush(): flushed={0} backlog={1}", 
+                new Object[]{flushed, pending.size()});
+    }
+}
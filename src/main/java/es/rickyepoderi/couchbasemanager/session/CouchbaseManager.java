@@ -36,23 +36,39 @@
 package es.rickyepoderi.couchbasemanager.session;
 
 import es.rickyepoderi.couchbasemanager.couchbase.BulkClientRequest;
+import es.rickyepoderi.couchbasemanager.couchbase.BulkGetRequest;
 import es.rickyepoderi.couchbasemanager.couchbase.Client;
 import es.rickyepoderi.couchbasemanager.couchbase.ClientResult;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionExecutor;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionMode;
 import es.rickyepoderi.couchbasemanager.couchbase.ExecOnCompletion;
+import es.rickyepoderi.couchbasemanager.couchbase.OperationType;
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.GlassfishTranscoderUtil;
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.BufferPool;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
 import es.rickyepoderi.couchbasemanager.session.CouchbaseWrapperSession.SessionMemStatus;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.PersistTo;
 import net.spy.memcached.ReplicateTo;
 import org.apache.catalina.LifecycleException;
@@ -223,6 +239,151 @@ public class CouchbaseManager extends StandardManager {
      */
     protected int extraInactiveInterval = 3*60;
     
+    /**
+     * Maximum number of threads waiting for async operations.
+     */
+    protected int completionPoolSize = CompletionExecutor.DEFAULT_POOL_SIZE;
+    
+    /**
+     * Maximum number of async operations queued in the completion pool.
+     */
+    protected int completionQueueSize = CompletionExecutor.DEFAULT_QUEUE_SIZE;
+    
+    /**
+     * The way async operations are waited.
+     */
+    protected CompletionMode completionMode = CompletionMode.THREAD;
+    
+    /**
+     * Prefetch all the external attributes when the session is loaded.
+     */
+    protected boolean attrPrefetch = false;
+    
+    /**
+     * Minimum usage (0-100) of an external attribute to be prefetched.
+     */
+    protected int attrPrefetchUsage = 0;
+    
+    /**
+     * Counters of the manager.
+     */
+    protected ManagerStats stats = new ManagerStats();
+    
+    /**
+     * Loads from couchbase that are running right now (findSession). Another
+     * thread that searches the same id waits for the running load.
+     */
+    protected ConcurrentHashMap<String,FutureTask<CouchbaseWrapperSession>> loadingSessions = 
+            new ConcurrentHashMap<String,FutureTask<CouchbaseWrapperSession>>();
+    
+    /**
+     * Type of the negative cache of missing session ids.
+     */
+    protected NegativeCacheType negativeCacheType = NegativeCacheType.NONE;
+    
+    /**
+     * Maximum number of ids in the negative cache.
+     */
+    protected int negativeCacheSize = 10000;
+    
+    /**
+     * Seconds an id is maintained in the negative cache.
+     */
+    protected int negativeCacheTime = 60;
+    
+    /**
+     * The negative cache (null if NONE).
+     */
+    protected NegativeCache negativeCache = null;
+    
+    /**
+     * Names of the classes (apart from the standard ones) that are immutable.
+     */
+    protected Set<String> attrImmutableClasses = new HashSet<String>();
+    
+    /**
+     * Slack in seconds of the access times stored in couchbase when the
+     * session is saved only with a touch (0 or negative disabled, not used
+     * in OWNER mode cos the touch does not return the new cas).
+     */
+    protected int touchOnlySlack = 0;
+    
+    /**
+     * Number of requests between sticky checkpoints (1 or less saves the
+     * session in every request).
+     */
+    protected int stickyCheckpointRequests = 1;
+    
+    /**
+     * Maximum time in seconds of a deferred sticky save.
+     */
+    protected int stickyCheckpointTime = 30;
+    
+    /**
+     * The write-behind flusher of the deferred saves (only in checkpoint mode).
+     */
+    protected CheckpointFlusher checkpointFlusher = null;
+    
+    /**
+     * Sticky saves are pipelined with the next requests.
+     */
+    protected boolean stickyPipelining = false;
+    
+    /**
+     * Lock mode in non-sticky.
+     */
+    protected LockMode lockMode = LockMode.LOCK;
+    
+    /**
+     * Retries of a CAS that returned EXISTS (merging the session).
+     */
+    protected int optimisticRetries = 3;
+    
+    /**
+     * Consecutive conflicts that make a session fall back to lock mode.
+     */
+    protected int optimisticFallback = 3;
+    
+    /**
+     * Policy for the conflicts merging a session after a failed CAS.
+     */
+    protected MergePolicy mergePolicy = new LocalWinsMergePolicy();
+    
+    /**
+     * Lease in seconds of the locks in non-sticky (0 or less disabled).
+     */
+    protected int lockLease = 0;
+    
+    /**
+     * The renewer of the leases (only if lockLease is enabled).
+     */
+    protected LeaseRenewer leaseRenewer = null;
+    
+    /**
+     * Identifier of this node in the owner stamp of the sessions.
+     */
+    protected String nodeId = null;
+    
+    /**
+     * Maximum size in MB of the pool of arrays (0 or less disabled).
+     */
+    protected int bufferPoolSize = 0;
+    
+    /**
+     * The pool of arrays to serialize sessions (null if disabled).
+     */
+    protected BufferPool bufferPool = null;
+    
+    /**
+     * Size in bytes from which the documents are compressed (0 or less disabled).
+     */
+    protected int compressionThreshold = 0;
+    
+    /**
+     * Format used to write the sessions (V0 old or V1 compact).
+     */
+    protected int sessionFormat = SessionOutputStream.V0;
+    
     //
     // CONSTRUCTOR
     //
@@ -436,6 +597,523 @@ public class CouchbaseManager extends StandardManager {
         this.extraInactiveInterval = extraInactiveInterval;
     }
     
+    /**
+     * Getter for the size of the completion pool.
+     * @return The maximum number of threads waiting async operations
+     */
+    public int getCompletionPoolSize() {
+        return completionPoolSize;
+    }
+
+    /**
+     * Setter for the size of the completion pool.
+     * @param completionPoolSize The new number of threads
+     */
+    public void setCompletionPoolSize(int completionPoolSize) {
+        this.completionPoolSize = completionPoolSize;
+    }
+    
+    /**
+     * Getter for the queue size of the completion pool.
+     * @return The maximum number of async operations queued
+     */
+    public int getCompletionQueueSize() {
+        return completionQueueSize;
+    }
+
+    /**
+     * Setter for the queue size of the completion pool.
+     * @param completionQueueSize The new queue size
+     */
+    public void setCompletionQueueSize(int completionQueueSize) {
+        this.completionQueueSize = completionQueueSize;
+    }
+    
+    /**
+     * Getter for the completion mode.
+     * @return The way async operations are waited
+     */
+    public CompletionMode getCompletionMode() {
+        return completionMode;
+    }
+
+    /**
+     * Setter for the completion mode.
+     * @param completionMode The new completion mode
+     */
+    public void setCompletionMode(CompletionMode completionMode) {
+        this.completionMode = completionMode;
+    }
+    
+    /**
+     * Getter for the prefetch of external attributes.
+     * @return true if external attributes are read in a multi-get when loaded
+     */
+    public boolean isAttrPrefetch() {
+        return attrPrefetch;
+    }
+
+    /**
+     * Setter for the prefetch of external attributes.
+     * @param attrPrefetch The new value for the prefetch
+     */
+    public void setAttrPrefetch(boolean attrPrefetch) {
+        this.attrPrefetch = attrPrefetch;
+    }
+    
+    /**
+     * Getter for the minimum usage of an external attribute to be prefetched.
+     * @return The minimum usage (0-100)
+     */
+    public int getAttrPrefetchUsage() {
+        return attrPrefetchUsage;
+    }
+
+    /**
+     * Setter for the minimum usage of an external attribute to be prefetched.
+     * @param attrPrefetchUsage The new minimum usage (0-100)
+     */
+    public void setAttrPrefetchUsage(int attrPrefetchUsage) {
+        this.attrPrefetchUsage = attrPrefetchUsage;
+    }
+    
+    /**
+     * Getter for the counters of the manager.
+     * @return The stats
+     */
+    public ManagerStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Getter for the negative cache type.
+     * @return The type of the negative cache
+     */
+    public NegativeCacheType getNegativeCacheType() {
+        return negativeCacheType;
+    }
+
+    /**
+     * Setter for the negative cache type.
+     * @param negativeCacheType The new type
+     */
+    public void setNegativeCacheType(NegativeCacheType negativeCacheType) {
+        this.negativeCacheType = negativeCacheType;
+    }
+
+    /**
+     * Getter for the negative cache size.
+     * @return The maximum number of ids
+     */
+    public int getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * Setter for the negative cache size.
+     * @param negativeCacheSize The new maximum number of ids
+     */
+    public void setNegativeCacheSize(int negativeCacheSize) {
+        this.negativeCacheSize = negativeCacheSize;
+    }
+
+    /**
+     * Getter for the negative cache time.
+     * @return The seconds an id is maintained
+     */
+    public int getNegativeCacheTime() {
+        return negativeCacheTime;
+    }
+
+    /**
+     * Setter for the negative cache time.
+     * @param negativeCacheTime The new seconds an id is maintained
+     */
+    public void setNegativeCacheTime(int negativeCacheTime) {
+        this.negativeCacheTime = negativeCacheTime;
+    }
+    
+    /**
+     * Getter for the names of the immutable classes.
+     * @return The set of class names
+     */
+    public Set<String> getAttrImmutableClasses() {
+        return attrImmutableClasses;
+    }
+
+    /**
+     * Setter for the names of the immutable classes.
+     * @param attrImmutableClasses The new set of class names
+     */
+    public void setAttrImmutableClasses(Set<String> attrImmutableClasses) {
+        this.attrImmutableClasses = attrImmutableClasses;
+    }
+    
+    /**
+     * Checks if a value of an attribute is immutable. String, boxed 
+     * primitives, enums and the classes in attrImmutableClasses are
+     * immutable.
+     * @param value The value of the attribute
+     * @return true if the value is immutable
+     */
+    public boolean isImmutable(Object value) {
+        if (value == null) {
+            return false;
+        }
+        Class<?> clazz = value.getClass();
+        return clazz == String.class || clazz == Integer.class || clazz == Long.class
+                || clazz == Boolean.class || clazz == Double.class || clazz == Float.class
+                || clazz == Short.class || clazz == Byte.class || clazz == Character.class
+                || value instanceof Enum
+                || attrImmutableClasses.contains(clazz.getName());
+    }
+    
+    /**
+     * Getter for the slack of the touch only saves.
+     * @return The slack in seconds (0 or negative means disabled)
+     */
+    public int getTouchOnlySlack() {
+        return touchOnlySlack;
+    }
+
+    /**
+     * Setter for the slack of the touch only saves.
+     * @param touchOnlySlack The new slack in seconds
+     */
+    public void setTouchOnlySlack(int touchOnlySlack) {
+        this.touchOnlySlack = touchOnlySlack;
+    }
+    
+    /**
+     * Getter for the number of requests between sticky checkpoints.
+     * @return The number of requests (1 or less means every request)
+     */
+    public int getStickyCheckpointRequests() {
+        return stickyCheckpointRequests;
+    }
+
+    /**
+     * Setter for the number of requests between sticky checkpoints.
+     * @param stickyCheckpointRequests The new number of requests
+     */
+    public void setStickyCheckpointRequests(int stickyCheckpointRequests) {
+        this.stickyCheckpointRequests = stickyCheckpointRequests;
+    }
+    
+    /**
+     * Getter for the maximum time of a deferred sticky save.
+     * @return The time in seconds
+     */
+    public int getStickyCheckpointTime() {
+        return stickyCheckpointTime;
+    }
+
+    /**
+     * Setter for the maximum time of a deferred sticky save.
+     * @param stickyCheckpointTime The new time in seconds
+     */
+    public void setStickyCheckpointTime(int stickyCheckpointTime) {
+        this.stickyCheckpointTime = stickyCheckpointTime;
+    }
+    
+    /**
+     * Return if the checkpoint mode is used (sticky and more than one
+     * request between checkpoints).
+     * @return true if the saves can be deferred
+     */
+    public boolean isCheckpointEnabled() {
+        return isSticky() && stickyCheckpointRequests > 1;
+    }
+    
+    /**
+     * Registers a session with a deferred save in the flusher.
+     * @param session The session with a deferred save
+     */
+    public void addPendingCheckpoint(CouchbaseWrapperSession session) {
+        if (checkpointFlusher != null) {
+            checkpointFlusher.add(session);
+        }
+    }
+    
+    /**
+     * Removes a session from the flusher (saved or deleted).
+     * @param id The id of the session
+     */
+    public void removePendingCheckpoint(String id) {
+        if (checkpointFlusher != null) {
+            checkpointFlusher.remove(id);
+        }
+    }
+    
+    /**
+     * Return the number of sessions with deferred saves.
+     * @return The backlog of the flusher (0 if not in checkpoint mode)
+     */
+    public int getCheckpointBacklog() {
+        return (checkpointFlusher == null)? 0 : checkpointFlusher.getBacklog();
+    }
+    
+    /**
+     * Return the age of the oldest change not saved in couchbase.
+     * @return The maximum staleness in ms (0 if not in checkpoint mode)
+     */
+    public long getCheckpointMaxStaleness() {
+        return (checkpointFlusher == null)? 0L : checkpointFlusher.getMaxStaleness();
+    }
+    
+    /**
+     * Getter for the sticky pipelining.
+     * @return true if the sticky saves are pipelined
+     */
+    public boolean isStickyPipelining() {
+        return stickyPipelining;
+    }
+
+    /**
+     * Setter for the sticky pipelining.
+     * @param stickyPipelining The new value
+     */
+    public void setStickyPipelining(boolean stickyPipelining) {
+        this.stickyPipelining = stickyPipelining;
+    }
+    
+    /**
+     * Return if the saves are pipelined (sticky and stickyPipelining).
+     * @return true if a request can proceed with a save in flight
+     */
+    public boolean isPipelining() {
+        return isSticky() && stickyPipelining;
+    }
+    
+    /**
+     * Getter for the lock mode.
+     * @return The lock mode used in non-sticky
+     */
+    public LockMode getLockMode() {
+        return lockMode;
+    }
+
+    /**
+     * Setter for the lock mode.
+     * @param lockMode The new lock mode
+     */
+    public void setLockMode(LockMode lockMode) {
+        this.lockMode = lockMode;
+    }
+    
+    /**
+     * Getter for the retries in optimistic mode.
+     * @return The number of retries of a CAS
+     */
+    public int getOptimisticRetries() {
+        return optimisticRetries;
+    }
+
+    /**
+     * Setter for the retries in optimistic mode.
+     * @param optimisticRetries The new number of retries
+     */
+    public void setOptimisticRetries(int optimisticRetries) {
+        this.optimisticRetries = optimisticRetries;
+    }
+    
+    /**
+     * Getter for the conflicts to fall back to lock mode.
+     * @return The number of consecutive conflicts
+     */
+    public int getOptimisticFallback() {
+        return optimisticFallback;
+    }
+
+    /**
+     * Setter for the conflicts to fall back to lock mode.
+     * @param optimisticFallback The new number of conflicts
+     */
+    public void setOptimisticFallback(int optimisticFallback) {
+        this.optimisticFallback = optimisticFallback;
+    }
+    
+    /**
+     * Return if the session should be loaded without lock (non-sticky,
+     * OPTIMISTIC mode and the session has not fallen back to lock).
+     * @param session The session to load
+     * @return true if gets should be used instead of getAndLock
+     */
+    public boolean isOptimistic(CouchbaseWrapperSession session) {
+        return !isSticky() && LockMode.OPTIMISTIC.equals(lockMode) 
+                && !session.isLockFallback();
+    }
+    
+    /**
+     * Getter for the merge policy.
+     * @return The policy used to resolve the conflicts
+     */
+    public MergePolicy getMergePolicy() {
+        return mergePolicy;
+    }
+
+    /**
+     * Setter for the merge policy.
+     * @param mergePolicy The new merge policy
+     */
+    public void setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+    
+    /**
+     * Getter for the lease of the locks.
+     * @return The lease in seconds (0 or negative means disabled)
+     */
+    public int getLockLease() {
+        return lockLease;
+    }
+
+    /**
+     * Setter for the lease of the locks.
+     * @param lockLease The new lease in seconds
+     */
+    public void setLockLease(int lockLease) {
+        this.lockLease = lockLease;
+    }
+    
+    /**
+     * Return if the non-sticky locks use a lease.
+     * @return true if the lease is enabled
+     */
+    public boolean isLeaseEnabled() {
+        return !isSticky() && lockLease > 0;
+    }
+    
+    /**
+     * Return the number of sessions locked with a lease.
+     * @return The number of leased sessions
+     */
+    public int getLeasedSessions() {
+        return (leaseRenewer == null)? 0 : leaseRenewer.getLeased();
+    }
+    
+    /**
+     * Getter for the node identifier.
+     * @return The identifier of this node in the owner stamp
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Setter for the node identifier. If null the glassfish instance name
+     * or the host name is used.
+     * @param nodeId The new node identifier
+     */
+    public void setNodeId(String nodeId) {
+        if (nodeId == null) {
+            nodeId = System.getProperty("com.sun.aas.instanceName");
+        }
+        if (nodeId == null) {
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unknown host name, using a random node id", e);
+                nodeId = UUID.randomUUID().toString();
+            }
+        }
+        this.nodeId = nodeId;
+    }
+    
+    /**
+     * Return if the OWNER lock mode is used (non-sticky).
+     * @return true if the owner of the session can skip the reload
+     */
+    public boolean isOwnerMode() {
+        return !isSticky() && LockMode.OWNER.equals(lockMode);
+    }
+    
+    /**
+     * Checks if this node is the owner of the session and the local copy is 
+     * still the one in couchbase (OWNER mode). The cas of the last save is 
+     * checked with observe.
+     * @param session The session to check
+     * @return true if the session can be used without reading and locking
+     */
+    private boolean isOwnerCurrent(CouchbaseWrapperSession session) {
+        long ownerCas = session.getOwnerCas();
+        if (!isOwnerMode() || ownerCas <= 0 || session.localHasExpired()
+                || SessionMemStatus.ERROR.equals(session.getMemStatus())) {
+            return false;
+        }
+        if (client.isCurrent(session.getId(), ownerCas)) {
+            return true;
+        } else {
+            stats.incrementOwnerMisses();
+            return false;
+        }
+    }
+    
+    /**
+     * Return if the values of the sessions are maintained in memory between
+     * requests (sticky or OWNER mode).
+     * @return true if the session is kept in memory
+     */
+    public boolean isKeepLocal() {
+        return isSticky() || isOwnerMode();
+    }
+    
+    /**
+     * Getter for the size of the buffer pool.
+     * @return The size in MB (0 or negative means disabled)
+     */
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    /**
+     * Setter for the size of the buffer pool.
+     * @param bufferPoolSize The new size in MB
+     */
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+    
+    /**
+     * Return the pool of arrays used to serialize sessions.
+     * @return The pool or null if disabled
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    /**
+     * Getter for the compression threshold.
+     * @return The size in bytes (0 or negative means disabled)
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Setter for the compression threshold.
+     * @param compressionThreshold The new size in bytes
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * Getter for the format used to write the sessions.
+     * @return The format version (SessionOutputStream.V0 or V1)
+     */
+    public int getSessionFormat() {
+        return sessionFormat;
+    }
+
+    /**
+     * Setter for the format used to write the sessions.
+     * @param sessionFormat The new format version
+     */
+    public void setSessionFormat(int sessionFormat) {
+        this.sessionFormat = sessionFormat;
+    }
+    
     /**
      * Return the time for expirations with inactive plus the extra time.
      * @return The extra interval to maintain the session in the repository
@@ -493,6 +1171,7 @@ public class CouchbaseManager extends StandardManager {
         // delete the previous session from couchbase and add, lock as if new
         synchronized (session) {
             CouchbaseWrapperSession couchSes = (CouchbaseWrapperSession) session;
+            String oldId = couchSes.getId();
             boolean locked = couchSes.isForegroundLocked();
             // delete current session from couchbase
             doSessionDeleteInternal(couchSes);
@@ -505,6 +1184,9 @@ public class CouchbaseManager extends StandardManager {
             // add the new id to couchbase but it is NOT_LOADED
             couchSes.setMemStatus(SessionMemStatus.NOT_LOADED);
             doSessionAdd((CouchbaseWrapperSession)session);
+            // the whole session is written => no deferred save
+            removePendingCheckpoint(oldId);
+            couchSes.resetCheckpoint();
             // if locked lock again
             if (locked) {
                 session.lockForeground();
@@ -574,6 +1256,10 @@ public class CouchbaseManager extends StandardManager {
         session.setCreationTime(System.currentTimeMillis());
         session.setMaxInactiveInterval(this.maxInactiveInterval);
         if (!fake) {
+            // the id exists now => invalidate the negative cache
+            if (negativeCache != null) {
+                negativeCache.remove(id);
+            }
             // real session => set id normally and add the session to couchbase
             session.setId(id);
             // add session to both internal and external
@@ -596,7 +1282,8 @@ public class CouchbaseManager extends StandardManager {
      * (maybe the session was created by another server). If it is found
      * this session is returned. Just null is returned if the session does not
      * exist in the couchbase server. Take into account the session is always
-     * NOT_LOADED (until later lock).
+     * NOT_LOADED (until later lock). Concurrent searches of the same id are
+     * coalesced, only one thread reads couchbase (see loadSession).
      * 
      * @param id The session id to find.
      * @return The session found (internal or external) or null
@@ -607,24 +1294,13 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.findSession(String): init {0}", id);
         CouchbaseWrapperSession session = (CouchbaseWrapperSession) super.findSession(id);
         if (session == null) {
-            // search for the session in repository with a faked session
-            session = (CouchbaseWrapperSession) createSessionInternal(id, true, false);
-            this.doSessionLoad(session, SessionMemStatus.NOT_LOADED);
-            if (session.getMemStatus().isSuccess()) {
-                // add the session to current sessions in this manager 
-                // increment the counter
-                session.setManager(this);
-                sessionCounter++;
-                add(session);
-            } else if (SessionMemStatus.ALREADY_LOCKED.equals(session.getMemStatus())) {
-                // the session exists but it is blocked 
-                // just create as new and wait to lock to get read and filled
-                // no lock cos we are creating it but it exists earlier
-                session = (CouchbaseWrapperSession) createSessionInternal(id, false, false);
-                session.setNew(false);
-            } else  {
-                // session does not exists => null
-                session = null;
+            if (negativeCache != null && negativeCache.contains(id)) {
+                // recently confirmed missing => do not search again
+                log.fine("CouchbaseManager.findSession(String): id in the negative cache");
+                stats.incrementNegativeCacheHits();
+            } else {
+                // search for the session in repository
+                session = loadSession(id);
             }
         } else if (CouchbaseWrapperSession.SessionMemStatus.NOT_EXISTS.equals(session.getMemStatus())) {
             // session does not exists
@@ -635,6 +1311,91 @@ public class CouchbaseManager extends StandardManager {
                 (session == null)? null:session.toString());
         return session;
     }
+    
+    /**
+     * Single-flight load of a session not present in the manager. The first
+     * thread registers a task in loadingSessions and performs the read, the
+     * other threads looking for the same id just wait for the task and share
+     * its result (the same session object or null).
+     * @param id The session id to load
+     * @return The session found in couchbase or null
+     * @throws IOException Some error waiting the load
+     */
+    protected CouchbaseWrapperSession loadSession(final String id) throws IOException {
+        FutureTask<CouchbaseWrapperSession> task = new FutureTask<CouchbaseWrapperSession>(
+                new Callable<CouchbaseWrapperSession>() {
+                    @Override
+                    public CouchbaseWrapperSession call() throws Exception {
+                        return doLoadSession(id);
+                    }
+                });
+        FutureTask<CouchbaseWrapperSession> running = loadingSessions.putIfAbsent(id, task);
+        if (running == null) {
+            // this thread performs the load
+            try {
+                task.run();
+            } finally {
+                loadingSessions.remove(id, task);
+            }
+            running = task;
+        } else {
+            log.log(Level.FINE, "CouchbaseManager.loadSession(String): coalesced load {0}", id);
+            stats.incrementCoalescedLoads();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading the session", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            } else {
+                throw new IOException("Error loading the session", e.getCause());
+            }
+        }
+    }
+    
+    /**
+     * The real load of a session that is not present in the manager. The
+     * session is searched in the couchbase server with a faked session.
+     * @param id The session id to load
+     * @return The session found in couchbase or null
+     * @throws IOException Some error searching the session
+     */
+    private CouchbaseWrapperSession doLoadSession(String id) throws IOException {
+        // a previous load could have finished just before registering this one
+        CouchbaseWrapperSession session = (CouchbaseWrapperSession) super.findSession(id);
+        if (session != null) {
+            return SessionMemStatus.NOT_EXISTS.equals(session.getMemStatus())? null : session;
+        }
+        stats.incrementLoads();
+        // search for the session in repository with a faked session
+        session = (CouchbaseWrapperSession) createSessionInternal(id, true, false);
+        this.doSessionLoad(session, SessionMemStatus.NOT_LOADED);
+        if (session.getMemStatus().isSuccess()) {
+            // add the session to current sessions in this manager 
+            // increment the counter
+            session.setManager(this);
+            sessionCounter++;
+            add(session);
+        } else if (SessionMemStatus.ALREADY_LOCKED.equals(session.getMemStatus())) {
+            // the session exists but it is blocked 
+            // just create as new and wait to lock to get read and filled
+            // no lock cos we are creating it but it exists earlier
+            session = (CouchbaseWrapperSession) createSessionInternal(id, false, false);
+            session.setNew(false);
+        } else  {
+            // session does not exists => null
+            if (negativeCache != null && SessionMemStatus.NOT_EXISTS.equals(session.getMemStatus())) {
+                negativeCache.add(id);
+            }
+            session = null;
+        }
+        return session;
+    }
 
     /**
      * No version managed, just like previous function.
@@ -687,6 +1448,8 @@ public class CouchbaseManager extends StandardManager {
     public void remove(Session session) {
         log.log(Level.FINE, "CouchbaseManager.remove(Session): init {0}", session.toString());
         synchronized (session) {
+            // the session is deleted => no deferred save
+            ((CouchbaseWrapperSession) session).resetCheckpoint();
             if (SessionMemStatus.NOT_EXISTS.equals(((CouchbaseWrapperSession) session).getMemStatus())) {
                 log.fine("CouchbaseManager.remove(Session): real removing");
                 realRemove(session);
@@ -787,7 +1550,26 @@ public class CouchbaseManager extends StandardManager {
             //client = new CouchbaseClient(baseURIs, "default", null, "");
             ((GlassfishTranscoderUtil)transcoder).setAppLoader(this.getContainer().getLoader().getClassLoader());
             client = new Client(baseURIs, bucket, username, password, 
-                    persistTo, replicateTo, operationTimeout);
+                    persistTo, replicateTo, operationTimeout, 
+                    completionPoolSize, completionQueueSize);
+            client.setCompletionMode(completionMode);
+            client.getTranscoder().setCompressionThreshold(compressionThreshold);
+            if (nodeId == null) {
+                setNodeId(null);
+            }
+            negativeCache = NegativeCache.create(negativeCacheType, negativeCacheSize, 
+                    negativeCacheTime * 1000L);
+            if (bufferPoolSize > 0) {
+                bufferPool = new BufferPool(bufferPoolSize * 1024L * 1024L);
+            }
+            if (isCheckpointEnabled()) {
+                checkpointFlusher = new CheckpointFlusher(this, stickyCheckpointTime * 1000L);
+                checkpointFlusher.start();
+            }
+            if (isLeaseEnabled()) {
+                leaseRenewer = new LeaseRenewer(this, lockLease * 1000L);
+                leaseRenewer.start();
+            }
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error initiliazing spymemcached client...", e);
             initialized = false;
@@ -802,6 +1584,27 @@ public class CouchbaseManager extends StandardManager {
     public void destroy() {
         log.fine("CouchbaseManager.destroy: init");
         super.destroy();
+        if (client.isDurabilityRequired() && log.isLoggable(Level.FINE)) {
+            for (OperationType type : OperationType.values()) {
+                log.log(Level.FINE, "CouchbaseManager.destroy: durability lag {0} {1}", 
+                        new Object[]{type, client.getDurabilityHistogram(type)});
+            }
+        }
+        if (checkpointFlusher != null) {
+            checkpointFlusher.shutdown();
+            log.log(Level.FINE, "CouchbaseManager.destroy: checkpoint backlog={0} maxStaleness={1}", 
+                    new Object[]{getCheckpointBacklog(), getCheckpointMaxStaleness()});
+        }
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdown();
+        }
+        if (compressionThreshold > 0) {
+            log.log(Level.FINE, "CouchbaseManager.destroy: compression {0}", client.getTranscoder());
+        }
+        if (bufferPool != null) {
+            log.log(Level.FINE, "CouchbaseManager.destroy: buffer pool {0}", bufferPool);
+        }
+        log.log(Level.FINE, "CouchbaseManager.destroy: stats {0}", stats);
         // stop the spymemcached client
         client.shutdown();
         log.fine("CouchbaseManager.destroy: exit");
@@ -819,6 +1622,10 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.stop: init {0}", isShutdown);
         // do not delete sessions on stop, sessions deleted against couchbase too
         // I am not removing them even in undeployment
+        if (checkpointFlusher != null) {
+            // deferred saves are written before losing the sessions (busy ones too)
+            checkpointFlusher.flush(true, true, true);
+        }
         clearSessions();
         super.stop(isShutdown);
         log.fine("CouchbaseManager.stop: exit");
@@ -836,10 +1643,38 @@ public class CouchbaseManager extends StandardManager {
      * @return The object read from couchbase
      */
     public Object getAttributeValue(CouchbaseWrapperSession session, String reference) {
+        byte[] value = getAttributeBytes(session, reference);
+        return (value == null)? null : this.transcoder.deserialize(value);
+    }
+    
+    /**
+     * Extra method to read the serialized value of an external attribute
+     * synchronously (the prefetched value is used if it exists). If error
+     * the session is marked and IllegalState is thrown.
+     * @param session The session 
+     * @param reference The reference of the external attribute
+     * @return The serialized object read from couchbase or null if not found
+     */
+    public byte[] getAttributeBytes(CouchbaseWrapperSession session, String reference) {
+        BulkGetRequest prefetch = session.getPrefetch();
+        if (prefetch != null && prefetch.contains(reference)) {
+            // the reference was prefetched => use the multi-get values
+            byte[] value = prefetch.getValue(reference, client.getTimeout());
+            if (!prefetch.isFailed()) {
+                stats.incrementPrefetchHits();
+                if (value == null) {
+                    log.log(Level.FINE, "The reference {0} is not found", reference);
+                }
+                return value;
+            }
+            log.log(Level.FINE, "The prefetch failed, reading the reference {0}", reference);
+        }
+        if (attrPrefetch) {
+            stats.incrementPrefetchMisses();
+        }
         ClientResult res = client.getsSync(reference);
         if (res.isSuccess()) {
-            Object result = this.transcoder.deserialize(res.getValue());
-            return result;
+            return res.getValue();
         } else if (res.isNotFound()) {
             log.log(Level.FINE, "The reference {0} is not found", reference);
             return null;
@@ -851,6 +1686,18 @@ public class CouchbaseManager extends StandardManager {
         }
     }
     
+    /**
+     * Extra method to launch a multi-get of several external attributes.
+     * The request is not waited, getAttributeValue uses the values if
+     * the reference was prefetched.
+     * @param references The references of the external attributes
+     * @return The multi-get request
+     */
+    public BulkGetRequest prefetchAttributeValues(Collection<String> references) {
+        stats.addPrefetched(references.size());
+        return client.getBulkAsync(references);
+    }
+    
     /**
      * Extra method to delete an external attribute syncronously. If error
      * the session is marked as ERROR and IllegalState is returned.
@@ -880,8 +1727,17 @@ public class CouchbaseManager extends StandardManager {
     public CouchbaseWrapperSession doSessionLoad(CouchbaseWrapperSession session, SessionMemStatus expected) {
         log.log(Level.FINE, "CouchbaseManager.doSessionLoad(Session,SessionMemStatus): init {0} {1}", 
                 new Object[]{session.toString(), expected});
-        // wait previous execution if exists
-        session.waitOnExecution();
+        if (this.isPipelining() && !SessionMemStatus.ERROR.equals(session.getMemStatus())
+                && !session.localHasExpired()) {
+            // the memory session is the good one => the previous save can continue
+            if (session.isSaveInFlight()) {
+                log.fine("Pipelining the request with the previous save");
+                stats.incrementPipelinedLoads();
+            }
+        } else {
+            // wait previous execution if exists
+            session.waitOnExecution();
+        }
         if (expected.equals(session.getMemStatus()) && !session.localHasExpired()) {
             // during the waiting another thread has achieved the desired state
             log.fine("The session is already at the desired state");
@@ -895,43 +1751,163 @@ public class CouchbaseManager extends StandardManager {
         } else {
             // if non-sticky or there's an error in background operation => force a read from couchbase
             ClientResult res;
-            if (expected.isLocked() && !this.isSticky()) {
-                res = client.getAndLockSync(session.getId(), this.lockTime);
+            session.setOptimistic(false);
+            if (expected.isLocked() && this.isOwnerCurrent(session)) {
+                // this node saved the session last and nobody modified it
+                log.fine("Owner of the session => using the local copy");
+                stats.incrementOwnerHits();
+                session.setCas(session.getOwnerCas());
+                session.setOptimistic(true);
+                session.setMemStatus(expected);
+                log.log(Level.FINE, "CouchbaseManager.doSessionLoad(Session,SessionMemStatus): exit {0}", session.toString());
+                return session;
+            } else if (expected.isLocked() && this.isOptimistic(session)) {
+                // optimistic => read without lock, saved with the cas
+                log.fine("Optimistic mode => reading the session without lock");
+                res = client.getsSync(session.getId());
+                session.setOptimistic(true);
+            } else if (expected.isLocked() && !this.isSticky()) {
+                res = client.getAndLockSync(session.getId(), 
+                        this.isLeaseEnabled()? this.lockLease : this.lockTime);
             } else {
                 res = client.getsSync(session.getId());
             }
-            if (res.isSuccess()) {
-                log.fine("The session was in the repository, returning it");
-                byte[] loaded = res.getValue();
-                session.processFill(loaded, expected, res.getCas());
-            } else if (res.isNotFound()) {
-                // TODO: I don't know why sometimes "NOT_FOUND" and "Not Found"
-                //       is returned. Maybe I should try to check the result 
-                //       better or using other way.
-                log.fine("NOT_FOUND => session doesn't exist in the repo");
-                session.setCas(-1);
-                session.setMemStatus(SessionMemStatus.NOT_EXISTS);
-            } else if (res.isLockError()) {
-                log.fine("LOCK_ERROR => session exists but not read");
-                session.setCas(-1);
-                session.setMemStatus(SessionMemStatus.ALREADY_LOCKED);
-            } else {
-                session.setCas(-1);
-                session.setMemStatus(SessionMemStatus.ERROR);
-                IllegalStateException e = new IllegalStateException(res.getStatus().getMessage(), res.getException());
-                log.log(Level.SEVERE, "Error loading from the repo.", e);
-                throw e;
+            boolean locking = expected.isLocked() && !this.isSticky() && !session.isOptimistic();
+            switch (res.getCode()) {
+                case SUCCESS:
+                    log.fine("The session was in the repository, returning it");
+                    byte[] loaded = res.getValue();
+                    session.processFill(loaded, expected, res.getCas());
+                    if (locking) {
+                        this.lockAcquired(session, true);
+                    }
+                    break;
+                case NOT_FOUND:
+                    log.fine("NOT_FOUND => session doesn't exist in the repo");
+                    session.setCas(-1);
+                    session.setMemStatus(SessionMemStatus.NOT_EXISTS);
+                    if (locking) {
+                        this.lockAcquired(session, false);
+                    }
+                    break;
+                case LOCKED:
+                    log.fine("LOCK_ERROR => session exists but not read");
+                    session.startLockWait(System.currentTimeMillis());
+                    session.setCas(-1);
+                    session.setMemStatus(SessionMemStatus.ALREADY_LOCKED);
+                    break;
+                default:
+                    session.setCas(-1);
+                    session.setMemStatus(SessionMemStatus.ERROR);
+                    IllegalStateException e = new IllegalStateException(res.getStatus().getMessage(), res.getException());
+                    log.log(Level.SEVERE, "Error loading from the repo.", e);
+                    throw e;
             }
         }
         log.log(Level.FINE, "CouchbaseManager.doSessionLoad(Session,SessionMemStatus): exit {0}", session.toString());
         return session;
     }
     
+    /**
+     * The session was locked in couchbase (non-sticky LOCK mode). The time
+     * waited for the lock of other servers is counted and the lease is
+     * registered to be renewed if enabled.
+     * @param session The session locked
+     * @param found The session exists in couchbase (a missing session has no lease)
+     */
+    private void lockAcquired(CouchbaseWrapperSession session, boolean found) {
+        long now = System.currentTimeMillis();
+        long waited = session.endLockWait(now);
+        if (waited > 0L) {
+            stats.incrementLockWaits();
+            stats.addLockWaitTime(waited);
+        }
+        if (found && leaseRenewer != null) {
+            session.startLease(now);
+            leaseRenewer.add(session);
+        }
+    }
+    
+    /**
+     * The request of the session finished, the lease is not renewed anymore.
+     * @param session The session
+     */
+    private void endLease(CouchbaseWrapperSession session) {
+        if (session.endLease() && leaseRenewer != null) {
+            leaseRenewer.remove(session.getId());
+        }
+    }
+    
+    /**
+     * Renews the lease of a session. Couchbase cannot extend a lock so the
+     * session is unlocked and locked again, the new cas is assigned to the
+     * session. It is called by the LeaseRenewer once the renewal is started
+     * in the session (see startRenewal), both operations are async and
+     * chained (no thread or session monitor is held while they are in 
+     * flight). If the renewal fails the lease is lost (the final CAS will 
+     * fail and the changes will be merged). Another server can save the 
+     * session between the unlock and the lock, so the document returned by 
+     * the lock is compared with the loaded one: if it changed the new lock 
+     * is released and the old cas is maintained (the lease is lost).
+     * @param session The session to renew
+     */
+    public void doSessionRenew(final CouchbaseWrapperSession session) {
+        log.log(Level.FINE, "CouchbaseManager.doSessionRenew(Session): init {0}", session.toString());
+        final String id = session.getId();
+        client.unlockAsync(id, session.getCas(), new ExecOnCompletion() {
+            @Override
+            public void execute(ClientResult res) {
+                if (!res.isSuccess()) {
+                    renewFinished(session, res, null);
+                    return;
+                }
+                client.getAndLockAsync(id, lockLease, new ExecOnCompletion() {
+                    @Override
+                    public void execute(ClientResult res) {
+                        String message = null;
+                        if (res.isSuccess() && !session.isStoredUnchanged(res.getValue())) {
+                            client.unlockAsync(id, res.getCas(), null);
+                            message = "saved by other server during the renewal";
+                        }
+                        renewFinished(session, res, message);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * The renewal of the lease finished, the session is updated and the 
+     * lease is removed from the renewer if lost.
+     * @param session The session renewed
+     * @param res The result of the last operation of the renewal
+     * @param message The message if the lease was lost in spite of the result
+     */
+    private void renewFinished(CouchbaseWrapperSession session, ClientResult res, String message) {
+        if (res.isSuccess() && message == null) {
+            session.endRenewal(true, res.getCas(), System.currentTimeMillis());
+            stats.incrementLeaseRenewals();
+        } else {
+            log.log(Level.WARNING, "The lease of the session {0} was lost: {1}", 
+                    new Object[]{session.getId(), 
+                        (message != null)? message : res.getStatus().getMessage()});
+            stats.incrementLeasesLost();
+            session.endRenewal(false, -1L, System.currentTimeMillis());
+            if (leaseRenewer != null) {
+                leaseRenewer.remove(session.getId());
+            }
+        }
+    }
+    
     /**
      * Performs a session save using the CAS. The session is saved and touched
      * (expiration is refreshed), the method uses a bulk operation that is
      * filled in the processSave and then the final CAS (non-sticky) or SET
-     * (sticky).
+     * (sticky). If only the access times were changed the final operation
+     * is a TOUCH (sticky) or an UNLOCK plus TOUCH (non-sticky). Sessions 
+     * loaded in optimistic mode are not locked, so a TOUCH is enough. If 
+     * the final CAS fails cos another server saved the session meanwhile,
+     * the changes are merged over the stored session and the CAS retried.
      * @param session The session to save.
      * @param exec If not null the method is executed asynchronously
      */
@@ -939,26 +1915,27 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.doSessionSave(Session,ExecOnCompletion): init {0} {1}", 
                 new Object[]{session.toString(), exec});
         session.waitOnExecution();
+        this.endLease(session);
         // save the session inside reposiroty
         ClientResult res = null;
         BulkClientRequest bulk = client.createBulk();
         byte[] sesSerialized = session.processSave(client, bulk);
-        if (isSticky()) {
-            if (exec == null) {
-                res = client.finishSetSync(bulk, session.getId(), 
-                        sesSerialized, this.getMaxInactiveIntervalWithExtra());
-            } else {
-                client.finishSetAsync(bulk, session.getId(), 
-                        sesSerialized, this.getMaxInactiveIntervalWithExtra(), exec);
-            }
+        if (session.isTouchOnly()) {
+            // only access times changed => touch is enough
+            stats.incrementTouchOnlySaves();
+            stats.addBytesSaved(sesSerialized.length);
+        }
+        if (exec == null) {
+            res = finishSaveSync(bulk, session, sesSerialized, session.getChanges(),
+                    session.getCas(), session.isTouchOnly(), session.isOptimistic());
         } else {
-            if (exec == null) {
-                res = client.waitAndFinishCasSync(bulk, session.getId(), 
-                        sesSerialized, session.getCas(), this.getMaxInactiveIntervalWithExtra());
-            } else {
-                client.waitAndFinishCasAsync(bulk, session.getId(), 
-                        sesSerialized, session.getCas(), this.getMaxInactiveIntervalWithExtra(), exec);
-            }
+            String id = session.getId();
+            CachedData data = session.isTouchOnly()? null : client.encode(sesSerialized);
+            ExecOnCompletion fexec = isSticky()? exec :
+                    new MergeSaveComplete(this, client, session, id, sesSerialized, session.getChanges(), 
+                    this.getMaxInactiveIntervalWithExtra(), exec);
+            finishSaveAsync(bulk, id, data, session.getCas(), session.isTouchOnly(), 
+                    session.isOptimistic(), fexec);
         }
         if (res != null) {
             if (!res.isSuccess()) {
@@ -980,6 +1957,7 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.doSessionDeleteInternal(Session): init {0}",
                 session.toString());
         session.waitOnExecution();
+        this.endLease(session);
         ClientResult res;
         if (this.isSticky()) {
             res = client.deleteSync(session.getId());
@@ -998,6 +1976,132 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.doSessionDeleteInternal(Session,ExecOnCompletion): exit");
     }
     
+    /**
+     * Finishes the bulk of a save synchronously. The final operation is a 
+     * SET or TOUCH (sticky) or a CAS or UNLOCK plus TOUCH (non-sticky).
+     * In optimistic mode a TOUCH is used. If the CAS returns EXISTS the 
+     * session is read again, the changes are merged and the CAS retried.
+     * @param bulk The bulk filled by processSave
+     * @param session The session saved
+     * @param data The serialized session
+     * @param changes The changes of the request to merge
+     * @param cas The cas of the session (non-sticky)
+     * @param touchOnly If only the access times were modified
+     * @param optimistic If the session was loaded in optimistic mode
+     * @return The result of the bulk
+     */
+    private ClientResult finishSaveSync(BulkClientRequest bulk, CouchbaseWrapperSession session, 
+            byte[] data, SessionChanges changes, long cas, boolean touchOnly, boolean optimistic) {
+        String id = session.getId();
+        ClientResult res;
+        int attempts = 0;
+        if (isSticky() && touchOnly) {
+            return client.finishTouchSync(bulk, id, this.getMaxInactiveIntervalWithExtra());
+        } else if (isSticky()) {
+            return client.finishSetSync(bulk, id, data, this.getMaxInactiveIntervalWithExtra());
+        } else if (optimistic && touchOnly) {
+            // not locked => just touch
+            res = client.finishTouchSync(bulk, id, this.getMaxInactiveIntervalWithExtra());
+        } else if (touchOnly) {
+            // the lock is released with an unlock and then the session is touched
+            res = client.waitAndFinishUnlockTouchSync(bulk, id, cas, 
+                    this.getMaxInactiveIntervalWithExtra());
+        } else {
+            res = client.waitAndFinishCasSync(bulk, id, data, cas, 
+                    this.getMaxInactiveIntervalWithExtra());
+            while (res.isExists()) {
+                // another server saved the session => read, merge and retry
+                if (optimistic) {
+                    stats.incrementOptimisticConflicts();
+                    if (session.conflict(this.optimisticFallback)) {
+                        stats.incrementLockFallbacks();
+                    }
+                }
+                if (changes == null || attempts >= this.optimisticRetries) {
+                    break;
+                }
+                attempts++;
+                ClientResult reloaded = client.getsSync(id);
+                if (!reloaded.isSuccess()) {
+                    res = reloaded;
+                    break;
+                } else if (reloaded.getCas() <= 0) {
+                    // locked by other server => no valid cas to merge over
+                    break;
+                }
+                byte[] merged;
+                try {
+                    merged = changes.merge(data, reloaded.getValue(), mergePolicy, stats);
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Error merging the session " + id, e);
+                    break;
+                }
+                stats.incrementOptimisticRetries();
+                res = client.casSync(id, merged, reloaded.getCas(), 
+                        this.getMaxInactiveIntervalWithExtra());
+            }
+        }
+        if (res.isSuccess()) {
+            session.conflictFree();
+        }
+        this.deleteObsoleteReferences(changes, res);
+        if (isOwnerMode()) {
+            session.saveCompleted(res, attempts > 0);
+        }
+        return res;
+    }
+    
+    /**
+     * Deletes the external references that are not used anymore once the
+     * final result of a non-sticky save is known (see SessionChanges). 
+     * Nothing is deleted if the result is unknown (timeout, error), the 
+     * references will expire. The deletes are async and not waited.
+     * @param changes The changes of the request
+     * @param res The final result of the save
+     */
+    protected void deleteObsoleteReferences(SessionChanges changes, ClientResult res) {
+        if (changes == null || !(res.isSuccess() || res.isExists())) {
+            return;
+        }
+        for (String reference : changes.getObsoleteReferences(res.isSuccess(), getTranscoder())) {
+            log.log(Level.FINE, "Deleting obsolete attribute reference {0}", reference);
+            client.deleteAsync(reference, null);
+        }
+    }
+    
+    /**
+     * Finishes the bulk of a save asynchronously. The final operation is a 
+     * SET or TOUCH (sticky) or a CAS or UNLOCK plus TOUCH (non-sticky).
+     * In optimistic mode a TOUCH is used (the exec of a CAS merges and
+     * retries it).
+     * @param bulk The bulk filled by processSave
+     * @param id The id of the session
+     * @param data The session already encoded (null if touch only)
+     * @param cas The cas of the session (non-sticky)
+     * @param touchOnly If only the access times were modified
+     * @param optimistic If the session was loaded in optimistic mode
+     * @param exec The exec to execute when the bulk finishes
+     */
+    private void finishSaveAsync(BulkClientRequest bulk, String id, 
+            CachedData data, long cas, boolean touchOnly, boolean optimistic, 
+            ExecOnCompletion exec) {
+        if (isSticky() && touchOnly) {
+            client.finishTouchAsync(bulk, id, this.getMaxInactiveIntervalWithExtra(), exec);
+        } else if (isSticky()) {
+            client.finishSetAsync(bulk, id, data, this.getMaxInactiveIntervalWithExtra(), exec);
+        } else if (optimistic && touchOnly) {
+            // not locked => just touch
+            client.finishTouchAsync(bulk, id, this.getMaxInactiveIntervalWithExtra(), exec);
+        } else if (touchOnly) {
+            // the lock is released with an unlock and then the session is touched
+            client.waitAndFinishUnlockTouchAsync(bulk, id, cas, 
+                    this.getMaxInactiveIntervalWithExtra(), exec);
+        } else {
+            client.waitAndFinishCasAsync(bulk, id, data, cas, 
+                    this.getMaxInactiveIntervalWithExtra(), exec);
+        }
+    }
+    
     /**
      * Deletes a session from the couchbase server. The deletion is done with
      * a bulk operation that deletes all the external attributes and then the
@@ -1009,6 +2113,7 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.doSessionDelete(Session,ExecOnCompletion): init {0} {1}", 
                 new Object[]{session.toString(), exec});
         session.waitOnExecution();
+        this.endLease(session);
         ClientResult res = null;
         BulkClientRequest bulk = client.createBulk();
         session.processDelete(client, bulk);
@@ -1049,6 +2154,7 @@ public class CouchbaseManager extends StandardManager {
         log.log(Level.FINE, "CouchbaseManager.doSessionUnlock(Session,ExecOnCompletion): init {0} {1}", 
                 new Object[]{session.toString(), exec});
         session.waitOnExecution();
+        this.endLease(session);
         ClientResult res = null;
         if (exec == null) {
             res = client.unlockSync(session.getId(), session.getCas());
@@ -37,9 +37,12 @@ package es.rickyepoderi.couchbasemanager.session;
 
 import com.sun.web.security.RealmAdapter;
 import es.rickyepoderi.couchbasemanager.couchbase.BulkClientRequest;
+import es.rickyepoderi.couchbasemanager.couchbase.BulkGetRequest;
 import es.rickyepoderi.couchbasemanager.couchbase.Client;
 import es.rickyepoderi.couchbasemanager.couchbase.ClientResult;
+import es.rickyepoderi.couchbasemanager.couchbase.OperationType;
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.Digest;
 import es.rickyepoderi.couchbasemanager.io.ReferenceObject;
 import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
 import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
@@ -152,6 +155,23 @@ public class CouchbaseWrapperSession extends StandardSession {
      */
     protected static final Logger log = Logger.getLogger(CouchbaseWrapperSession.class.getName());
     
+    /**
+     * Initial backoff in ms when the session is locked by other server.
+     */
+    protected static final long LOCK_BACKOFF_INITIAL = 10L;
+    
+    /**
+     * Maximum backoff in ms when the session is locked by other server.
+     */
+    protected static final long LOCK_BACKOFF_MAX = 500L;
+    
+    /**
+     * Marker written after the access times when the owner stamp is present
+     * (the old format has the username there, and a string length is
+     * never less than -1).
+     */
+    public static final int OWNER_MARK = -2;
+    
     /**
      * Glassfish declared the principal as transient, so the principal
      * is lost when serializing/de-serializing the session. Store the username
@@ -187,6 +207,64 @@ public class CouchbaseWrapperSession extends StandardSession {
      */
     protected transient Set<String> deletedAttributes = null;
     
+    /**
+     * Names of the attributes removed in the request (non-sticky merge).
+     */
+    protected transient Set<String> removedAttributes = null;
+    
+    /**
+     * References of the external attributes removed or replaced in the 
+     * request (non-sticky), they are deleted when the save result is known.
+     */
+    protected transient Map<String,String> replacedReferences = null;
+    
+    /**
+     * Digests of the attributes when the session was loaded (non-sticky).
+     */
+    protected transient Map<String,Long> loadedDigests = null;
+    
+    /**
+     * Changes of the last processSave to merge them if the CAS fails.
+     */
+    protected transient SessionChanges changes = null;
+    
+    /**
+     * Time of the last lock or renewal of the lease (0 no lease).
+     */
+    protected transient long leaseStart = 0L;
+    
+    /**
+     * A renewal of the lease is in flight (the cas cannot be used).
+     */
+    protected transient boolean renewing = false;
+    
+    /**
+     * Time of the first ALREADY_LOCKED while trying to lock (0 no wait).
+     */
+    protected transient long lockWaitStart = 0L;
+    
+    /**
+     * A thread of this server is polling couchbase for the lock, the rest 
+     * of the threads wait for it.
+     */
+    protected transient boolean lockPolling = false;
+    
+    /**
+     * The node that saved the session (owner stamp).
+     */
+    protected transient String owner = null;
+    
+    /**
+     * Generation of the session (number of saves).
+     */
+    protected transient long generation = 0L;
+    
+    /**
+     * The cas of the last save done by this node (OWNER mode). If the 
+     * session in couchbase still has this cas the local copy is valid.
+     */
+    protected transient long ownerCas = -1L;
+    
     /**
      * All the attributes have some information used mainly to know if it
      * should be externalized and to store the serialized object
@@ -199,6 +277,76 @@ public class CouchbaseWrapperSession extends StandardSession {
      */
     protected transient long usageTimes = 0;
     
+    /**
+     * The multi-get of the external attributes launched when the session
+     * was filled (only if attrPrefetch is set).
+     */
+    protected transient BulkGetRequest prefetch = null;
+    
+    /**
+     * Digest of the session body stored in couchbase (without the
+     * access times), known after a fill or a full write.
+     */
+    protected transient long bodyDigest = 0L;
+    
+    /**
+     * Length of the session body stored (-1 unknown).
+     */
+    protected transient int bodyLength = -1;
+    
+    /**
+     * The thisAccessedTime stored in couchbase with the body.
+     */
+    protected transient long storedAccessedTime = 0L;
+    
+    /**
+     * The last processSave detected that only a touch is needed.
+     */
+    protected transient boolean touchOnly = false;
+    
+    /**
+     * Number of requests with a deferred save (sticky checkpoint mode).
+     */
+    protected transient int pendingRequests = 0;
+    
+    /**
+     * Timestamp of the first deferred save (0 if nothing is pending).
+     */
+    protected transient long pendingSince = 0L;
+    
+    /**
+     * The next save cannot be deferred (authentication for example).
+     */
+    protected transient boolean checkpointForced = false;
+    
+    /**
+     * A save was collapsed behind the save in flight (sticky pipelining).
+     */
+    protected transient boolean pendingSave = false;
+    
+    /**
+     * The save in flight failed while a pipelined request was using the
+     * session, the error is set at the end of the request.
+     */
+    protected transient boolean saveFailed = false;
+    
+    /**
+     * The session was read without lock (optimistic mode), it is saved
+     * with the CAS obtained in the gets.
+     */
+    protected transient boolean optimistic = false;
+    
+    /**
+     * Consecutive CAS conflicts in optimistic mode.
+     */
+    protected transient int conflicts = 0;
+    
+    /**
+     * Saves to do in LOCK mode before returning to optimistic (the session
+     * has too many conflicts).
+     */
+    protected transient int fallbackSaves = 0;
+    
     //
     // CONSTRUCTORS
     //
@@ -215,6 +363,9 @@ public class CouchbaseWrapperSession extends StandardSession {
         this.mstatus = SessionMemStatus.NOT_LOADED;
         this.numForegroundLocks = 0;
         this.deletedAttributes = new HashSet<String>();
+        this.removedAttributes = new HashSet<String>();
+        this.replacedReferences = new HashMap<String,String>();
+        this.loadedDigests = new HashMap<String,Long>();
         this.attrInfos = new ConcurrentHashMap<String, AttributeInfo>();
         this.usageTimes = 0;
         log.log(Level.FINE, "CouchbaseWrapperSession.constructor(Manager): init {0}", manager);
@@ -288,30 +439,44 @@ public class CouchbaseWrapperSession extends StandardSession {
         return this.deletedAttributes.toArray(new String[0]);
     }
     
+    /**
+     * Getter for the multi-get of the external attributes launched when
+     * the session was filled.
+     * @return The prefetch request or null
+     */
+    synchronized public BulkGetRequest getPrefetch() {
+        return this.prefetch;
+    }
+    
     /**
      * Clears the request and the attributes if session is non-sticky. If the
      * operation was an error the session is marked to ERROR and the next
      * time session is re-read (no matter sticky or non-sticky). This method
-     * is called after an async save, touch or delete.
+     * is called after an async save, touch or delete. With sticky pipelining
+     * a new request can be using the session, in that case nothing is
+     * cleared and the error is deferred to the end of the request. If a
+     * save was collapsed behind this one it is launched now.
      * Finally the notifyAll of the session is called to continue if some
      * other thread was waiting.
      * @param res The result of the operation in the background
      */
     synchronized public void clearRequestAndNotify(ClientResult res) {
         log.log(Level.FINE, "CouchbaseWrapperSession.clearRequest(): init/exit {0}", res);
+        // a pipelined request can be using the session => references are not cleared
+        boolean pipelined = ((CouchbaseManager) manager).isPipelining() && this.isLocked();
         // clear attribute info values if non-sticky
         for (Map.Entry<String, AttributeInfo> entry : this.attrInfos.entrySet()) {
             AttributeInfo ai = entry.getValue();
             // non-sticky clear the values for all the attributes
             // sticky only for ReferenceObjects
             // references are maintained for expiration
-            if (!((CouchbaseManager) manager).isSticky()) {
+            if (!((CouchbaseManager) manager).isKeepLocal()) {
                 // non-sticky clear all values maintaining references, take care
                 // with non deserialized values
                 if (ai.getValue() != null) {
                     ai.setValue(null);
                 }
-            } else if (ai.isReference()) {
+            } else if (ai.isReference() && !pipelined) {
                 // sticky only delete externalized attributes but maintain serialized
                 // the value in real attributes is just the serialized to mark it
                 byte[] serialized = ai.getSerialized();
@@ -321,7 +486,7 @@ public class CouchbaseWrapperSession extends StandardSession {
             }
         }
         // if non-sticky clear all the values too
-        if (!((CouchbaseManager) manager).isSticky()) {
+        if (!((CouchbaseManager) manager).isKeepLocal()) {
             this.attributes.clear();
         }
         // set to error if some error has ocurred
@@ -329,9 +494,29 @@ public class CouchbaseWrapperSession extends StandardSession {
             log.log(Level.SEVERE, "Operation: {0}", res.getType());
             log.log(Level.SEVERE, "Error in the background operation. Marking the session to ERROR", 
                     new IllegalStateException(res.getStatus().getMessage(), res.getException()));
-            setMemStatus(SessionMemStatus.ERROR);
+            if (pipelined) {
+                // the status is set when the pipelined request finishes
+                ((CouchbaseManager) manager).getStats().incrementDeferredSaveErrors();
+                this.saveFailed = true;
+            } else {
+                setMemStatus(SessionMemStatus.ERROR);
+            }
+            this.resetBodyDigest();
+            // the collapsed save is discarded, session will be re-read
+            this.pendingSave = false;
+        } else if (OperationType.DELETE.equals(res.getType())) {
+            // the session was deleted => nothing to save
+            this.pendingSave = false;
+            this.ownerCas = -1L;
         }
         this.inReq = false;
+        if (this.pendingSave && !pipelined) {
+            // launch the save that was collapsed behind this one
+            log.fine("Launching the collapsed save");
+            this.pendingSave = false;
+            ((CouchbaseManager) manager).doSessionSave(this, new OperationComplete(this));
+            this.inReq = true;
+        }
         this.notifyAll();
     }
     
@@ -347,7 +532,14 @@ public class CouchbaseWrapperSession extends StandardSession {
      */
     synchronized protected void clear() {
         this.cas = -1;
-        setMemStatus(SessionMemStatus.NOT_LOADED);
+        this.clearPrefetch();
+        if (this.saveFailed) {
+            // a previous save failed during the request => force a re-read
+            this.saveFailed = false;
+            setMemStatus(SessionMemStatus.ERROR);
+        } else {
+            setMemStatus(SessionMemStatus.NOT_LOADED);
+        }
     }
     
     /**
@@ -361,15 +553,105 @@ public class CouchbaseWrapperSession extends StandardSession {
     synchronized protected void doSave() {
         if (this.isLocked()) {
             log.log(Level.FINE, "CouchbaseWrapperSession.doSave(): init");
-            // session saved if modified or long time not accessed
-            ((CouchbaseManager) manager).doSessionSave(this,
-                    new OperationComplete(this));
-            this.inReq = true;
+            if (this.isCheckpointDeferred()) {
+                // sticky checkpoint mode => the save is done later
+                log.log(Level.FINE, "Save deferred to the next checkpoint {0}", this.pendingRequests);
+                if (this.pendingRequests == 0) {
+                    this.pendingSince = System.currentTimeMillis();
+                }
+                this.pendingRequests++;
+                ((CouchbaseManager) manager).getStats().incrementDeferredSaves();
+                ((CouchbaseManager) manager).addPendingCheckpoint(this);
+            } else if (this.inReq && ((CouchbaseManager) manager).isPipelining()) {
+                // a save is in flight => launched when it finishes
+                log.fine("Save collapsed behind the save in flight");
+                ((CouchbaseManager) manager).getStats().incrementCollapsedSaves();
+                this.pendingSave = true;
+                this.resetCheckpoint();
+            } else {
+                // session saved if modified or long time not accessed
+                // (a collapsed save not launched yet is included in this one)
+                this.pendingSave = false;
+                ((CouchbaseManager) manager).doSessionSave(this,
+                        new OperationComplete(this));
+                this.inReq = true;
+                this.resetCheckpoint();
+            }
         }
         // clear transient vars
         this.clear();
     }
     
+    /**
+     * Checks if the save can be deferred (sticky checkpoint mode). The save
+     * is deferred if the checkpoint mode is enabled, it is not forced and
+     * neither the number of requests nor the time since the first deferred 
+     * save reached the checkpoint limits.
+     * @return true if the save should be deferred
+     */
+    private boolean isCheckpointDeferred() {
+        CouchbaseManager m = (CouchbaseManager) manager;
+        return m.isCheckpointEnabled()
+                && !this.checkpointForced
+                && SessionMemStatus.FOREGROUND_LOCK.equals(this.mstatus)
+                && this.pendingRequests + 1 < m.getStickyCheckpointRequests()
+                && (this.pendingRequests == 0 
+                    || System.currentTimeMillis() - this.pendingSince < m.getStickyCheckpointTime() * 1000L);
+    }
+    
+    /**
+     * Nothing is pending to be saved (the session was saved, loaded again
+     * or deleted). The session is removed from the flusher.
+     */
+    synchronized protected void resetCheckpoint() {
+        this.pendingRequests = 0;
+        this.pendingSince = 0L;
+        this.checkpointForced = false;
+        ((CouchbaseManager) manager).removePendingCheckpoint(this.id);
+    }
+    
+    /**
+     * Return the time since the first deferred save.
+     * @param now The current time
+     * @return The staleness in ms of the session in couchbase (0 if nothing pending)
+     */
+    synchronized public long getStaleness(long now) {
+        return (this.pendingRequests > 0)? now - this.pendingSince : 0L;
+    }
+    
+    /**
+     * Saves the session if there is a deferred save. The method is called by
+     * the flusher so locked sessions (in a request) or sessions with a save
+     * in flight are skipped. If forced (the manager is stopping) the save
+     * in flight is waited and the session is saved even if it is locked.
+     * @param sync Save synchronously
+     * @param force Wait for the save in flight and do not skip locked sessions
+     * @return true if the session was saved, false if skipped
+     */
+    synchronized public boolean checkpoint(boolean sync, boolean force) {
+        if (force) {
+            this.waitOnExecution();
+        } else if (this.isLocked() || this.inReq) {
+            log.log(Level.FINE, "Busy session skipped in checkpoint {0}", this.id);
+            return false;
+        }
+        boolean saved = false;
+        if (this.pendingRequests > 0 
+                && !SessionMemStatus.ERROR.equals(this.mstatus)
+                && !SessionMemStatus.NOT_EXISTS.equals(this.mstatus)) {
+            log.log(Level.FINE, "Checkpoint of the session {0}", this.id);
+            if (sync) {
+                ((CouchbaseManager) manager).doSessionSave(this, null);
+            } else {
+                ((CouchbaseManager) manager).doSessionSave(this, new OperationComplete(this));
+                this.inReq = true;
+            }
+            saved = true;
+        }
+        this.resetCheckpoint();
+        return saved;
+    }
+    
     /**
      * Reaload the session from the couchbase repo. The lock parameter 
      * establish if it is a normal refresh or a locked one. The 
@@ -382,6 +664,150 @@ public class CouchbaseWrapperSession extends StandardSession {
         ((CouchbaseManager) manager).doSessionLoad(this, expected);
     }
     
+    /**
+     * Return if there is an async operation in flight for the session.
+     * @return true if a save, touch or delete has not finished yet
+     */
+    synchronized public boolean isSaveInFlight() {
+        return this.inReq;
+    }
+    
+    /**
+     * Return if the session was loaded in optimistic mode (gets without lock).
+     * @return true if the session is saved using the CAS of the gets
+     */
+    synchronized public boolean isOptimistic() {
+        return this.optimistic;
+    }
+    
+    /**
+     * Set if the session was loaded in optimistic mode.
+     * @param optimistic The new optimistic value
+     */
+    synchronized public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+    
+    /**
+     * Return if the session fell back to LOCK mode after too many conflicts.
+     * @return true if the session should be locked
+     */
+    synchronized public boolean isLockFallback() {
+        return this.fallbackSaves > 0;
+    }
+    
+    /**
+     * A CAS conflict happened saving the session in optimistic mode. When 
+     * the number of consecutive conflicts reaches fallback the session is 
+     * locked for the next fallback saves.
+     * @param fallback The conflicts to fall back to LOCK mode
+     * @return true if the session falls back to LOCK mode now
+     */
+    synchronized public boolean conflict(int fallback) {
+        this.conflicts++;
+        if (fallback > 0 && this.conflicts >= fallback) {
+            this.conflicts = 0;
+            this.fallbackSaves = fallback;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * The session was saved without conflict. In optimistic mode the 
+     * conflicts are reset, in LOCK mode a fallback save is consumed.
+     */
+    synchronized public void conflictFree() {
+        if (this.optimistic) {
+            this.conflicts = 0;
+        } else if (this.fallbackSaves > 0) {
+            this.fallbackSaves--;
+        }
+    }
+    
+    /**
+     * The session was locked with a lease (or the lease renewed).
+     * @param now The current time
+     */
+    synchronized public void startLease(long now) {
+        this.leaseStart = now;
+    }
+    
+    /**
+     * The request finished, the lease is not renewed anymore. If a renewal
+     * is in flight the method waits for it (the cas changes).
+     * @return true if the session had a lease
+     */
+    synchronized public boolean endLease() {
+        while (this.renewing) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                // the renewing flag is rechecked
+            }
+        }
+        boolean leased = this.leaseStart > 0L;
+        this.leaseStart = 0L;
+        return leased;
+    }
+    
+    /**
+     * Starts the renewal of the lease if the interval has passed since the 
+     * last lock. The method is called by the lease renewer, the renewal is
+     * launched asynchronously outside the session monitor, the request
+     * cannot use the cas until it finishes (see endLease).
+     * @param now The current time
+     * @param interval The time in ms to renew the lease
+     * @return true if the renewal was started
+     */
+    synchronized public boolean startRenewal(long now, long interval) {
+        if (!this.renewing && this.leaseStart > 0L && now - this.leaseStart >= interval) {
+            this.renewing = true;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * The renewal of the lease finished. If renewed the new cas is assigned,
+     * if not the lease is lost and the old cas is maintained.
+     * @param renewed true if the session was locked again
+     * @param cas The new cas of the lock
+     * @param now The current time
+     */
+    synchronized public void endRenewal(boolean renewed, long cas, long now) {
+        if (renewed) {
+            this.cas = cas;
+            this.leaseStart = now;
+        } else {
+            this.leaseStart = 0L;
+        }
+        this.renewing = false;
+        this.notifyAll();
+    }
+    
+    /**
+     * The session was found locked by other server, the wait starts.
+     * @param now The current time
+     */
+    synchronized public void startLockWait(long now) {
+        if (this.lockWaitStart == 0L) {
+            this.lockWaitStart = now;
+        }
+    }
+    
+    /**
+     * The session was finally locked or the wait was abandoned (timeout or
+     * error). The start of the wait is reset.
+     * @param now The current time
+     * @return The time waited in ms (0 if the session was locked at first)
+     */
+    synchronized public long endLockWait(long now) {
+        long waited = (this.lockWaitStart > 0L)? now - this.lockWaitStart : 0L;
+        this.lockWaitStart = 0L;
+        return waited;
+    }
+    
     /**
      * Method that waits for a previous request to complete. Cos now save/touch
      * methods are asynchronously executed when accessing again to couchbase
@@ -441,8 +867,8 @@ public class CouchbaseWrapperSession extends StandardSession {
     @Override
     synchronized public boolean lockBackground() {
         log.fine("CouchbaseWrapperSession.lockBackground(): init");
-        if (isForegroundLocked()) {
-            // the session is foreground locked => false
+        if (isForegroundLocked() || this.lockPolling) {
+            // the session is foreground locked or being locked => false
             return false;
         }
         if (!isLocked()) {
@@ -478,8 +904,20 @@ public class CouchbaseWrapperSession extends StandardSession {
             return false;
         }
         if (!isLocked()) {
-            // session is first locked => load with lock
-            doLoad(SessionMemStatus.FOREGROUND_LOCK);
+            long deadline = System.currentTimeMillis() 
+                    + ((CouchbaseManager) manager).getOperationTimeout();
+            if (this.lockPolling) {
+                // another thread is polling for the lock => wait for it
+                ((CouchbaseManager) manager).getStats().incrementLockQueued();
+                waitUntil(deadline, true);
+                if (isBackgroundLocked()) {
+                    return false;
+                }
+            }
+            if (!isLocked()) {
+                // session is first locked => load with lock
+                acquireLock(deadline);
+            }
             if (SessionMemStatus.ALREADY_LOCKED.equals(this.mstatus)
                     || SessionMemStatus.ERROR.equals(this.mstatus)) {
                 // if blocked or error at reading try again
@@ -495,6 +933,63 @@ public class CouchbaseWrapperSession extends StandardSession {
         log.log(Level.FINE, "CouchbaseWrapperSession.lockForeground(): exit {0}", numForegroundLocks);
         return true;
     }
+    
+    /**
+     * Waits (releasing the monitor) until the time passes or, if polling is
+     * true, until the polling thread finishes.
+     * @param until The time to wait for
+     * @param polling Wait for the polling thread too
+     */
+    private void waitUntil(long until, boolean polling) {
+        long remaining = until - System.currentTimeMillis();
+        while (remaining > 0 && (!polling || this.lockPolling)) {
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                // re-checked in the loop
+            }
+            remaining = until - System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Loads the session with lock. If the session is locked by other server
+     * the load is retried with exponential backoff and jitter until the
+     * deadline (operationTimeout). Only one thread per server polls 
+     * couchbase, the rest of the threads that want to lock the session wait
+     * for it (lockPolling).
+     * @param deadline The time to give up
+     */
+    private void acquireLock(long deadline) {
+        doLoad(SessionMemStatus.FOREGROUND_LOCK);
+        if (!SessionMemStatus.ALREADY_LOCKED.equals(this.mstatus)) {
+            return;
+        }
+        ManagerStats stats = ((CouchbaseManager) manager).getStats();
+        this.lockPolling = true;
+        try {
+            long backoff = LOCK_BACKOFF_INITIAL;
+            while (SessionMemStatus.ALREADY_LOCKED.equals(this.mstatus)) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    log.log(Level.FINE, "Timeout waiting for the lock of {0}", this.id);
+                    stats.incrementLockTimeouts();
+                    return;
+                }
+                // jitter: sleep in [backoff/2, backoff] but not after the deadline
+                long sleep = backoff / 2 + (long) (Math.random() * (backoff / 2 + 1));
+                waitUntil(Math.min(now + sleep, deadline), false);
+                backoff = Math.min(backoff * 2, LOCK_BACKOFF_MAX);
+                stats.incrementLockRetries();
+                doLoad(SessionMemStatus.FOREGROUND_LOCK);
+            }
+        } finally {
+            // timeout or error => the wait is finished without the lock
+            this.endLockWait(System.currentTimeMillis());
+            this.lockPolling = false;
+            this.notifyAll();
+        }
+    }
 
     /**
      * Lock is released in couchbase. The lock is released and the session 
@@ -663,6 +1158,7 @@ public class CouchbaseWrapperSession extends StandardSession {
         }
         // assign new value to the attr
         ai.setValue(value);
+        this.unmarkRemoved(name);
         // always set the attribute in normal map
         super.setAttribute(name, value);
     }
@@ -670,7 +1166,8 @@ public class CouchbaseWrapperSession extends StandardSession {
     /**
      * Remove Attribute. The attribute is removed from the internal map
      * but if it is external the reference is added to the deletedAttributes
-     * property (they will be deleted later).
+     * property (they will be deleted later). In non-sticky mode the 
+     * reference is only deleted when the result of the save is known.
      * @param name The name of the attribute to remove
      * @param notify Should we notify interested listeners that this attribute 
      *        is being removed?
@@ -684,10 +1181,15 @@ public class CouchbaseWrapperSession extends StandardSession {
         log.log(Level.FINER, "removing name={0} attrInfo={1}", new Object[]{name, ai});
         if (ai != null) {
             if (ai.isReference()) {
-                addDeletedAttribute(ai.getReference());
+                if (((CouchbaseManager) manager).isSticky()) {
+                    addDeletedAttribute(ai.getReference());
+                } else {
+                    addReplacedReference(name, ai.getReference());
+                }
             }
             // remove in attrInfo
             this.attrInfos.remove(name);
+            this.markRemoved(name);
         }
         // remove in the normal map
         super.removeAttribute(name, notify, checkValid);
@@ -717,6 +1219,10 @@ public class CouchbaseWrapperSession extends StandardSession {
         if (principal != null) {
             this.username = principal.getName();
         }
+        synchronized (this) {
+            // authentication should reach couchbase in the next save
+            this.checkpointForced = true;
+        }
     }
     
     
@@ -752,6 +1258,60 @@ public class CouchbaseWrapperSession extends StandardSession {
         this.deletedAttributes.add(reference);
     }
     
+    /**
+     * Checks if the serialized value of an attribute is the same that was
+     * loaded from couchbase (non-sticky), this way an attribute that was 
+     * only read is not considered a change in the merge.
+     * @param name The name of the attribute
+     * @param digest The digest of the new serialized value
+     * @return true if the attribute was loaded with the same digest
+     */
+    private boolean isLoadedDigest(String name, long digest) {
+        Long loaded = this.loadedDigests.get(name);
+        return loaded != null && loaded.longValue() == digest;
+    }
+    
+    /**
+     * Method to add the old reference of an external attribute removed or
+     * replaced in a non-sticky session. If the attribute was already 
+     * replaced in this request the first (stored) reference is maintained
+     * and the intermediate one is deleted directly.
+     * @param name The name of the attribute
+     * @param reference The old reference of the attribute
+     */
+    synchronized private void addReplacedReference(String name, String reference) {
+        if (!this.replacedReferences.containsKey(name)) {
+            this.replacedReferences.put(name, reference);
+        } else if (!reference.equals(this.replacedReferences.get(name))) {
+            this.deletedAttributes.add(reference);
+        }
+    }
+    
+    /**
+     * Method to add an attribute name as removed in this request.
+     * @param name The name of the attribute
+     */
+    synchronized private void markRemoved(String name) {
+        this.removedAttributes.add(name);
+    }
+    
+    /**
+     * Method to delete an attribute name from the removed ones (it was set
+     * again).
+     * @param name The name of the attribute
+     */
+    synchronized private void unmarkRemoved(String name) {
+        this.removedAttributes.remove(name);
+    }
+    
+    /**
+     * Return the changes of the last processSave (only non-sticky).
+     * @return The changes to merge if the CAS fails or null
+     */
+    synchronized public SessionChanges getChanges() {
+        return this.changes;
+    }
+    
     /**
      * Synchronized method to de-serialize an attribute.
      * @param ai The attribute to deserialize
@@ -766,7 +1326,8 @@ public class CouchbaseWrapperSession extends StandardSession {
      * Return the attribute info if the session is not deleted. The method
      * performs de-serialization if needed and if the attribute is externalized
      * it is read from couchbase synchronously. The attribute is also inserted
-     * in real attributes map if found.
+     * in real attributes map if found. The attribute is marked as accessed,
+     * only mutable values are considered modified by a read.
      * @param name The name of the attribute
      * @return The attribute info or null
      */
@@ -789,15 +1350,24 @@ public class CouchbaseWrapperSession extends StandardSession {
                         // do a get from couchbase
                         String ref = ai.getReference();
                         log.log(Level.FINER, "Reading attribute {0} with reference {1}", new Object[]{name, ref});
-                        realVal = ((CouchbaseManager) this.manager).getAttributeValue(this, ref);
+                        CouchbaseManager m = (CouchbaseManager) this.manager;
+                        byte[] bytes = m.getAttributeBytes(this, ref);
+                        realVal = (bytes == null)? null : m.getTranscoder().deserialize(bytes);
                         ai.setReferenceValue(realVal);
+                        // keep the digest to check if the value is changed
+                        ai.setValueDigest(bytes);
                         this.attributes.put(name, realVal);
                     }
                 } else {
                     this.attributes.put(name, ai.getValue());
                 }
-                // mark as modified
-                ai.setSerialized(null, ai.isReference());
+                // mark as accessed (modified only if mutable)
+                boolean immutable = ((CouchbaseManager) this.manager).isImmutable(
+                        ai.isReference()? ai.getReferenceValue() : ai.getValue());
+                ai.access(immutable);
+                if (immutable && !ai.isModified()) {
+                    ((CouchbaseManager) this.manager).getStats().incrementImmutableReads();
+                }
             }
             return ai;
         }
@@ -836,7 +1406,7 @@ public class CouchbaseWrapperSession extends StandardSession {
         boolean isExternal;
         if (length > m.getAttrMaxSize()) {
             // the attribute is big => tracked it incrementing the counter
-            if (ai.isModified()) {
+            if (ai.isModified() || ai.isAccessed()) {
                 ai.incrementUsage(this.usageTimes);
             } else if (!ai.isStatsTracked()) {
                 ai.createEmptyStats(this.usageTimes);
@@ -866,6 +1436,149 @@ public class CouchbaseWrapperSession extends StandardSession {
         return isExternal;
     }
     
+    /**
+     * Calculates the digest of a serialized session excluding the access
+     * times (they change in every request).
+     * @param data The serialized session
+     * @param timesStart The position of the access times
+     * @param timesEnd The position after the access times
+     * @return The digest of the body
+     */
+    private static long bodyDigest(byte[] data, int timesStart, int timesEnd) {
+        long digest = Digest.hash(Digest.INITIAL, data, 0, timesStart);
+        return Digest.hash(digest, data, timesEnd, data.length - timesEnd);
+    }
+    
+    /**
+     * Checks if the serialized session is the same that is stored in
+     * couchbase (access times excluded). If the body is the same the 
+     * session is marked as touchOnly (a touch, or unlock plus touch in 
+     * non-sticky, is enough to save it). But the session is fully written
+     * if the stored access time is older than the touchOnlySlack of the
+     * manager (access times in couchbase cannot be too stale). In OWNER
+     * mode the session is always written: a TOUCH changes the cas in 
+     * couchbase but the client does not return it, so the local copy
+     * would never be current again.
+     * @param result The serialized session
+     * @param timesStart The position of the access times
+     * @param timesEnd The position after the access times
+     */
+    private void checkBodyDigest(byte[] result, int timesStart, int timesEnd) {
+        this.touchOnly = false;
+        int slack = ((CouchbaseManager) manager).getTouchOnlySlack();
+        long digest = bodyDigest(result, timesStart, timesEnd);
+        boolean stale = (this.thisAccessedTime - this.storedAccessedTime) > (slack * 1000L);
+        boolean owner = ((CouchbaseManager) manager).isOwnerMode();
+        if (slack > 0 && !owner && this.bodyLength == result.length && this.bodyDigest == digest && !stale) {
+            log.log(Level.FINE, "Session body not changed, only touch is needed");
+            this.touchOnly = true;
+        } else {
+            this.bodyDigest = digest;
+            this.bodyLength = result.length;
+            this.storedAccessedTime = this.thisAccessedTime;
+        }
+    }
+    
+    /**
+     * Returns if the last processSave detected the session can be saved
+     * only touching it (nothing but the access times changed).
+     * @return true if a touch is enough to save the session
+     */
+    synchronized public boolean isTouchOnly() {
+        return this.touchOnly;
+    }
+    
+    /**
+     * Returns if the session read when the lease is renewed is the same 
+     * that this request loaded (same generation and body digest). If 
+     * another server saved the session between the unlock and the new 
+     * lock the stored session is different and the lease is lost.
+     * @param data The session returned by the new lock
+     * @return true if the stored session was not changed
+     */
+    synchronized public boolean isStoredUnchanged(byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        SessionInputStream sis = null;
+        try {
+            sis = new SessionInputStream(data);
+            SessionHeader header = SessionHeader.read(sis, data.length);
+            if (header.generation != this.generation) {
+                return false;
+            }
+            // the body is compared only if it is known
+            return this.bodyLength < 0 || (this.bodyLength == data.length 
+                    && this.bodyDigest == bodyDigest(data, header.timesStart, header.timesEnd));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error reading the session to renew the lease", e);
+            return false;
+        } finally {
+            if (sis != null) {
+                try {sis.close();} catch(IOException e) {}
+            }
+        }
+    }
+    
+    /**
+     * The session in couchbase is unknown (error or re-read), the next save
+     * will be a full write.
+     */
+    private void resetBodyDigest() {
+        this.bodyDigest = 0L;
+        this.bodyLength = -1;
+        this.storedAccessedTime = 0L;
+        this.touchOnly = false;
+    }
+    
+    /**
+     * Returns if an external attribute should be touched (the last touch is 
+     * older than the attrTouchExtraTime).
+     * @param ai The attribute info
+     * @return true if the reference should be touched
+     */
+    private boolean isTouchNeeded(AttributeInfo ai) {
+        return (System.currentTimeMillis() - ai.getLastTouch())
+                > (((CouchbaseManager) manager).getAttrTouchExtraTime() * 1000);
+    }
+    
+    /**
+     * Touches the external attribute if needed (the touch is added to the
+     * bulk operation).
+     * @param client The client to perform couchbase bulk operations
+     * @param bulk The bulk operation
+     * @param name The name of the attribute
+     * @param ai The attribute info
+     * @param ro The reference object of the attribute
+     * @param exp The expiration for the external attribute
+     */
+    private void touchReference(Client client, BulkClientRequest bulk, String name,
+            AttributeInfo ai, ReferenceObject ro, int exp) {
+        if (this.isTouchNeeded(ai)) {
+            log.log(Level.FINE, "Touching attribute {0} with reference {1}",
+                    new Object[]{name, ro.getReference()});
+            ai.setLastTouch(System.currentTimeMillis());
+            client.addOperationTouch(bulk, ro.getReference(), exp);
+        } else {
+            log.log(Level.FINE, "Avoided touch for attribute {0}", name);
+        }
+    }
+    
+    /**
+     * Remembers the position of the last object written to keep it as the
+     * serialized value of the attribute. The value is assigned as a slice
+     * of the final array (the array of the stream is reused by the pool).
+     * @param kept The map of attributes to keep
+     * @param ai The attribute info
+     * @param sos The stream where the object was just written
+     * @param isReference If the value is a reference
+     * @throws IOException The last write was not an object
+     */
+    private static void keepSlice(Map<AttributeInfo,int[]> kept, AttributeInfo ai, 
+            SessionOutputStream sos, boolean isReference) throws IOException {
+        kept.put(ai, new int[]{sos.getLastDataOffset(), sos.size(), isReference? 1 : 0});
+    }
+    
     /**
      * Method that processes a save (serialization) of the session. The session
      * is written using a SessionOutputStream and the bulk operation is
@@ -878,20 +1591,43 @@ public class CouchbaseWrapperSession extends StandardSession {
         SessionOutputStream sos = null;
         try {
             TranscoderUtil trans = ((CouchbaseManager)manager).getTranscoder();
-            sos = new SessionOutputStream();
+            // the array is taken from the pool with the previous size
+            int hint = (this.bodyLength > 0)? this.bodyLength + (this.bodyLength >> 3) : 0;
+            sos = new SessionOutputStream(((CouchbaseManager) manager).getSessionFormat(), 
+                    ((CouchbaseManager) manager).getBufferPool(), hint);
             // write the fixed parts (non-transient) of the session
-            sos.writeString(this.id);
-            sos.writeString(this.getSipApplicationSessionId());
-            sos.writeString(this.getBeKey());
-            sos.writeLong(this.creationTime);
-            sos.writeInt(this.maxInactiveInterval);
-            sos.writeBoolean(this.isNew);
-            sos.writeBoolean(this.isValid);
-            sos.writeLong(this.getVersion());
-            sos.writeString(this.ssoId);
-            sos.writeLong(this.thisAccessedTime);
-            sos.writeLong(this.lastAccessedTime);
-            sos.writeString(this.username);
+            SessionHeader header = new SessionHeader();
+            header.id = this.id;
+            header.sipApplicationSessionId = this.getSipApplicationSessionId();
+            header.beKey = this.getBeKey();
+            header.creationTime = this.creationTime;
+            header.maxInactiveInterval = this.maxInactiveInterval;
+            header.isNew = this.isNew;
+            header.isValid = this.isValid;
+            header.version = this.getVersion();
+            header.ssoId = this.ssoId;
+            header.username = this.username;
+            // access times and owner stamp are excluded from the digest
+            header.thisAccessedTime = this.thisAccessedTime;
+            header.lastAccessedTime = this.lastAccessedTime;
+            if (((CouchbaseManager) manager).isOwnerMode() 
+                    || ((CouchbaseManager) manager).getSessionFormat() != SessionOutputStream.V0) {
+                // the old format is only stamped in OWNER mode (readable by old managers)
+                header.owner = ((CouchbaseManager) manager).getNodeId();
+            }
+            header.generation = ++this.generation;
+            header.write(sos);
+            int timesStart = header.timesStart;
+            int timesEnd = header.timesEnd;
+            int headerLength = header.length;
+            boolean sticky = ((CouchbaseManager)manager).isSticky();
+            boolean keep = ((CouchbaseManager)manager).isKeepLocal();
+            Map<String,int[]> modified = new HashMap<String,int[]>();
+            Map<String,int[]> written = new HashMap<String,int[]>();
+            // new references created for external attributes (non-sticky)
+            Map<String,String> created = new HashMap<String,String>();
+            // serialized values kept as slices of the result (no copies)
+            Map<AttributeInfo,int[]> kept = new HashMap<AttributeInfo,int[]>();
             // the exp time for attr is session timeout + extra time
             int exp = ((CouchbaseManager)manager).getMaxInactiveIntervalWithExtra() 
                     + ((CouchbaseManager)manager).getAttrTouchExtraTime();
@@ -899,7 +1635,9 @@ public class CouchbaseWrapperSession extends StandardSession {
             for (Map.Entry<String, AttributeInfo> entry : this.attrInfos.entrySet()) {
                 // write the key and the object
                 sos.writeString(entry.getKey());
+                int start = sos.size();
                 AttributeInfo ai = entry.getValue();
+                boolean changed = ai.isModified();
                 log.log(Level.FINER, "Processing attribute: {0} - hasStats={1} - isModified={2} - isReference={3}", 
                         new Object[]{entry.getKey(), ai.isStatsTracked(), ai.isModified(), ai.isReference()});
                 // check if the object is a reference
@@ -910,27 +1648,62 @@ public class CouchbaseWrapperSession extends StandardSession {
                         // check if the object is still externalized
                         byte[] attrSerialized = trans.serialize(ro.getValue());
                         // check if the attribute should remain external
-                        if (this.isExternal(entry.getKey(), ai, attrSerialized.length, true)) {
+                        boolean external = this.isExternal(entry.getKey(), ai, attrSerialized.length, true);
+                        if (external && ai.isValueDigest(attrSerialized)) {
+                            // the attr is the same that is in couchbase => no set
+                            log.log(Level.FINE, "Unchanged attribute {0} with reference {1}",
+                                    new Object[]{entry.getKey(), ro.getReference()});
+                            ((CouchbaseManager) manager).getStats().incrementUnchangedReferences();
+                            ((CouchbaseManager) manager).getStats().addBytesSaved(attrSerialized.length);
+                            changed = false;
+                            this.touchReference(client, bulk, entry.getKey(), ai, ro, exp);
+                            sos.writeObjectAsObject(trans, ro);
+                            if (keep) {
+                                keepSlice(kept, ai, sos, true);
+                            }
+                        } else if (external && sticky) {
                             // the attr has been modified and continue external => use a set
                             log.log(Level.FINE, "Setting attribute {0} with reference {1}",
                                     new Object[]{entry.getKey(), ro.getReference()});
                             ai.setLastTouch(System.currentTimeMillis());
                             client.addOperationSet(bulk, ro.getReference(), attrSerialized, exp);
+                            ai.setValueDigest(attrSerialized);
                             sos.writeObjectAsObject(trans, ro);
-                            if (((CouchbaseManager)manager).isSticky()) {
-                                ai.setSerialized(sos.getLastBytes(4), true);
+                            if (keep) {
+                                keepSlice(kept, ai, sos, true);
+                            }
+                        } else if (external) {
+                            // non-sticky => the new value goes to a new reference, the
+                            // old one can still be used by the stored session (merge)
+                            ReferenceObject nro = new ReferenceObject();
+                            nro.setValue(ro.getValue());
+                            log.log(Level.FINE, "Replacing attribute {0} reference {1} with {2}",
+                                    new Object[]{entry.getKey(), ro.getReference(), nro.getReference()});
+                            ai.setLastTouch(System.currentTimeMillis());
+                            client.addOperationAdd(bulk, nro.getReference(), attrSerialized, exp);
+                            this.addReplacedReference(entry.getKey(), ro.getReference());
+                            created.put(entry.getKey(), nro.getReference());
+                            ai.removeReference(nro);
+                            ai.setValueDigest(attrSerialized);
+                            sos.writeObjectAsObject(trans, nro);
+                            if (keep) {
+                                keepSlice(kept, ai, sos, true);
                             }
                         } else {
                             // the attribute should be integrated into the session
                             // delete external
                             log.log(Level.FINE, "Deleting attribute {0} with reference {1}",
                                     new Object[]{entry.getKey(), ro.getReference()});
-                            client.addOperationDelete(bulk, ro.getReference());
+                            if (sticky) {
+                                client.addOperationDelete(bulk, ro.getReference());
+                            } else {
+                                this.addReplacedReference(entry.getKey(), ro.getReference());
+                            }
                             ai.setLastTouch(System.currentTimeMillis());
                             // assign the internal value as value
                             ai.removeReference(ro.getValue());
                             sos.writeObjectAsArray(attrSerialized, false);
-                            if (((CouchbaseManager)manager).isSticky()) {
+                            if (keep) {
                                 ai.setSerialized(attrSerialized, false);
                             }
                         }
@@ -942,17 +1715,13 @@ public class CouchbaseWrapperSession extends StandardSession {
                         // the size is more than the specified because is externalized but unknown
                         this.isExternal(entry.getKey(), ai, Integer.MAX_VALUE, true);
                         // the attribute reamains external cos it was not modified, when modified will be reintegrated
-                        if ((System.currentTimeMillis() - ai.getLastTouch())
-                                > (((CouchbaseManager) manager).getAttrTouchExtraTime() * 1000)) {
-                            // de-serializate the PersistenceObject to touch it
-                            ai.deserialize(((CouchbaseManager)manager).getTranscoder());
-                            ReferenceObject ro = ai.getReferenceObject();
-                            // touch the reference
-                            log.log(Level.FINE, "Touching attribute {0} with reference {1}",
-                                    new Object[]{entry.getKey(), ro.getReference()});
-                            ai.setLastTouch(System.currentTimeMillis());
-                            client.addOperationTouch(bulk, ro.getReference(), exp);
-                            if (((CouchbaseManager) manager).isSticky()) {
+                        if (this.isTouchNeeded(ai)) {
+                            // de-serializate the PersistenceObject to touch it (if only read it is done)
+                            if (!ai.isDeserialized()) {
+                                ai.deserialize(((CouchbaseManager)manager).getTranscoder());
+                            }
+                            this.touchReference(client, bulk, entry.getKey(), ai, ai.getReferenceObject(), exp);
+                            if (keep) {
                                 ai.setSerialized(deserialized, true);
                             }
                         } else {
@@ -966,10 +1735,15 @@ public class CouchbaseWrapperSession extends StandardSession {
                         // it is modified => just write the object
                         int length = sos.writeObjectAsObject(trans, ai.getValue());
                         boolean isExternal = this.isExternal(entry.getKey(), ai, length, false);
-                        if (isExternal) {
+                        if (!isExternal && ai.isOriginalDigest(sos.getLastDataDigest(), 
+                                sos.size() - sos.getLastDataOffset())) {
+                            // the same bytes that were persisted => not a change
+                            log.log(Level.FINE, "Unchanged attribute {0}", entry.getKey());
+                            changed = false;
+                        } else if (isExternal) {
                             // the attribute should be externalized
                             // create the RO in the map and save the byte in couchbase
-                            byte[] serializedValue = sos.undo(4);
+                            byte[] serializedValue = sos.undoData();
                             ReferenceObject ro = new ReferenceObject();
                             ro.setValue(ai.getValue());
                             log.log(Level.FINE, "Modified attribute {0} externalized with reference {1}",
@@ -978,31 +1752,54 @@ public class CouchbaseWrapperSession extends StandardSession {
                             client.addOperationAdd(bulk, ro.getReference(), serializedValue, exp);
                             sos.writeObjectAsObject(trans, ro);
                             ai.setValue(ro);
+                            ai.setValueDigest(serializedValue);
+                            if (!sticky) {
+                                created.put(entry.getKey(), ro.getReference());
+                            }
                         }
-                        if (((CouchbaseManager) manager).isSticky()) {
-                            ai.setSerialized(sos.getLastBytes(4), isExternal);
+                        if (keep) {
+                            keepSlice(kept, ai, sos, isExternal);
                         }
                     } else {
                         // it is not modified
-                        if (this.isExternal(entry.getKey(), ai, ai.getSerialized().length, false)) {
+                        if (this.isExternal(entry.getKey(), ai, ai.getSerializedLength(), false)) {
                             // it is externalized as a separate object
                             ReferenceObject ro = new ReferenceObject();
                             ro.setValue(ai.getValue());
                             log.log(Level.FINE, "Non-modified attribute {0} externalized with reference {1}",
                                     new Object[]{entry.getKey(), ro.getReference()});
+                            changed = true;
                             ai.setLastTouch(System.currentTimeMillis());
-                            client.addOperationAdd(bulk, ro.getReference(), ai.getSerialized(), exp);
+                            byte[] serializedValue = ai.getSerialized();
+                            client.addOperationAdd(bulk, ro.getReference(), serializedValue, exp);
                             sos.writeObjectAsObject(trans, ro);
                             ai.setValue(ro);
-                            if (((CouchbaseManager) manager).isSticky()) {
-                                ai.setSerialized(sos.getLastBytes(4), true);
+                            ai.setValueDigest(serializedValue);
+                            if (!sticky) {
+                                created.put(entry.getKey(), ro.getReference());
+                            }
+                            if (keep) {
+                                keepSlice(kept, ai, sos, true);
                             }
                         } else {
                             // it remains integrated with the session until modified
-                            sos.writeObjectAsArray(ai.getSerialized(), false);
+                            ai.writeSerialized(sos, false);
+                            if (keep) {
+                                // re-point to the new array, the loaded one is released
+                                keepSlice(kept, ai, sos, false);
+                            }
                         }
                     }
                 }
+                // the access is only for this request
+                ai.setAccessed(false);
+                if (changed && !sticky && !this.isLoadedDigest(entry.getKey(), sos.getLastDataDigest())) {
+                    // only really modified values (a read of a mutable is not a change)
+                    modified.put(entry.getKey(), new int[]{start, sos.size()});
+                }
+                if (keep && !sticky) {
+                    written.put(entry.getKey(), new int[]{sos.getLastDataOffset(), sos.size()});
+                }
             }
             // process deletes
             for (String reference: this.deletedAttributes) {
@@ -1010,9 +1807,31 @@ public class CouchbaseWrapperSession extends StandardSession {
                 client.addOperationDelete(bulk, reference);
             }
             this.deletedAttributes.clear();
+            if (!sticky) {
+                // remember the changes to merge them if the cas fails
+                this.changes = new SessionChanges(headerLength, modified, 
+                        this.removedAttributes, this.loadedDigests, 
+                        this.replacedReferences, created);
+            }
+            this.removedAttributes = new HashSet<String>();
+            this.replacedReferences = new HashMap<String,String>();
             // write and return the object
             byte[] result = sos.toByteArray();
+            for (Map.Entry<AttributeInfo,int[]> entry : kept.entrySet()) {
+                int[] pos = entry.getValue();
+                entry.getKey().setSerialized(result, pos[0], pos[1] - pos[0], pos[2] != 0);
+            }
+            if (keep && !sticky) {
+                // owner mode: the saved attributes are the base of the next request
+                this.loadedDigests = new HashMap<String,Long>();
+                for (Map.Entry<String,int[]> entry : written.entrySet()) {
+                    int[] pos = entry.getValue();
+                    this.loadedDigests.put(entry.getKey(), 
+                            Digest.hash(Digest.INITIAL, result, pos[0], pos[1] - pos[0]));
+                }
+            }
             log.log(Level.FINE, "Result - session size: {0}", result.length);
+            this.checkBodyDigest(result, timesStart, timesEnd);
             return result;
         } catch (IOException e) {
             log.log(Level.SEVERE, "Exception serializing session", e);
@@ -1040,7 +1859,9 @@ public class CouchbaseWrapperSession extends StandardSession {
                 client.addOperationDelete(bulk, reference);
             }
         }
-        // process deletes
+        // process deletes (the session is deleted => removed references too)
+        this.deletedAttributes.addAll(this.replacedReferences.values());
+        this.replacedReferences.clear();
         for (String reference : this.deletedAttributes) {
             log.log(Level.FINE, "Deleting attribute reference {0}", reference);
             client.addOperationDelete(bulk, reference);
@@ -1048,6 +1869,119 @@ public class CouchbaseWrapperSession extends StandardSession {
         this.deletedAttributes.clear();
     }
     
+    /**
+     * Cancels the multi-get of the external attributes if it was launched.
+     */
+    private void clearPrefetch() {
+        if (this.prefetch != null) {
+            ((CouchbaseManager) manager).getStats().addPrefetchWasted(this.prefetch.getNotConsumed());
+            this.prefetch.cancel();
+            this.prefetch = null;
+        }
+    }
+    
+    /**
+     * Returns if an external attribute is likely to be accessed in this
+     * request. The same usage stats used to externalize the attribute are
+     * checked against the attrPrefetchUsage property. If there is not
+     * enough data the attribute is considered likely.
+     * @param ai The attribute info
+     * @return true if the attribute should be prefetched
+     */
+    private boolean isPrefetchable(AttributeInfo ai) {
+        CouchbaseManager m = ((CouchbaseManager) manager);
+        if (m.getAttrPrefetchUsage() <= 0 || !ai.isStatsTracked()
+                || ai.getAttributeLiveTimes(this.usageTimes) <= m.getAttrUsageCondition().getMinimum()) {
+            return true;
+        } else {
+            return ai.getUsage(this.usageTimes) >= m.getAttrPrefetchUsage();
+        }
+    }
+    
+    /**
+     * Launches a multi-get with all the external attributes that are not
+     * read yet and are likely to be used (see isPrefetchable). The request
+     * is not waited, the values are used when the attribute is accessed
+     * (getAttributeInfo).
+     */
+    private void prefetchReferences() {
+        TranscoderUtil trans = ((CouchbaseManager) manager).getTranscoder();
+        Set<String> references = new HashSet<String>();
+        for (AttributeInfo ai : this.attrInfos.values()) {
+            if (ai.isReference() && isPrefetchable(ai)) {
+                ReferenceObject ro;
+                if (ai.isDeserialized()) {
+                    ro = (ReferenceObject) ai.getValue();
+                } else {
+                    // de-serialize only the reference, the attribute is not modified
+                    ro = (ReferenceObject) trans.deserialize(ai.getSerialized());
+                }
+                if (ro.getValue() == null) {
+                    references.add(ro.getReference());
+                }
+            }
+        }
+        if (!references.isEmpty()) {
+            log.log(Level.FINE, "Prefetching references {0}", references);
+            this.prefetch = ((CouchbaseManager) manager).prefetchAttributeValues(references);
+        }
+    }
+    
+    /**
+     * Assigns the owner stamp (node and generation) of the loaded header.
+     * Sessions saved with the old format can have no stamp. A session saved 
+     * by other node is counted as a takeover.
+     * @param header The header of the loaded session
+     */
+    private void readOwnerStamp(SessionHeader header) {
+        this.owner = header.owner;
+        this.generation = header.generation;
+        CouchbaseManager m = (CouchbaseManager) manager;
+        if (this.owner != null && !m.isSticky() && !this.owner.equals(m.getNodeId())) {
+            log.log(Level.FINE, "Session {0} taken over from {1}", new Object[]{this.id, this.owner});
+            m.getStats().incrementOwnerTakeovers();
+        }
+    }
+    
+    /**
+     * Return the node that saved the session (owner stamp).
+     * @return The node id or null if unknown
+     */
+    synchronized public String getOwner() {
+        return this.owner;
+    }
+    
+    /**
+     * Return the generation of the session (number of saves).
+     * @return The generation
+     */
+    synchronized public long getGeneration() {
+        return this.generation;
+    }
+    
+    /**
+     * Return the cas of the last save of this node (OWNER mode).
+     * @return The cas or -1 if the local copy is not valid
+     */
+    synchronized public long getOwnerCas() {
+        return this.ownerCas;
+    }
+    
+    /**
+     * A save finished (OWNER mode). If it was successful and not merged 
+     * the local copy is the one in couchbase and the cas of the write is
+     * kept (touch-only saves are not used in this mode).
+     * @param res The result of the final operation
+     * @param merged The local changes were merged with other node ones
+     */
+    synchronized public void saveCompleted(ClientResult res, boolean merged) {
+        if (!res.isSuccess() || merged || res.getCas() <= 0) {
+            this.ownerCas = -1L;
+        } else {
+            this.ownerCas = res.getCas();
+        }
+    }
+    
     /**
      * Method to fill a session using the serialized byte array.
      * @param in
@@ -1058,24 +1992,29 @@ public class CouchbaseWrapperSession extends StandardSession {
         SessionInputStream sis = null;
         try {
             sis = new SessionInputStream(in);
-            this.id = sis.readString();
-            this.setSipApplicationSessionId(sis.readString());
-            this.setBeKey(sis.readString());
-            this.creationTime = sis.readLong();
-            this.maxInactiveInterval = sis.readInt();
-            this.isNew = sis.readBoolean();
-            this.isValid = sis.readBoolean();
-            this.setVersion(sis.readLong());
-            this.ssoId = sis.readString();
-            long newThisAccessedTime = sis.readLong();
+            // any version is read, the next save uses the configured one
+            SessionHeader header = SessionHeader.read(sis, in.length);
+            this.id = header.id;
+            this.setSipApplicationSessionId(header.sipApplicationSessionId);
+            this.setBeKey(header.beKey);
+            this.creationTime = header.creationTime;
+            this.maxInactiveInterval = header.maxInactiveInterval;
+            this.isNew = header.isNew;
+            this.isValid = header.isValid;
+            this.setVersion(header.version);
+            this.ssoId = header.ssoId;
+            int timesStart = header.timesStart;
+            long newThisAccessedTime = header.thisAccessedTime;
             if (newThisAccessedTime > this.thisAccessedTime) {
                 this.thisAccessedTime = newThisAccessedTime;
             }
-            long newLastAccessedTime = sis.readLong();
+            long newLastAccessedTime = header.lastAccessedTime;
             if (newLastAccessedTime > this.lastAccessedTime) {
                 this.lastAccessedTime = newLastAccessedTime;
             }
-            String newUsername = sis.readString();
+            this.readOwnerStamp(header);
+            int timesEnd = header.timesEnd;
+            String newUsername = header.username;
             if (newUsername != null
                     && (this.principal == null || !newUsername.equals(this.principal.getName()))) {
                 // add the principal if the loaded session has one and 
@@ -1085,37 +2024,65 @@ public class CouchbaseWrapperSession extends StandardSession {
                         .createFailOveredPrincipal(newUsername);
                 this.setPrincipal(p);
             }
+            this.clearPrefetch();
+            this.resetBodyDigest();
+            // deferred changes (if any) are lost
+            this.resetCheckpoint();
             if (status.isLocked() || ((CouchbaseManager) manager).isSticky()) {
                 // attributes are loaded only if sticky or non-sticky but locked
-                Map<String,AttributeInfo> current = new HashMap<String,AttributeInfo>(this.attrInfos);
+                // (the attr infos are reused, the ones not loaded are removed at the end)
+                boolean sticky = ((CouchbaseManager)manager).isSticky();
+                this.loadedDigests = new HashMap<String,Long>();
                 this.attributes.clear();
-                this.attrInfos.clear();
                 while (sis.available() > 0) {
-                    // read the key and the object
+                    // read the key and index the object inside the array (no copy)
                     String name = sis.readString();
-                    Map.Entry<Boolean,byte[]> value = sis.readObjectAsArray();
+                    int length = sis.readObjectLength();
+                    int offset = sis.getPosition();
+                    sis.skipObject(length);
                     // read current value in the session
-                    AttributeInfo ai = current.get(name);
+                    AttributeInfo ai = this.attrInfos.get(name);
                     if (ai == null) {
                         // create new attr info
                         ai = new AttributeInfo();
+                        this.attrInfos.put(name, ai);
                     } else if (!((CouchbaseManager)manager).isSticky()) {
                         // clean possible references if non-sticky
                         ai.removeReference(null);
+                    } else {
+                        // the external value in couchbase is unknown now
+                        ai.clearValueDigest();
                     }
-                    // associate the new serialized
-                    ai.setSerialized(value.getValue(), value.getKey());
-                    // add the Attribute info
-                    this.attrInfos.put(name, ai);
-                    // create the attributes with something (serialized or value)
-                    this.attributes.put(name, (ai.getValue() == null)? ai.getSerialized() : ai.getValue());
+                    // associate the new serialized as a slice of the loaded array
+                    ai.setSerialized(in, offset, Math.abs(length), length < 0);
+                    if (!sticky) {
+                        // digest to detect changes of other servers
+                        this.loadedDigests.put(name, ai.getSerializedDigest());
+                    }
+                    // create the attributes with something (attr info or value)
+                    this.attributes.put(name, (ai.getValue() == null)? ai : ai.getValue());
+                }
+                // attributes not present in the loaded session are removed
+                this.attrInfos.keySet().retainAll(this.attributes.keySet());
+                // launch the multi-get of the external attributes
+                if (((CouchbaseManager) manager).isAttrPrefetch()) {
+                    this.prefetchReferences();
                 }
+                // the whole body stored in couchbase is known
+                this.bodyDigest = bodyDigest(in, timesStart, timesEnd);
+                this.bodyLength = in.length;
+                this.storedAccessedTime = newThisAccessedTime;
             }
             // no deleted attributes
             this.deletedAttributes.clear();
+            this.removedAttributes.clear();
+            this.replacedReferences.clear();
+            this.changes = null;
             // set new mstatus and cas
             setMemStatus(status);
             this.cas = cas;
+            // the local copy is the one in couchbase if locked in owner mode
+            this.ownerCas = (status.isLocked() && ((CouchbaseManager) manager).isOwnerMode())? cas : -1L;
         } catch (IOException e) {
             log.log(Level.SEVERE, "Exception deserializing session", e);
             throw new IllegalStateException("Illegal state deserializing session", e);
@@ -0,0 +1,192 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Set of the non-sticky sessions that are locked in couchbase with a
+ * short lease (lockLease). Instead of locking the session for the whole
+ * lockTime, the session is locked for the lease and a single background 
+ * thread launches the renewal of the lock of the sessions whose request is
+ * still running. If a server dies or hangs the lock is released by 
+ * couchbase in a few seconds.</p>
+ * 
+ * <p>Couchbase cannot extend a lock, so the renewal is an unlock followed
+ * by a new getAndLock (the new cas is assigned to the session). Both 
+ * operations are async, so the renewals of all the sessions are in flight
+ * in parallel and the thread never waits for couchbase nor holds the 
+ * monitor of a session. If the renewal fails the lease is lost and the 
+ * final CAS of the request will detect the conflict.</p>
+ * 
+ * @author ricky
+ */
+public class LeaseRenewer {
+    
+    /**
+     * Logger for the class.
+     */
+    protected static final Logger log = Logger.getLogger(LeaseRenewer.class.getName());
+    
+    /**
+     * Task that renews the leases that are half expired.
+     */
+    private class Renewer implements Runnable {
+
+        /**
+         * Renew the leases. Exceptions are logged cos an exception
+         * would cancel the scheduled task.
+         */
+        @Override
+        public void run() {
+            try {
+                renew();
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Error renewing leases", e);
+            }
+        }
+    }
+    
+    /**
+     * The manager of the sessions.
+     */
+    private CouchbaseManager manager = null;
+    
+    /**
+     * The sessions with a lease by id.
+     */
+    private ConcurrentHashMap<String, CouchbaseWrapperSession> leased = 
+            new ConcurrentHashMap<String, CouchbaseWrapperSession>();
+    
+    /**
+     * The single thread that renews.
+     */
+    private ScheduledThreadPoolExecutor scheduler = null;
+    
+    /**
+     * The lease time in ms.
+     */
+    private long lease = 0L;
+    
+    /**
+     * Constructor via manager and lease.
+     * @param manager The manager that uses the renewer
+     * @param lease The lease time in ms
+     */
+    public LeaseRenewer(CouchbaseManager manager, long lease) {
+        this.manager = manager;
+        this.lease = lease;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "couchbase-lease-renewer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Starts the renewer. The task is executed every quarter of the lease,
+     * so a lease is renewed when it is between the half and the three
+     * quarters of its time.
+     */
+    public void start() {
+        long interval = lease / 4;
+        scheduler.scheduleWithFixedDelay(new Renewer(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops the renewer.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * Registers a session locked with a lease.
+     * @param session The session
+     */
+    public void add(CouchbaseWrapperSession session) {
+        leased.put(session.getId(), session);
+    }
+    
+    /**
+     * Removes a session (the request finished).
+     * @param id The id of the session
+     */
+    public void remove(String id) {
+        if (id != null) {
+            leased.remove(id);
+        }
+    }
+    
+    /**
+     * Return the number of sessions with a lease.
+     * @return The number of leased sessions
+     */
+    public int getLeased() {
+        return leased.size();
+    }
+    
+    /**
+     * Launches the renewal of the leases that have consumed half of their 
+     * time (async, the renewal finishes in the completion of the ops).
+     */
+    public void renew() {
+        long now = System.currentTimeMillis();
+        int launched = 0;
+        for (CouchbaseWrapperSession session : leased.values()) {
+            if (session.startRenewal(now, lease / 2)) {
+                try {
+                    manager.doSessionRenew(session);
+                    launched++;
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Error renewing the lease of the session", e);
+                    session.endRenewal(false, -1L, now);
+                    remove(session.getId());
+                }
+            }
+        }
+        log.log(Level.FINE, "LeaseRenewer.renew(): launched={0} leased={1}", 
+                new Object[]{launched, leased.size()});
+    }
+}
@@ -0,0 +1,65 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+/**
+ * <p>The way the sessions are protected in non-sticky configuration 
+ * (in sticky the sessions are never locked in couchbase).</p>
+ * 
+ * <ul>
+ * <li>LOCK: The session is read with getAndLock and saved with a CAS that
+ * releases the lock. Other servers receive ALREADY_LOCKED while the 
+ * request is running.</li>
+ * <li>OPTIMISTIC: The session is read with gets (no lock) and saved with a
+ * CAS. If the CAS returns EXISTS (another server saved the session in the
+ * meantime) the session is read again, the changes of the request are 
+ * merged over it and the merged session is CASed a bounded number of 
+ * times. If the changes cannot be merged the save fails with EXISTS, the
+ * local bytes are never re-sent over the stored session. Sessions with 
+ * repeated conflicts fall back to LOCK.</li>
+ * <li>OWNER: Hybrid mode. Every saved session is stamped with the node that
+ * saved it. The node that saved the session last keeps it in memory (like 
+ * sticky) and, if the cas in couchbase is still the one of its save 
+ * (observe), the session is used without reading or locking it. Otherwise
+ * the session is read with a normal locked load (the node takes over the
+ * session). Saves are always done with a CAS.</li>
+ * </ul>
+ * 
+ * @author ricky
+ */
+public enum LockMode {
+    LOCK, OPTIMISTIC, OWNER;
+}
@@ -0,0 +1,117 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Exact negative cache. The ids are stored in a LinkedHashMap in 
+ * insertion order with the expiration timestamp, the eldest id is removed 
+ * when the size is exceeded and expired ids are removed when found.</p>
+ * 
+ * @author ricky
+ */
+public class LruNegativeCache extends NegativeCache {
+    
+    /**
+     * The ids with the expiration timestamp.
+     */
+    private LinkedHashMap<String,Long> ids = null;
+    
+    /**
+     * Constructor using the size and the time.
+     * @param size The maximum number of ids
+     * @param time The time in milliseconds an id is maintained
+     */
+    public LruNegativeCache(int size, long time) {
+        super(size, time);
+        final int max = size;
+        this.ids = new LinkedHashMap<String,Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * Returns if the id was recently confirmed missing. The id is removed
+     * if the expiration is passed.
+     * @param id The session id
+     * @return true if the id is considered missing
+     */
+    @Override
+    public synchronized boolean contains(String id) {
+        Long expiration = ids.get(id);
+        if (expiration == null) {
+            return false;
+        } else if (expiration < System.currentTimeMillis()) {
+            ids.remove(id);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Adds the id with the expiration. The id is re-inserted to be the 
+     * newest one.
+     * @param id The session id
+     */
+    @Override
+    public synchronized void add(String id) {
+        ids.remove(id);
+        ids.put(id, System.currentTimeMillis() + time);
+    }
+
+    /**
+     * Removes the id.
+     * @param id The session id
+     */
+    @Override
+    public synchronized void remove(String id) {
+        ids.remove(id);
+    }
+
+    /**
+     * Removes all the ids.
+     */
+    @Override
+    public synchronized void clear() {
+        ids.clear();
+    }
+}
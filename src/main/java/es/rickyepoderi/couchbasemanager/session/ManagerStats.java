@@ -0,0 +1,790 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Counters of the manager. The counters are lock-free and they are 
+ * incremented by the sessions and the manager in the request path. They
+ * are only informative (logged when the manager is destroyed).</p>
+ * 
+ * @author ricky
+ */
+public class ManagerStats {
+    
+    /**
+     * External attributes requested in a multi-get.
+     */
+    private AtomicLong prefetched = new AtomicLong(0);
+    
+    /**
+     * External attributes accessed that were prefetched.
+     */
+    private AtomicLong prefetchHits = new AtomicLong(0);
+    
+    /**
+     * External attributes accessed that were not prefetched (read with gets).
+     */
+    private AtomicLong prefetchMisses = new AtomicLong(0);
+    
+    /**
+     * External attributes prefetched but never accessed.
+     */
+    private AtomicLong prefetchWasted = new AtomicLong(0);
+    
+    /**
+     * Sessions searched in couchbase because they were not in the manager.
+     */
+    private AtomicLong loads = new AtomicLong(0);
+    
+    /**
+     * Searches that waited for a running load of the same id.
+     */
+    private AtomicLong coalescedLoads = new AtomicLong(0);
+    
+    /**
+     * Searches answered by the negative cache (without accessing couchbase).
+     */
+    private AtomicLong negativeCacheHits = new AtomicLong(0);
+    
+    /**
+     * Reads of immutable attributes that did not mark them as modified.
+     */
+    private AtomicLong immutableReads = new AtomicLong(0);
+    
+    /**
+     * Mutable external attributes read but not changed (no set).
+     */
+    private AtomicLong unchangedReferences = new AtomicLong(0);
+    
+    /**
+     * Sticky saves performed with a touch because only the access times changed.
+     */
+    private AtomicLong touchOnlySaves = new AtomicLong(0);
+    
+    /**
+     * Bytes not written to couchbase because they were not changed (digest).
+     */
+    private AtomicLong bytesSaved = new AtomicLong(0);
+    
+    /**
+     * Sticky saves deferred by the checkpoint mode.
+     */
+    private AtomicLong deferredSaves = new AtomicLong(0);
+    
+    /**
+     * Deferred sessions saved by the background flusher.
+     */
+    private AtomicLong checkpointFlushes = new AtomicLong(0);
+    
+    /**
+     * Sticky requests that started with the previous save in flight.
+     */
+    private AtomicLong pipelinedLoads = new AtomicLong(0);
+    
+    /**
+     * Saves collapsed behind a save in flight.
+     */
+    private AtomicLong collapsedSaves = new AtomicLong(0);
+    
+    /**
+     * Save errors received while a pipelined request was using the session.
+     */
+    private AtomicLong deferredSaveErrors = new AtomicLong(0);
+    
+    /**
+     * CAS that returned EXISTS in optimistic mode.
+     */
+    private AtomicLong optimisticConflicts = new AtomicLong(0);
+    
+    /**
+     * CAS retried after reading the session again.
+     */
+    private AtomicLong optimisticRetries = new AtomicLong(0);
+    
+    /**
+     * Sessions that fell back to lock mode for repeated conflicts.
+     */
+    private AtomicLong lockFallbacks = new AtomicLong(0);
+    
+    /**
+     * Sessions merged after a CAS that returned EXISTS.
+     */
+    private AtomicLong mergedSaves = new AtomicLong(0);
+    
+    /**
+     * Attributes modified by two servers at the same time.
+     */
+    private AtomicLong mergeConflicts = new AtomicLong(0);
+    
+    /**
+     * Conflicts resolved with the stored value.
+     */
+    private AtomicLong mergeStoredWins = new AtomicLong(0);
+    
+    /**
+     * Locks that waited for the lock of other server.
+     */
+    private AtomicLong lockWaits = new AtomicLong(0);
+    
+    /**
+     * Time in ms waiting for the lock of other server.
+     */
+    private AtomicLong lockWaitTime = new AtomicLong(0);
+    
+    /**
+     * Leases renewed while the request was running.
+     */
+    private AtomicLong leaseRenewals = new AtomicLong(0);
+    
+    /**
+     * Leases that could not be renewed.
+     */
+    private AtomicLong leasesLost = new AtomicLong(0);
+    
+    /**
+     * Locks retried after a backoff cos the session was locked by other server.
+     */
+    private AtomicLong lockRetries = new AtomicLong(0);
+    
+    /**
+     * Threads that waited for another thread of this server polling the lock.
+     */
+    private AtomicLong lockQueued = new AtomicLong(0);
+    
+    /**
+     * Locks that reached the deadline (operationTimeout).
+     */
+    private AtomicLong lockTimeouts = new AtomicLong(0);
+    
+    /**
+     * Loads skipped cos this node was the owner and the cas did not change.
+     */
+    private AtomicLong ownerHits = new AtomicLong(0);
+    
+    /**
+     * Owned sessions that were modified by other node (reloaded).
+     */
+    private AtomicLong ownerMisses = new AtomicLong(0);
+    
+    /**
+     * Sessions loaded with the stamp of other node.
+     */
+    private AtomicLong ownerTakeovers = new AtomicLong(0);
+    
+    /**
+     * Empty constructor.
+     */
+    public ManagerStats() {
+        // empty
+    }
+    
+    /**
+     * Adds the number of external attributes requested in a multi-get.
+     * @param count The number of references prefetched
+     */
+    public void addPrefetched(long count) {
+        prefetched.addAndGet(count);
+    }
+    
+    /**
+     * One prefetched external attribute was accessed.
+     */
+    public void incrementPrefetchHits() {
+        prefetchHits.incrementAndGet();
+    }
+    
+    /**
+     * One external attribute was accessed but it was not prefetched.
+     */
+    public void incrementPrefetchMisses() {
+        prefetchMisses.incrementAndGet();
+    }
+    
+    /**
+     * Adds the number of prefetched attributes that were never accessed.
+     * @param count The number of references wasted
+     */
+    public void addPrefetchWasted(long count) {
+        prefetchWasted.addAndGet(count);
+    }
+    
+    /**
+     * One session was searched in couchbase.
+     */
+    public void incrementLoads() {
+        loads.incrementAndGet();
+    }
+    
+    /**
+     * One search waited for the load of another thread.
+     */
+    public void incrementCoalescedLoads() {
+        coalescedLoads.incrementAndGet();
+    }
+    
+    /**
+     * One search was answered by the negative cache.
+     */
+    public void incrementNegativeCacheHits() {
+        negativeCacheHits.incrementAndGet();
+    }
+    
+    /**
+     * One immutable attribute was read without marking it as modified.
+     */
+    public void incrementImmutableReads() {
+        immutableReads.incrementAndGet();
+    }
+    
+    /**
+     * One external attribute was not set again because it was not changed.
+     */
+    public void incrementUnchangedReferences() {
+        unchangedReferences.incrementAndGet();
+    }
+    
+    /**
+     * One session was saved with a touch instead of a full set.
+     */
+    public void incrementTouchOnlySaves() {
+        touchOnlySaves.incrementAndGet();
+    }
+    
+    /**
+     * Adds bytes that were not written because they were unchanged.
+     * @param count The number to add
+     */
+    public void addBytesSaved(long count) {
+        bytesSaved.addAndGet(count);
+    }
+    
+    /**
+     * One sticky save was deferred to a later checkpoint.
+     */
+    public void incrementDeferredSaves() {
+        deferredSaves.incrementAndGet();
+    }
+    
+    /**
+     * Adds sessions saved by the checkpoint flusher.
+     * @param count The number to add
+     */
+    public void addCheckpointFlushes(long count) {
+        checkpointFlushes.addAndGet(count);
+    }
+    
+    /**
+     * One request started without waiting the previous save.
+     */
+    public void incrementPipelinedLoads() {
+        pipelinedLoads.incrementAndGet();
+    }
+    
+    /**
+     * One save was collapsed behind another one in flight.
+     */
+    public void incrementCollapsedSaves() {
+        collapsedSaves.incrementAndGet();
+    }
+    
+    /**
+     * One save error was deferred to the end of the request.
+     */
+    public void incrementDeferredSaveErrors() {
+        deferredSaveErrors.incrementAndGet();
+    }
+    
+    /**
+     * One optimistic CAS returned EXISTS.
+     */
+    public void incrementOptimisticConflicts() {
+        optimisticConflicts.incrementAndGet();
+    }
+    
+    /**
+     * One optimistic CAS was retried.
+     */
+    public void incrementOptimisticRetries() {
+        optimisticRetries.incrementAndGet();
+    }
+    
+    /**
+     * One session fell back to lock mode.
+     */
+    public void incrementLockFallbacks() {
+        lockFallbacks.incrementAndGet();
+    }
+    
+    /**
+     * One session was merged.
+     */
+    public void incrementMergedSaves() {
+        mergedSaves.incrementAndGet();
+    }
+    
+    /**
+     * One attribute was in conflict.
+     */
+    public void incrementMergeConflicts() {
+        mergeConflicts.incrementAndGet();
+    }
+    
+    /**
+     * One conflict was resolved with the stored value.
+     */
+    public void incrementMergeStoredWins() {
+        mergeStoredWins.incrementAndGet();
+    }
+    
+    /**
+     * One lock waited for other server.
+     */
+    public void incrementLockWaits() {
+        lockWaits.incrementAndGet();
+    }
+    
+    /**
+     * Add time waiting for a lock.
+     * @param count The number to add
+     */
+    public void addLockWaitTime(long count) {
+        lockWaitTime.addAndGet(count);
+    }
+    
+    /**
+     * One lease was renewed.
+     */
+    public void incrementLeaseRenewals() {
+        leaseRenewals.incrementAndGet();
+    }
+    
+    /**
+     * One lease was lost.
+     */
+    public void incrementLeasesLost() {
+        leasesLost.incrementAndGet();
+    }
+    
+    /**
+     * One lock was retried.
+     */
+    public void incrementLockRetries() {
+        lockRetries.incrementAndGet();
+    }
+    
+    /**
+     * One thread waited for the polling thread.
+     */
+    public void incrementLockQueued() {
+        lockQueued.incrementAndGet();
+    }
+    
+    /**
+     * One lock timed out.
+     */
+    public void incrementLockTimeouts() {
+        lockTimeouts.incrementAndGet();
+    }
+    
+    /**
+     * One load was skipped by ownership.
+     */
+    public void incrementOwnerHits() {
+        ownerHits.incrementAndGet();
+    }
+    
+    /**
+     * One owned session was modified by other node.
+     */
+    public void incrementOwnerMisses() {
+        ownerMisses.incrementAndGet();
+    }
+    
+    /**
+     * One session was taken over from other node.
+     */
+    public void incrementOwnerTakeovers() {
+        ownerTakeovers.incrementAndGet();
+    }
+    
+    /**
+     * Getter for the number of external attributes prefetched.
+     * @return The number of references requested in multi-gets
+     */
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+    
+    /**
+     * Getter for the prefetch hits.
+     * @return The number of accessed attributes that were prefetched
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+    
+    /**
+     * Getter for the prefetch misses.
+     * @return The number of accessed attributes that were not prefetched
+     */
+    public long getPrefetchMisses() {
+        return prefetchMisses.get();
+    }
+    
+    /**
+     * Getter for the prefetched attributes never accessed.
+     * @return The number of wasted references
+     */
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+    
+    /**
+     * The ratio of external attributes accessed that were prefetched.
+     * @return The hit ratio (0-100)
+     */
+    public int getPrefetchHitRatio() {
+        long hits = prefetchHits.get();
+        long total = hits + prefetchMisses.get();
+        return total == 0? 0 : (int) ((hits * 100) / total);
+    }
+    
+    /**
+     * Getter for the sessions searched in couchbase.
+     * @return The number of loads
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+    
+    /**
+     * Getter for the searches that shared the load of another thread.
+     * @return The number of coalesced loads
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+    
+    /**
+     * Getter for the searches answered by the negative cache.
+     * @return The number of negative cache hits
+     */
+    public long getNegativeCacheHits() {
+        return negativeCacheHits.get();
+    }
+    
+    /**
+     * Getter for the reads of immutable attributes.
+     * @return The number of immutable reads
+     */
+    public long getImmutableReads() {
+        return immutableReads.get();
+    }
+    
+    /**
+     * Getter for the external attributes not set because they were not changed.
+     * @return The number of unchanged references
+     */
+    public long getUnchangedReferences() {
+        return unchangedReferences.get();
+    }
+    
+    /**
+     * Getter for the saves performed only with a touch.
+     * @return The number of touch only saves
+     */
+    public long getTouchOnlySaves() {
+        return touchOnlySaves.get();
+    }
+    
+    /**
+     * Getter for the bytes not written because they were unchanged.
+     * @return The number of bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+    
+    /**
+     * Getter for the saves deferred by the checkpoint mode.
+     * @return The number of deferred saves
+     */
+    public long getDeferredSaves() {
+        return deferredSaves.get();
+    }
+    
+    /**
+     * Getter for the sessions saved by the checkpoint flusher.
+     * @return The number of checkpoint flushes
+     */
+    public long getCheckpointFlushes() {
+        return checkpointFlushes.get();
+    }
+    
+    /**
+     * Getter for the requests started with a save in flight.
+     * @return The number of pipelined loads
+     */
+    public long getPipelinedLoads() {
+        return pipelinedLoads.get();
+    }
+    
+    /**
+     * Getter for the saves collapsed behind a save in flight.
+     * @return The number of collapsed saves
+     */
+    public long getCollapsedSaves() {
+        return collapsedSaves.get();
+    }
+    
+    /**
+     * Getter for the save errors deferred to the end of the request.
+     * @return The number of deferred errors
+     */
+    public long getDeferredSaveErrors() {
+        return deferredSaveErrors.get();
+    }
+    
+    /**
+     * Getter for the optimistic conflicts.
+     * @return The number of conflicts
+     */
+    public long getOptimisticConflicts() {
+        return optimisticConflicts.get();
+    }
+    
+    /**
+     * Getter for the optimistic retries.
+     * @return The number of retries
+     */
+    public long getOptimisticRetries() {
+        return optimisticRetries.get();
+    }
+    
+    /**
+     * Getter for the sessions that fell back to lock mode.
+     * @return The number of fallbacks
+     */
+    public long getLockFallbacks() {
+        return lockFallbacks.get();
+    }
+    
+    /**
+     * Getter for the merged saves.
+     * @return The number of merged sessions
+     */
+    public long getMergedSaves() {
+        return mergedSaves.get();
+    }
+    
+    /**
+     * Getter for the merge conflicts.
+     * @return The number of attributes in conflict
+     */
+    public long getMergeConflicts() {
+        return mergeConflicts.get();
+    }
+    
+    /**
+     * Getter for the conflicts resolved with the stored value.
+     * @return The number of stored wins
+     */
+    public long getMergeStoredWins() {
+        return mergeStoredWins.get();
+    }
+    
+    /**
+     * Getter for the locks that waited.
+     * @return The number of locks that waited
+     */
+    public long getLockWaits() {
+        return lockWaits.get();
+    }
+    
+    /**
+     * Getter for the time waiting for locks.
+     * @return The time in ms
+     */
+    public long getLockWaitTime() {
+        return lockWaitTime.get();
+    }
+    
+    /**
+     * Getter for the lease renewals.
+     * @return The number of renewals
+     */
+    public long getLeaseRenewals() {
+        return leaseRenewals.get();
+    }
+    
+    /**
+     * Getter for the leases lost.
+     * @return The number of leases lost
+     */
+    public long getLeasesLost() {
+        return leasesLost.get();
+    }
+    
+    /**
+     * Getter for the lock retries.
+     * @return The number of retries
+     */
+    public long getLockRetries() {
+        return lockRetries.get();
+    }
+    
+    /**
+     * Getter for the queued locks.
+     * @return The number of queued threads
+     */
+    public long getLockQueued() {
+        return lockQueued.get();
+    }
+    
+    /**
+     * Getter for the lock timeouts.
+     * @return The number of timeouts
+     */
+    public long getLockTimeouts() {
+        return lockTimeouts.get();
+    }
+    
+    /**
+     * Getter for the owner hits.
+     * @return The number of loads skipped
+     */
+    public long getOwnerHits() {
+        return ownerHits.get();
+    }
+    
+    /**
+     * Getter for the owner misses.
+     * @return The number of misses
+     */
+    public long getOwnerMisses() {
+        return ownerMisses.get();
+    }
+    
+    /**
+     * Getter for the owner takeovers.
+     * @return The number of takeovers
+     */
+    public long getOwnerTakeovers() {
+        return ownerTakeovers.get();
+    }
+    
+    /**
+     * Reset all the counters.
+     */
+    public void reset() {
+        prefetched.set(0);
+        prefetchHits.set(0);
+        prefetchMisses.set(0);
+        prefetchWasted.set(0);
+        loads.set(0);
+        coalescedLoads.set(0);
+        negativeCacheHits.set(0);
+        immutableReads.set(0);
+        unchangedReferences.set(0);
+        touchOnlySaves.set(0);
+        bytesSaved.set(0);
+        deferredSaves.set(0);
+        checkpointFlushes.set(0);
+        pipelinedLoads.set(0);
+        collapsedSaves.set(0);
+        deferredSaveErrors.set(0);
+        optimisticConflicts.set(0);
+        optimisticRetries.set(0);
+        lockFallbacks.set(0);
+        mergedSaves.set(0);
+        mergeConflicts.set(0);
+        mergeStoredWins.set(0);
+        lockWaits.set(0);
+        lockWaitTime.set(0);
+        leaseRenewals.set(0);
+        leasesLost.set(0);
+        lockRetries.set(0);
+        lockQueued.set(0);
+        lockTimeouts.set(0);
+        ownerHits.set(0);
+        ownerMisses.set(0);
+        ownerTakeovers.set(0);
+    }
+    
+    /**
+     * String representation of the counters.
+     * @return The string representation
+     */
+    @Override
+    public String toString() {
+        return new StringBuilder("prefetch={prefetched=").append(getPrefetched())
+                .append(", hits=").append(getPrefetchHits())
+                .append(", misses=").append(getPrefetchMisses())
+                .append(", wasted=").append(getPrefetchWasted())
+                .append(", hitRatio=").append(getPrefetchHitRatio())
+                .append("%}, loads={loads=").append(getLoads())
+                .append(", coalesced=").append(getCoalescedLoads())
+                .append(", negativeCacheHits=").append(getNegativeCacheHits())
+                .append("}, attributes={immutableReads=").append(getImmutableReads())
+                .append(", unchangedReferences=").append(getUnchangedReferences())
+                .append(", bytesSaved=").append(getBytesSaved())
+                .append("}, saves={touchOnlySaves=").append(getTouchOnlySaves())
+                .append(", deferredSaves=").append(getDeferredSaves())
+                .append(", checkpointFlushes=").append(getCheckpointFlushes())
+                .append(", pipelinedLoads=").append(getPipelinedLoads())
+                .append(", collapsedSaves=").append(getCollapsedSaves())
+                .append(", deferredSaveErrors=").append(getDeferredSaveErrors())
+                .append("}, optimistic={conflicts=").append(getOptimisticConflicts())
+                .append(", retries=").append(getOptimisticRetries())
+                .append(", lockFallbacks=").append(getLockFallbacks())
+                .append("}, merge={saves=").append(getMergedSaves())
+                .append(", conflicts=").append(getMergeConflicts())
+                .append(", storedWins=").append(getMergeStoredWins())
+                .append("}, lock={waits=").append(getLockWaits())
+                .append(", waitTime=").append(getLockWaitTime())
+                .append(", renewals=").append(getLeaseRenewals())
+                .append(", leasesLost=").append(getLeasesLost())
+                .append(", retries=").append(getLockRetries())
+                .append(", queued=").append(getLockQueued())
+                .append(", timeouts=").append(getLockTimeouts())
+                .append("}, owner={hits=").append(getOwnerHits())
+                .append(", misses=").append(getOwnerMisses())
+                .append(", takeovers=").append(getOwnerTakeovers())
+                .append("}").toString();
+    }
+}
@@ -0,0 +1,71 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+/**
+ * <p>Policy used to resolve the attributes that were modified by two servers
+ * at the same time. When the final CAS of a save fails (another server
+ * saved the session after it was read) the stored session is read again
+ * and the changes of this request are applied over it. Attributes only 
+ * modified in one side are merged without asking, the policy is only 
+ * called when the attribute was modified (or removed) in this request and
+ * also in couchbase.</p>
+ * 
+ * <p>The values are passed serialized (as they are stored in the session, 
+ * a reference for external attributes). A null value means the attribute
+ * was removed. The implementation should have an empty constructor, it is 
+ * configured with the class name in the mergePolicy property.</p>
+ * 
+ * @author ricky
+ */
+public interface MergePolicy {
+    
+    /**
+     * The side that wins the conflict.
+     */
+    public enum Decision {
+        LOCAL, STORED;
+    }
+    
+    /**
+     * Resolve the conflict of an attribute.
+     * @param name The name of the attribute
+     * @param stored The value saved by the other server (null if removed)
+     * @param local The value of this request (null if removed)
+     * @return The value to maintain in the session
+     */
+    public Decision resolve(String name, byte[] stored, byte[] local);
+}
@@ -0,0 +1,225 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import es.rickyepoderi.couchbasemanager.couchbase.Client;
+import es.rickyepoderi.couchbasemanager.couchbase.ClientResult;
+import es.rickyepoderi.couchbasemanager.couchbase.ExecOnCompletion;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Exec used in the non-sticky saves that finish with a CAS. If the CAS
+ * returns EXISTS another server saved the session after it was read. The
+ * session is read again (gets, async), the changes of the request are 
+ * merged over the stored session (see SessionChanges) and the CAS is 
+ * retried with the new cas until optimisticRetries is reached. The same
+ * bytes are never re-sent with the new cas: without changes to merge, or
+ * if the merge is not possible, the save finishes with EXISTS. In 
+ * OPTIMISTIC mode every conflict is registered in the session (repeated 
+ * conflicts make it fall back to LOCK mode), the exec is also used for the
+ * locked saves of a session in fallback to count them down.</p>
+ * 
+ * <p>Finally the real exec (OperationComplete) is executed with the last
+ * result. The retries are always async cos the exec can be called inside
+ * the spymemcached listener.</p>
+ * 
+ * @author ricky
+ */
+public class MergeSaveComplete implements ExecOnCompletion {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(MergeSaveComplete.class.getName());
+    
+    /**
+     * Exec that receives the session re-read to launch the retry.
+     */
+    private class Reloaded implements ExecOnCompletion {
+        
+        /**
+         * Exists result that is returned if the merge is not possible.
+         */
+        private ClientResult exists = null;
+        
+        /**
+         * Constructor using the result of the failed CAS.
+         * @param exists The result of the CAS
+         */
+        public Reloaded(ClientResult exists) {
+            this.exists = exists;
+        }
+        
+        /**
+         * Merge and launch the CAS again with the new cas or finish with 
+         * the error if the session cannot be read.
+         * @param res The result of the gets
+         */
+        @Override
+        public void execute(ClientResult res) {
+            if (res.isSuccess() && res.getCas() <= 0) {
+                // locked by other server => no valid cas to merge over
+                finish(exists);
+            } else if (res.isSuccess()) {
+                byte[] merged;
+                try {
+                    merged = changes.merge(data, res.getValue(), 
+                            manager.getMergePolicy(), manager.getStats());
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Error merging the session " + id, e);
+                    finish(exists);
+                    return;
+                }
+                log.log(Level.FINE, "Retrying the merged CAS {0} {1}", new Object[]{id, attempts});
+                manager.getStats().incrementOptimisticRetries();
+                client.casAsync(id, merged, res.getCas(), exp, MergeSaveComplete.this);
+            } else {
+                finish(res);
+            }
+        }
+    }
+    
+    /**
+     * The manager of the session.
+     */
+    private CouchbaseManager manager = null;
+    
+    /**
+     * The client to launch the retries.
+     */
+    private Client client = null;
+    
+    /**
+     * The session saved.
+     */
+    private CouchbaseWrapperSession session = null;
+    
+    /**
+     * The id of the session.
+     */
+    private String id = null;
+    
+    /**
+     * The serialized session (local version).
+     */
+    private byte[] data = null;
+    
+    /**
+     * The changes of the request to merge.
+     */
+    private SessionChanges changes = null;
+    
+    /**
+     * The expiration time.
+     */
+    private int exp = 0;
+    
+    /**
+     * The real exec to execute at the end.
+     */
+    private ExecOnCompletion exec = null;
+    
+    /**
+     * Number of retries done.
+     */
+    private int attempts = 0;
+    
+    /**
+     * Constructor with all the properties.
+     * @param manager The manager
+     * @param client The client to launch retries
+     * @param session The session saved
+     * @param id The id of the session
+     * @param data The serialized session
+     * @param changes The changes of the request (null means no merge)
+     * @param exp The expiration time
+     * @param exec The real exec
+     */
+    public MergeSaveComplete(CouchbaseManager manager, Client client, 
+            CouchbaseWrapperSession session, String id, byte[] data, 
+            SessionChanges changes, int exp, ExecOnCompletion exec) {
+        this.manager = manager;
+        this.client = client;
+        this.session = session;
+        this.id = id;
+        this.data = data;
+        this.changes = changes;
+        this.exp = exp;
+        this.exec = exec;
+        this.attempts = 0;
+    }
+
+    /**
+     * If the result is EXISTS the conflict is registered and, if there are 
+     * retries left, the session is read again to merge it. In any other 
+     * case the real exec is executed.
+     * @param res The result of the CAS
+     */
+    @Override
+    public void execute(ClientResult res) {
+        if (res.isExists()) {
+            if (session.isOptimistic()) {
+                manager.getStats().incrementOptimisticConflicts();
+                if (session.conflict(manager.getOptimisticFallback())) {
+                    manager.getStats().incrementLockFallbacks();
+                }
+            }
+            if (changes != null && attempts < manager.getOptimisticRetries()) {
+                attempts++;
+                client.getsAsync(id, new Reloaded(res));
+                return;
+            }
+        } else if (res.isSuccess()) {
+            session.conflictFree();
+        }
+        finish(res);
+    }
+    
+    /**
+     * Finishes the save with the final result: the references not used
+     * anymore are deleted and the real exec is executed.
+     * @param res The final result
+     */
+    private void finish(ClientResult res) {
+        manager.deleteObsoleteReferences(changes, res);
+        if (manager.isOwnerMode()) {
+            session.saveCompleted(res, attempts > 0);
+        }
+        exec.execute(res);
+    }
+}
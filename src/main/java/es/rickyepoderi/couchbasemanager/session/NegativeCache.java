@@ -0,0 +1,126 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+/**
+ * <p>Cache of session ids that are recently confirmed missing in couchbase
+ * (crawlers and old bookmarks send stale ids constantly). If an id is in
+ * the cache findSession returns null without accessing couchbase. The
+ * entries are limited in number and time, and an id must be removed 
+ * when a session with that id is created in this node.</p>
+ * 
+ * @author ricky
+ */
+public abstract class NegativeCache {
+    
+    /**
+     * Maximum number of ids in the cache.
+     */
+    protected int size;
+    
+    /**
+     * Time in milliseconds an id is considered missing.
+     */
+    protected long time;
+    
+    /**
+     * Constructor using the size and the time.
+     * @param size The maximum number of ids
+     * @param time The time in milliseconds an id is maintained
+     */
+    protected NegativeCache(int size, long time) {
+        this.size = size;
+        this.time = time;
+    }
+    
+    /**
+     * Creates the negative cache for the specified type.
+     * @param type The type of cache
+     * @param size The maximum number of ids
+     * @param time The time in milliseconds an id is maintained
+     * @return The negative cache or null if the type is NONE
+     */
+    public static NegativeCache create(NegativeCacheType type, int size, long time) {
+        switch (type) {
+            case LRU:
+                return new LruNegativeCache(size, time);
+            case BLOOM:
+                return new BloomNegativeCache(size, time);
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Getter for the size.
+     * @return The maximum number of ids
+     */
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Getter for the time.
+     * @return The time in milliseconds an id is maintained
+     */
+    public long getTime() {
+        return time;
+    }
+    
+    /**
+     * Returns if the id was recently confirmed missing.
+     * @param id The session id
+     * @return true if the id is considered missing
+     */
+    public abstract boolean contains(String id);
+    
+    /**
+     * Adds an id confirmed missing in couchbase.
+     * @param id The session id
+     */
+    public abstract void add(String id);
+    
+    /**
+     * Removes an id from the cache (the session is created).
+     * @param id The session id
+     */
+    public abstract void remove(String id);
+    
+    /**
+     * Removes all the ids.
+     */
+    public abstract void clear();
+}
@@ -0,0 +1,330 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.Digest;
+import es.rickyepoderi.couchbasemanager.io.ReferenceObject;
+import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Changes of a request over a non-sticky session. The object is created
+ * by the processSave and it remembers which attributes were modified or
+ * removed in the request and the digests of the attributes when the session
+ * was loaded. If the final CAS fails with EXISTS (another server saved the 
+ * session after it was read) the changes are applied over the session 
+ * currently stored in couchbase (merge) and the CAS can be retried.</p>
+ * 
+ * <p>The merged session uses the fixed part (id, times, owner stamp,...) and
+ * the format version of the local session, the modified attributes of this
+ * request and the rest of the attributes as they are stored. If an attribute was also changed
+ * by the other server (its digest differs from the loaded one) there is a
+ * conflict and the MergePolicy decides the value to maintain. External
+ * attributes are merged at reference level, that is why a modified external
+ * attribute is always written under a new reference in non-sticky mode and
+ * the replaced or removed references are only deleted when the final result
+ * of the save is known (see getObsoleteReferences). A reference written by
+ * the other server that loses the merge is also deleted then.</p>
+ * 
+ * @author ricky
+ */
+public class SessionChanges {
+    
+    /**
+     * logger for the class
+     */
+    protected static final Logger log = Logger.getLogger(SessionChanges.class.getName());
+    
+    /**
+     * Length of the fixed part of the local session (attributes start).
+     */
+    private int headerLength = 0;
+    
+    /**
+     * Attributes modified in the request, the value is the start and
+     * the end of the attribute (length and value) in the local session.
+     */
+    private Map<String,int[]> modified = null;
+    
+    /**
+     * Attributes removed in the request.
+     */
+    private Set<String> removed = null;
+    
+    /**
+     * Digests of the attributes when the session was loaded.
+     */
+    private Map<String,Long> loaded = null;
+    
+    /**
+     * References of the external attributes replaced or removed in the 
+     * request (attribute name to old reference).
+     */
+    private Map<String,String> replaced = null;
+    
+    /**
+     * References created in the request for modified external attributes
+     * (attribute name to new reference).
+     */
+    private Map<String,String> created = null;
+    
+    /**
+     * Attributes whose stored value was maintained in the last merge.
+     */
+    private Set<String> storedWins = new HashSet<String>();
+    
+    /**
+     * Stored references (serialized) written by another server that were 
+     * discarded in the last merge (the local value won).
+     */
+    private Map<String,byte[]> lost = new HashMap<String,byte[]>();
+    
+    /**
+     * Constructor using all the properties but the references.
+     * @param headerLength The length of the fixed part of the session
+     * @param modified The attributes modified with their position
+     * @param removed The attributes removed
+     * @param loaded The digests of the attributes loaded
+     */
+    public SessionChanges(int headerLength, Map<String,int[]> modified, 
+            Set<String> removed, Map<String,Long> loaded) {
+        this(headerLength, modified, removed, loaded, 
+                Collections.<String,String>emptyMap(), Collections.<String,String>emptyMap());
+    }
+    
+    /**
+     * Constructor using all the properties.
+     * @param headerLength The length of the fixed part of the session
+     * @param modified The attributes modified with their position
+     * @param removed The attributes removed
+     * @param loaded The digests of the attributes loaded
+     * @param replaced The old references replaced or removed in the request
+     * @param created The new references written in the request
+     */
+    public SessionChanges(int headerLength, Map<String,int[]> modified, 
+            Set<String> removed, Map<String,Long> loaded,
+            Map<String,String> replaced, Map<String,String> created) {
+        this.headerLength = headerLength;
+        this.modified = modified;
+        this.removed = removed;
+        this.loaded = loaded;
+        this.replaced = replaced;
+        this.created = created;
+    }
+    
+    /**
+     * Returns the external references that are not used anymore once the
+     * final result of the save is known. If the save succeeded the replaced
+     * references are obsolete except for the attributes in which the stored
+     * value won the merge (the reference is then owned by the other server,
+     * which deletes it when its own save finishes), and the created ones are
+     * obsolete only for those attributes. If the save definitely failed the
+     * created references are obsolete and the old ones are still in use.
+     * The stored references discarded by the merge are obsolete only if the
+     * session was saved.
+     * @param success true if the session was saved, false if not saved
+     * @param trans The transcoder to read the discarded stored references
+     * @return The references to delete
+     */
+    public Set<String> getObsoleteReferences(boolean success, TranscoderUtil trans) {
+        Set<String> refs = new HashSet<String>();
+        for (Map.Entry<String,String> entry : created.entrySet()) {
+            if (!success || storedWins.contains(entry.getKey())) {
+                refs.add(entry.getValue());
+            }
+        }
+        if (success) {
+            for (Map.Entry<String,String> entry : replaced.entrySet()) {
+                if (!storedWins.contains(entry.getKey())) {
+                    refs.add(entry.getValue());
+                }
+            }
+            for (byte[] ref : lost.values()) {
+                refs.add(((ReferenceObject) trans.deserialize(ref)).getReference());
+            }
+        }
+        return refs;
+    }
+    
+    /**
+     * Returns the position of the value of an attribute in the local
+     * session (the position of the object after its length).
+     * @param local The local session serialized by processSave
+     * @param version The version of the format of the local session
+     * @param start The start of the object (length included)
+     * @return The position where the value starts
+     */
+    private static int dataStart(byte[] local, int version, int start) {
+        if (version == SessionOutputStream.V0) {
+            return start + 4;
+        }
+        // skip the varint
+        int i = start;
+        while ((local[i] & 0x80) != 0) {
+            i++;
+        }
+        return i + 1;
+    }
+    
+    /**
+     * Returns if the stored value was changed by another server since
+     * the session was loaded.
+     * @param name The name of the attribute
+     * @param value The stored value (null if not stored)
+     * @return true if the attribute was changed in couchbase
+     */
+    private boolean isStoredChanged(String name, byte[] value) {
+        Long digest = loaded.get(name);
+        if (value == null) {
+            return digest != null;
+        } else {
+            return digest == null || digest.longValue() != Digest.hash(value);
+        }
+    }
+    
+    /**
+     * Merge the changes of the local session over the stored one.
+     * @param local The local session serialized by processSave
+     * @param stored The session currently stored in couchbase
+     * @param policy The policy to resolve the conflicts
+     * @param stats The stats to count conflicts
+     * @return The merged session
+     * @throws IOException Some error reading or writing the sessions
+     */
+    public byte[] merge(byte[] local, byte[] stored, MergePolicy policy, 
+            ManagerStats stats) throws IOException {
+        SessionInputStream sis = null;
+        SessionOutputStream sos = null;
+        try {
+            int version = SessionInputStream.detectVersion(local);
+            sis = new SessionInputStream(stored);
+            sos = new SessionOutputStream(version);
+            // the stored session can be in other version, its header is discarded
+            SessionHeader.read(sis, stored.length);
+            sos.write(local, sos.size(), headerLength - sos.size());
+            Set<String> done = new HashSet<String>();
+            storedWins.clear();
+            lost.clear();
+            while (sis.available() > 0) {
+                String name = sis.readString();
+                Map.Entry<Boolean,byte[]> value = sis.readObjectAsArray();
+                boolean changed = isStoredChanged(name, value.getValue());
+                int[] pos = modified.get(name);
+                if (pos != null) {
+                    done.add(name);
+                    byte[] mine = Arrays.copyOfRange(local, dataStart(local, version, pos[0]), pos[1]);
+                    if (changed && resolve(policy, stats, name, value.getValue(), mine)) {
+                        storedWins.add(name);
+                        sos.writeString(name);
+                        sos.writeObjectAsArray(value.getValue(), value.getKey());
+                    } else {
+                        if (changed && value.getKey()) {
+                            lost.put(name, value.getValue());
+                        }
+                        sos.writeString(name);
+                        sos.write(local, pos[0], pos[1] - pos[0]);
+                    }
+                } else if (removed.contains(name)) {
+                    if (changed && resolve(policy, stats, name, value.getValue(), null)) {
+                        storedWins.add(name);
+                        sos.writeString(name);
+                        sos.writeObjectAsArray(value.getValue(), value.getKey());
+                    } else if (changed && value.getKey()) {
+                        lost.put(name, value.getValue());
+                    }
+                } else {
+                    // not touched in this request => stored value
+                    sos.writeString(name);
+                    sos.writeObjectAsArray(value.getValue(), value.getKey());
+                }
+            }
+            for (Map.Entry<String,int[]> entry : modified.entrySet()) {
+                String name = entry.getKey();
+                if (!done.contains(name)) {
+                    int[] pos = entry.getValue();
+                    // removed by the other server if it was loaded
+                    if (!isStoredChanged(name, null) || !resolve(policy, stats, name, null, 
+                            Arrays.copyOfRange(local, dataStart(local, version, pos[0]), pos[1]))) {
+                        sos.writeString(name);
+                        sos.write(local, pos[0], pos[1] - pos[0]);
+                    } else {
+                        storedWins.add(name);
+                    }
+                }
+            }
+            stats.incrementMergedSaves();
+            return sos.toByteArray();
+        } finally {
+            if (sis != null) {
+                try {sis.close();} catch(IOException e) {}
+            }
+            if (sos != null) {
+                try {sos.close();} catch(IOException e) {}
+            }
+        }
+    }
+    
+    /**
+     * Resolves a conflict using the policy.
+     * @param policy The merge policy
+     * @param stats The stats to count the conflict
+     * @param name The name of the attribute
+     * @param stored The stored value (null if removed)
+     * @param local The local value (null if removed)
+     * @return true if the stored value wins
+     */
+    private static boolean resolve(MergePolicy policy, ManagerStats stats, 
+            String name, byte[] stored, byte[] local) {
+        stats.incrementMergeConflicts();
+        MergePolicy.Decision decision = policy.resolve(name, stored, local);
+        log.log(Level.FINE, "Conflict in attribute {0} resolved as {1}", new Object[]{name, decision});
+        if (MergePolicy.Decision.STORED.equals(decision)) {
+            stats.incrementMergeStoredWins();
+            return true;
+        }
+        return false;
+    }
+}
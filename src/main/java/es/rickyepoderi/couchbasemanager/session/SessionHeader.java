@@ -0,0 +1,279 @@
+/***
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *    
+ * Linking this library statically or dynamically with other modules 
+ * is making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *    
+ * As a special exception, the copyright holders of this library give 
+ * you permission to link this library with independent modules to 
+ * produce an executable, regardless of the license terms of these 
+ * independent modules, and to copy and distribute the resulting 
+ * executable under terms of your choice, provided that you also meet, 
+ * for each linked independent module, the terms and conditions of the 
+ * license of that module.  An independent module is a module which 
+ * is not derived from or based on this library.  If you modify this 
+ * library, you may extend this exception to your version of the 
+ * library, but you are not obligated to do so.  If you do not wish 
+ * to do so, delete this exception statement from your version.
+ *
+ * Project: github.com/rickyepoderi/couchbase-manager
+ * 
+ */
+package es.rickyepoderi.couchbasemanager.session;
+
+import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import java.io.IOException;
+
+/**
+ * <p>Fixed part (non-transient fields) of a serialized session. The header
+ * knows how to read the old format (V0) and to read and write the compact 
+ * one (V1). In V1 a bitmap marks the nullable strings that are present 
+ * and the two booleans, lengths and numbers are varints and the access 
+ * times are written as a delta against the creation time.</p>
+ * 
+ * <pre>
+ * V0: id sip beKey creation(8) maxInactive(4) new valid version(8) ssoId 
+ *     [thisAccessed(8) lastAccessed(8) [-2 owner generation(8)]] username
+ * V1: magic version bitmap id [sip] [beKey] creation maxInactive version 
+ *     [ssoId] [username] [thisAccessed lastAccessed [owner] generation]
+ * </pre>
+ * 
+ * <p>The part between brackets is the one excluded from the body digest
+ * (timesStart and timesEnd) because it changes in every request.</p>
+ * 
+ * @author ricky
+ */
+public class SessionHeader {
+    
+    /**
+     * Bitmap flags for the V1 header.
+     */
+    private static final int HAS_SIP = 1;
+    private static final int HAS_BEKEY = 2;
+    private static final int HAS_SSO = 4;
+    private static final int HAS_USERNAME = 8;
+    private static final int HAS_OWNER = 16;
+    private static final int IS_NEW = 32;
+    private static final int IS_VALID = 64;
+    
+    /**
+     * Fields of the session (see CouchbaseWrapperSession).
+     */
+    String id = null;
+    String sipApplicationSessionId = null;
+    String beKey = null;
+    long creationTime = 0L;
+    int maxInactiveInterval = 0;
+    boolean isNew = false;
+    boolean isValid = false;
+    long version = 0L;
+    String ssoId = null;
+    long thisAccessedTime = 0L;
+    long lastAccessedTime = 0L;
+    String owner = null;
+    long generation = 0L;
+    String username = null;
+    
+    /**
+     * Position where the access times start in the serialized session
+     * (start of the part excluded from the body digest).
+     */
+    int timesStart = 0;
+    
+    /**
+     * Position after the owner stamp in the serialized session (end of
+     * the part excluded from the body digest).
+     */
+    int timesEnd = 0;
+    
+    /**
+     * Position where the attributes start in the serialized session.
+     */
+    int length = 0;
+    
+    /**
+     * Empty constructor.
+     */
+    public SessionHeader() {
+        // empty
+    }
+    
+    /**
+     * Reads the header from the stream (any version).
+     * @param sis The stream positioned at the beginning of the session
+     * @param total The total length of the serialized session
+     * @return The header read
+     * @throws IOException Some error reading
+     */
+    public static SessionHeader read(SessionInputStream sis, int total) throws IOException {
+        SessionHeader h = new SessionHeader();
+        if (sis.getVersion() == SessionOutputStream.V0) {
+            h.readV0(sis, total);
+        } else if (sis.getVersion() == SessionOutputStream.V1) {
+            h.readV1(sis, total);
+        } else {
+            throw new IOException("Unknown session format version " + sis.getVersion());
+        }
+        h.length = total - sis.available();
+        return h;
+    }
+    
+    /**
+     * Reads the old format.
+     * @param sis The stream
+     * @param total The total length of the serialized session
+     * @throws IOException Some error reading
+     */
+    private void readV0(SessionInputStream sis, int total) throws IOException {
+        id = sis.readString();
+        sipApplicationSessionId = sis.readString();
+        beKey = sis.readString();
+        creationTime = sis.readLong();
+        maxInactiveInterval = sis.readInt();
+        isNew = sis.readBoolean();
+        isValid = sis.readBoolean();
+        version = sis.readLong();
+        ssoId = sis.readString();
+        timesStart = total - sis.available();
+        thisAccessedTime = sis.readLong();
+        lastAccessedTime = sis.readLong();
+        sis.mark(0);
+        if (sis.readInt() == CouchbaseWrapperSession.OWNER_MARK) {
+            owner = sis.readString();
+            generation = sis.readLong();
+        } else {
+            sis.reset();
+        }
+        timesEnd = total - sis.available();
+        username = sis.readString();
+    }
+    
+    /**
+     * Reads the compact format.
+     * @param sis The stream positioned after the magic and version
+     * @param total The total length of the serialized session
+     * @throws IOException Some error reading
+     */
+    private void readV1(SessionInputStream sis, int total) throws IOException {
+        int bitmap = sis.read();
+        if (bitmap < 0) {
+            throw new IOException("Unexpected end of the session header");
+        }
+        id = sis.readString();
+        sipApplicationSessionId = (bitmap & HAS_SIP) != 0? sis.readString() : null;
+        beKey = (bitmap & HAS_BEKEY) != 0? sis.readString() : null;
+        creationTime = sis.readVarLong();
+        maxInactiveInterval = sis.readVarInt();
+        isNew = (bitmap & IS_NEW) != 0;
+        isValid = (bitmap & IS_VALID) != 0;
+        version = sis.readVarLong();
+        ssoId = (bitmap & HAS_SSO) != 0? sis.readString() : null;
+        username = (bitmap & HAS_USERNAME) != 0? sis.readString() : null;
+        timesStart = total - sis.available();
+        thisAccessedTime = creationTime + sis.readVarLong();
+        lastAccessedTime = creationTime + sis.readVarLong();
+        owner = (bitmap & HAS_OWNER) != 0? sis.readString() : null;
+        generation = sis.readVarLong();
+        timesEnd = total - sis.available();
+    }
+    
+    /**
+     * Writes the header in the version of the stream (V0 is only written 
+     * for compatibility, the owner stamp is only added if there is owner).
+     * @param sos The stream (empty)
+     * @throws IOException Some error writing
+     */
+    public void write(SessionOutputStream sos) throws IOException {
+        if (sos.getVersion() == SessionOutputStream.V0) {
+            writeV0(sos);
+        } else if (sos.getVersion() == SessionOutputStream.V1) {
+            writeV1(sos);
+        } else {
+            throw new IOException("Unknown session format version " + sos.getVersion());
+        }
+        length = sos.size();
+    }
+    
+    /**
+     * Writes the old format.
+     * @param sos The stream
+     * @throws IOException Some error writing
+     */
+    private void writeV0(SessionOutputStream sos) throws IOException {
+        sos.writeString(id);
+        sos.writeString(sipApplicationSessionId);
+        sos.writeString(beKey);
+        sos.writeLong(creationTime);
+        sos.writeInt(maxInactiveInterval);
+        sos.writeBoolean(isNew);
+        sos.writeBoolean(isValid);
+        sos.writeLong(version);
+        sos.writeString(ssoId);
+        timesStart = sos.size();
+        sos.writeLong(thisAccessedTime);
+        sos.writeLong(lastAccessedTime);
+        if (owner != null) {
+            sos.writeInt(CouchbaseWrapperSession.OWNER_MARK);
+            sos.writeString(owner);
+            sos.writeLong(generation);
+        }
+        timesEnd = sos.size();
+        sos.writeString(username);
+    }
+    
+    /**
+     * Writes the compact format.
+     * @param sos The stream (magic and version already written)
+     * @throws IOException Some error writing
+     */
+    private void writeV1(SessionOutputStream sos) throws IOException {
+        int bitmap = 0;
+        bitmap |= sipApplicationSessionId != null? HAS_SIP : 0;
+        bitmap |= beKey != null? HAS_BEKEY : 0;
+        bitmap |= ssoId != null? HAS_SSO : 0;
+        bitmap |= username != null? HAS_USERNAME : 0;
+        bitmap |= owner != null? HAS_OWNER : 0;
+        bitmap |= isNew? IS_NEW : 0;
+        bitmap |= isValid? IS_VALID : 0;
+        sos.writeByte(bitmap);
+        sos.writeString(id);
+        if (sipApplicationSessionId != null) {
+            sos.writeString(sipApplicationSessionId);
+        }
+        if (beKey != null) {
+            sos.writeString(beKey);
+        }
+        sos.writeVarLong(creationTime);
+        sos.writeVarInt(maxInactiveInterval);
+        sos.writeVarLong(version);
+        if (ssoId != null) {
+            sos.writeString(ssoId);
+        }
+        if (username != null) {
+            sos.writeString(username);
+        }
+        timesStart = sos.size();
+        sos.writeVarLong(thisAccessedTime - creationTime);
+        sos.writeVarLong(lastAccessedTime - creationTime);
+        if (owner != null) {
+            sos.writeString(owner);
+        }
+        sos.writeVarLong(generation);
+        timesEnd = sos.size();
+    }
+}
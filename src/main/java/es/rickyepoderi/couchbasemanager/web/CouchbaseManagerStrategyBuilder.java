@@ -36,7 +36,16 @@
 package es.rickyepoderi.couchbasemanager.web;
 
 import com.sun.enterprise.web.BasePersistenceStrategyBuilder;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionExecutor;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionMode;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import es.rickyepoderi.couchbasemanager.session.LocalWinsMergePolicy;
+import es.rickyepoderi.couchbasemanager.session.LockMode;
+import es.rickyepoderi.couchbasemanager.session.MergePolicy;
+import es.rickyepoderi.couchbasemanager.session.NegativeCacheType;
 import es.rickyepoderi.couchbasemanager.session.UsageConfiguration;
+import java.util.HashSet;
+import java.util.Set;
 import net.spy.memcached.PersistTo;
 import net.spy.memcached.ReplicateTo;
 
@@ -101,6 +110,114 @@ import net.spy.memcached.ReplicateTo;
  *       which the session remains in couchbase. This extra time is given to access
  *       session information before expiration in couchbase (JavaEE listeners
  *       mainly). Desfaul: 180 seconds.</li>
+ *   <li>completionPoolSize: Since version 0.5.1 asynchronous operations
+ *       are waited by a shared and bounded pool of threads instead of a new
+ *       thread per operation. Maximum number of threads of the pool. Default: 16.</li>
+ *   <li>completionQueueSize: Maximum number of asynchronous operations that
+ *       can be queued waiting for a thread of the pool. If the queue is full
+ *       the operation is waited by an extra thread created on demand. 
+ *       Default: 1024.</li>
+ *   <li>completionMode: The way async operations are waited, the value
+ *       should be the String representation of the
+ *       es.rickyepoderi.couchbasemanager.couchbase.CompletionMode enum. In
+ *       THREAD mode a thread of the pool is blocked until the operation
+ *       finishes, in LISTENER mode a thread is only taken to execute the code
+ *       when the operation is finished. Default: THREAD.</li>
+ *   <li>attrPrefetch: If true all the external attributes of the session
+ *       are read in one multi-get just after the session is loaded (the
+ *       values are received while the request is processed). If false
+ *       external attributes are only read when accessed. Default: false.</li>
+ *   <li>attrPrefetchUsage: When attrPrefetch is set only the external
+ *       attributes with a usage (percentage of the requests that access
+ *       the attribute, see attrUsageCondition) equal or above this value
+ *       are prefetched. Attributes without enough usage data are always
+ *       prefetched. Value between 0 and 100. Default: 0 (all).</li>
+ *   <li>negativeCacheType: Cache of session ids recently confirmed missing
+ *       in couchbase (findSession returns null for them without accessing
+ *       couchbase). The value is the String representation of the 
+ *       es.rickyepoderi.couchbasemanager.session.NegativeCacheType enum: 
+ *       NONE, LRU (exact) or BLOOM (probabilistic, for a very high number 
+ *       of stale ids). Default: NONE.</li>
+ *   <li>negativeCacheSize: Maximum number of ids in the negative cache
+ *       (ids per generation in BLOOM). Default: 10000.</li>
+ *   <li>negativeCacheTime: Seconds an id is considered missing in the
+ *       negative cache. Default: 60.</li>
+ *   <li>attrImmutableClasses: Comma separated list of class names that are
+ *       immutable, a read of an attribute of these classes does not mark
+ *       it as modified (it is not serialized again). String, boxed 
+ *       primitives and enums are always considered immutable. Default: 
+ *       empty.</li>
+ *   <li>touchOnlySlack: When the only change in the session are the access
+ *       times the session is saved with a touch (sticky) or an unlock plus
+ *       touch (non-sticky) instead of writing the whole session. The
+ *       access times stored in couchbase are kept within this slack in 
+ *       seconds (a full write is done if the stored times are older). 
+ *       Zero or a negative value disables the touch only saves. 
+ *       Default: 0.</li>
+ *   <li>stickyCheckpointRequests: In sticky configuration the session is
+ *       only persisted every this number of requests (checkpoint mode), the
+ *       saves in between are deferred. The session is always persisted 
+ *       when invalidated, authenticated, its id is changed or the manager
+ *       is stopped. Values of 1 or less disable the checkpoint mode (the 
+ *       session is saved in every request). Default: 1.</li>
+ *   <li>stickyCheckpointTime: Maximum time in seconds a change can be 
+ *       deferred in checkpoint mode. A background task saves the sessions
+ *       with older deferred changes. It should be lower than the session
+ *       timeout (the expiration in couchbase is only refreshed when the
+ *       session is saved). Default: 30.</li>
+ *   <li>stickyPipelining: In sticky configuration a new request can use
+ *       the session while the save of the previous request is still in
+ *       flight (the memory session is the good one). Saves are never 
+ *       launched concurrently, a save that finds another one in flight is
+ *       collapsed and launched when the previous finishes. Default: 
+ *       false.</li>
+ *   <li>lockMode: How the sessions are protected in non-sticky 
+ *       configuration. LOCK reads the session with getAndLock and saves it 
+ *       with a CAS that releases the lock. OPTIMISTIC reads the session 
+ *       with gets (no lock) and saves it with a CAS, if another server 
+ *       saved the session in the meantime the changes are merged over the
+ *       stored session and the CAS is retried. OWNER keeps
+ *       the session in memory in the last node that saved it, that node 
+ *       uses it without reading or locking if the cas in couchbase has not
+ *       changed (near sticky performance when the balancer has affinity),
+ *       other nodes take over the session with a locked load. OWNER adds
+ *       an owner stamp to the sessions that previous versions of the 
+ *       manager cannot read. Possible values: LOCK, OPTIMISTIC, OWNER. 
+ *       Default: LOCK.</li>
+ *   <li>optimisticRetries: Number of times a non-sticky CAS that failed 
+ *       with EXISTS is retried (reading the session again and merging the
+ *       changes of the request, see mergePolicy). Default: 3.</li>
+ *   <li>optimisticFallback: Number of consecutive conflicts that make a 
+ *       session fall back to LOCK mode. The session returns to OPTIMISTIC 
+ *       after the same number of locked saves. Default: 3.</li>
+ *   <li>mergePolicy: Class name of the MergePolicy used when the final CAS
+ *       of a non-sticky save fails because another server saved the session
+ *       in the meantime. The changes of the request are merged at attribute
+ *       level over the stored session and the policy decides the attributes
+ *       modified by both servers. Default: 
+ *       es.rickyepoderi.couchbasemanager.session.LocalWinsMergePolicy.</li>
+ *   <li>lockLease: Lease in seconds of the couchbase locks in non-sticky
+ *       LOCK mode. If greater than 0 the session is locked only for this
+ *       time and a background thread renews the lock while the request is
+ *       running, so the locks of a dead or hung server are released 
+ *       quickly. 0 or negative disables the lease (lockTime is used).
+ *       Minimum 2 seconds. Default: 0.</li>
+ *   <li>nodeId: Identifier of this node written in the owner stamp of the
+ *       saved sessions (used by the OWNER lock mode). Default: the
+ *       glassfish instance name or the host name.</li>
+ *   <li>bufferPoolSize: Maximum size in MB of the pool of arrays used to
+ *       serialize the sessions. The arrays are reused between saves 
+ *       (size classes from 1KB to 1MB) instead of allocating and growing
+ *       new ones. 0 or negative disables the pool. Default: 0.</li>
+ *   <li>compressionThreshold: Size in bytes from which the sessions and 
+ *       the external attributes are compressed (Deflate fast level) before
+ *       sending them to couchbase. The compression is discarded if the 
+ *       ratio is poor. Older versions of the manager cannot read the 
+ *       compressed documents. 0 or negative disables it. Default: 0.</li>
+ *   <li>sessionFormat: Format used to write the sessions in couchbase. 0
+ *       is the old format, readable by previous versions of the manager 
+ *       (mixed clusters during a rolling upgrade). 1 is the compact format
+ *       with varints. Both formats are always read. Default: 0.</li>
  * </ul>
  * 
  * <p>Example of configuration:</p>
@@ -196,6 +313,119 @@ public abstract class CouchbaseManagerStrategyBuilder extends BasePersistenceStr
      */
     public static final String PROP_EXTRA_INACTIVE_INTERVAL = "extraInactiveInterval";
     
+    /**
+     * Property that manages the maximum number of threads that wait for
+     * async operations to complete.
+     */
+    public static final String PROP_COMPLETION_POOL_SIZE = "completionPoolSize";
+    
+    /**
+     * Property that manages the maximum number of async operations queued
+     * waiting for a thread of the completion pool.
+     */
+    public static final String PROP_COMPLETION_QUEUE_SIZE = "completionQueueSize";
+    
+    /**
+     * Property that manages how the async operations are waited (THREAD
+     * or LISTENER).
+     */
+    public static final String PROP_COMPLETION_MODE = "completionMode";
+    
+    /**
+     * Property to prefetch external attributes using a multi-get.
+     */
+    public static final String PROP_ATTR_PREFETCH = "attrPrefetch";
+    
+    /**
+     * Property to set the minimum usage for prefetching an external attribute.
+     */
+    public static final String PROP_ATTR_PREFETCH_USAGE = "attrPrefetchUsage";
+    
+    /**
+     * Property for the type of negative cache of missing session ids.
+     */
+    public static final String PROP_NEGATIVE_CACHE_TYPE = "negativeCacheType";
+    
+    /**
+     * Property for the size of the negative cache.
+     */
+    public static final String PROP_NEGATIVE_CACHE_SIZE = "negativeCacheSize";
+    
+    /**
+     * Property for the time (seconds) of the negative cache.
+     */
+    public static final String PROP_NEGATIVE_CACHE_TIME = "negativeCacheTime";
+    
+    /**
+     * Property to set the list of immutable classes.
+     */
+    public static final String PROP_ATTR_IMMUTABLE_CLASSES = "attrImmutableClasses";
+    
+    /**
+     * Property to set the slack in seconds for touch only saves.
+     */
+    public static final String PROP_TOUCH_ONLY_SLACK = "touchOnlySlack";
+    
+    /**
+     * Property to set the number of requests between sticky checkpoints.
+     */
+    public static final String PROP_STICKY_CHECKPOINT_REQUESTS = "stickyCheckpointRequests";
+    
+    /**
+     * Property to set the maximum time of a deferred sticky save.
+     */
+    public static final String PROP_STICKY_CHECKPOINT_TIME = "stickyCheckpointTime";
+    
+    /**
+     * Property to pipeline sticky saves with the next requests.
+     */
+    public static final String PROP_STICKY_PIPELINING = "stickyPipelining";
+    
+    /**
+     * Property to set the lock mode in non-sticky.
+     */
+    public static final String PROP_LOCK_MODE = "lockMode";
+    
+    /**
+     * Property to set the retries of a CAS that returned EXISTS.
+     */
+    public static final String PROP_OPTIMISTIC_RETRIES = "optimisticRetries";
+    
+    /**
+     * Property to set the conflicts to fall back to lock mode.
+     */
+    public static final String PROP_OPTIMISTIC_FALLBACK = "optimisticFallback";
+    
+    /**
+     * Property to set the merge policy class.
+     */
+    public static final String PROP_MERGE_POLICY = "mergePolicy";
+    
+    /**
+     * Property to set the lease of the locks.
+     */
+    public static final String PROP_LOCK_LEASE = "lockLease";
+    
+    /**
+     * Property to set the node identifier.
+     */
+    public static final String PROP_NODE_ID = "nodeId";
+    
+    /**
+     * Property to set the size of the buffer pool.
+     */
+    public static final String PROP_BUFFER_POOL_SIZE = "bufferPoolSize";
+    
+    /**
+     * Property to set the compression threshold.
+     */
+    public static final String PROP_COMPRESSION_THRESHOLD = "compressionThreshold";
+    
+    /**
+     * Property to set the session format.
+     */
+    public static final String PROP_SESSION_FORMAT = "sessionFormat";
+    
     //
     // DEFAULT VALUES FOR PROPERTIES
     //
@@ -272,6 +502,111 @@ public abstract class CouchbaseManagerStrategyBuilder extends BasePersistenceStr
      */
     protected static final int DEFAULT_EXTRA_INACTIVE_INTERVAL = 3*60;
     
+    /**
+     * Default number of threads in the completion pool (16).
+     */
+    protected static final int DEFAULT_COMPLETION_POOL_SIZE = CompletionExecutor.DEFAULT_POOL_SIZE;
+    
+    /**
+     * Default size of the queue of the completion pool (1024).
+     */
+    protected static final int DEFAULT_COMPLETION_QUEUE_SIZE = CompletionExecutor.DEFAULT_QUEUE_SIZE;
+    
+    /**
+     * Default completion mode (THREAD).
+     */
+    protected static final CompletionMode DEFAULT_COMPLETION_MODE = CompletionMode.THREAD;
+    
+    /**
+     * Default value for attribute prefetch (false).
+     */
+    protected static final boolean DEFAULT_ATTR_PREFETCH = false;
+    
+    /**
+     * Default minimum usage to prefetch (0, all the external attributes).
+     */
+    protected static final int DEFAULT_ATTR_PREFETCH_USAGE = 0;
+    
+    /**
+     * Default negative cache type (NONE).
+     */
+    protected static final NegativeCacheType DEFAULT_NEGATIVE_CACHE_TYPE = NegativeCacheType.NONE;
+    
+    /**
+     * Default negative cache size (10000).
+     */
+    protected static final int DEFAULT_NEGATIVE_CACHE_SIZE = 10000;
+    
+    /**
+     * Default negative cache time (60s).
+     */
+    protected static final int DEFAULT_NEGATIVE_CACHE_TIME = 60;
+    
+    /**
+     * Default slack for touch only saves (0, disabled).
+     */
+    protected static final int DEFAULT_TOUCH_ONLY_SLACK = 0;
+    
+    /**
+     * Default requests between sticky checkpoints (1, every request).
+     */
+    protected static final int DEFAULT_STICKY_CHECKPOINT_REQUESTS = 1;
+    
+    /**
+     * Default maximum time of a deferred sticky save (30 seconds).
+     */
+    protected static final int DEFAULT_STICKY_CHECKPOINT_TIME = 30;
+    
+    /**
+     * Default sticky pipelining (false).
+     */
+    protected static final boolean DEFAULT_STICKY_PIPELINING = false;
+    
+    /**
+     * Default lock mode (LOCK).
+     */
+    protected static final LockMode DEFAULT_LOCK_MODE = LockMode.LOCK;
+    
+    /**
+     * Default retries of a CAS that returned EXISTS (3).
+     */
+    protected static final int DEFAULT_OPTIMISTIC_RETRIES = 3;
+    
+    /**
+     * Default conflicts to fall back to lock mode (3).
+     */
+    protected static final int DEFAULT_OPTIMISTIC_FALLBACK = 3;
+    
+    /**
+     * Default merge policy (LocalWinsMergePolicy).
+     */
+    protected static final String DEFAULT_MERGE_POLICY = LocalWinsMergePolicy.class.getName();
+    
+    /**
+     * Default lease of the locks (0, disabled).
+     */
+    protected static final int DEFAULT_LOCK_LEASE = 0;
+    
+    /**
+     * Default node identifier (null, the instance or host name).
+     */
+    protected static final String DEFAULT_NODE_ID = null;
+    
+    /**
+     * Default size of the buffer pool in MB (0, disabled).
+     */
+    protected static final int DEFAULT_BUFFER_POOL_SIZE = 0;
+    
+    /**
+     * Default compression threshold (0, disabled).
+     */
+    protected static final int DEFAULT_COMPRESSION_THRESHOLD = 0;
+    
+    /**
+     * Default session format (0, the old one).
+     */
+    protected static final int DEFAULT_SESSION_FORMAT = SessionOutputStream.V0;
+    
     //
     // REAL PROPERTIES
     //
@@ -340,4 +675,114 @@ public abstract class CouchbaseManagerStrategyBuilder extends BasePersistenceStr
      * The property to handle the extra time giving for expiration of sessions.
      */
     protected int extraInactiveInterval = DEFAULT_EXTRA_INACTIVE_INTERVAL;
-}
\ No newline at end of file
+    
+    /**
+     * property for the number of threads of the completion pool.
+     */
+    protected int completionPoolSize = DEFAULT_COMPLETION_POOL_SIZE;
+    
+    /**
+     * property for the queue size of the completion pool.
+     */
+    protected int completionQueueSize = DEFAULT_COMPLETION_QUEUE_SIZE;
+    
+    /**
+     * property for the completion mode of async operations.
+     */
+    protected CompletionMode completionMode = DEFAULT_COMPLETION_MODE;
+    
+    /**
+     * property for the prefetch of external attributes.
+     */
+    protected boolean attrPrefetch = DEFAULT_ATTR_PREFETCH;
+    
+    /**
+     * property for the minimum usage to prefetch an external attribute.
+     */
+    protected int attrPrefetchUsage = DEFAULT_ATTR_PREFETCH_USAGE;
+    
+    /**
+     * property for the negative cache type.
+     */
+    protected NegativeCacheType negativeCacheType = DEFAULT_NEGATIVE_CACHE_TYPE;
+    
+    /**
+     * property for the negative cache size.
+     */
+    protected int negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+    
+    /**
+     * property for the negative cache time.
+     */
+    protected int negativeCacheTime = DEFAULT_NEGATIVE_CACHE_TIME;
+    
+    /**
+     * property for the immutable classes of attributes.
+     */
+    protected Set<String> attrImmutableClasses = new HashSet<String>();
+    
+    /**
+     * property for the slack of the touch only saves.
+     */
+    protected int touchOnlySlack = DEFAULT_TOUCH_ONLY_SLACK;
+    
+    /**
+     * property for the requests between sticky checkpoints.
+     */
+    protected int stickyCheckpointRequests = DEFAULT_STICKY_CHECKPOINT_REQUESTS;
+    
+    /**
+     * property for the maximum time of a deferred sticky save.
+     */
+    protected int stickyCheckpointTime = DEFAULT_STICKY_CHECKPOINT_TIME;
+    
+    /**
+     * property for the sticky pipelining.
+     */
+    protected boolean stickyPipelining = DEFAULT_STICKY_PIPELINING;
+    
+    /**
+     * property for the lock mode.
+     */
+    protected LockMode lockMode = DEFAULT_LOCK_MODE;
+    
+    /**
+     * property for the retries in optimistic mode.
+     */
+    protected int optimisticRetries = DEFAULT_OPTIMISTIC_RETRIES;
+    
+    /**
+     * property for the conflicts to fall back to lock mode.
+     */
+    protected int optimisticFallback = DEFAULT_OPTIMISTIC_FALLBACK;
+    
+    /**
+     * property for the merge policy.
+     */
+    protected MergePolicy mergePolicy = new LocalWinsMergePolicy();
+    
+    /**
+     * property for the lease of the locks.
+     */
+    protected int lockLease = DEFAULT_LOCK_LEASE;
+    
+    /**
+     * property for the node identifier.
+     */
+    protected String nodeId = DEFAULT_NODE_ID;
+    
+    /**
+     * property for the size of the buffer pool.
+     */
+    protected int bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+    
+    /**
+     * property for the compression threshold.
+     */
+    protected int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    
+    /**
+     * property for the session format.
+     */
+    protected int sessionFormat = DEFAULT_SESSION_FORMAT;
+}
@@ -40,8 +40,13 @@ import com.sun.enterprise.deployment.runtime.web.ManagerProperties;
 import com.sun.enterprise.deployment.runtime.web.SessionManager;
 import com.sun.enterprise.deployment.runtime.web.WebProperty;
 import com.sun.enterprise.web.ServerConfigLookup;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionMode;
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.GlassfishTranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
 import es.rickyepoderi.couchbasemanager.session.CouchbaseManager;
+import es.rickyepoderi.couchbasemanager.session.LockMode;
+import es.rickyepoderi.couchbasemanager.session.MergePolicy;
+import es.rickyepoderi.couchbasemanager.session.NegativeCacheType;
 import es.rickyepoderi.couchbasemanager.session.UsageConfiguration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -118,6 +123,28 @@ public class CouchbaseManagerStrategyBuilderV3 extends CouchbaseManagerStrategyB
         manager.setAttrTouchExtraTime(attrTouchExtraTime);
         manager.setAttrUsageCondition(attrUsageCondition);
         manager.setExtraInactiveInterval(extraInactiveInterval);
+        manager.setCompletionPoolSize(completionPoolSize);
+        manager.setCompletionQueueSize(completionQueueSize);
+        manager.setCompletionMode(completionMode);
+        manager.setAttrPrefetch(attrPrefetch);
+        manager.setAttrPrefetchUsage(attrPrefetchUsage);
+        manager.setNegativeCacheType(negativeCacheType);
+        manager.setNegativeCacheSize(negativeCacheSize);
+        manager.setNegativeCacheTime(negativeCacheTime);
+        manager.setAttrImmutableClasses(attrImmutableClasses);
+        manager.setTouchOnlySlack(touchOnlySlack);
+        manager.setStickyCheckpointRequests(stickyCheckpointRequests);
+        manager.setStickyCheckpointTime(stickyCheckpointTime);
+        manager.setStickyPipelining(stickyPipelining);
+        manager.setLockMode(lockMode);
+        manager.setOptimisticRetries(optimisticRetries);
+        manager.setOptimisticFallback(optimisticFallback);
+        manager.setMergePolicy(mergePolicy);
+        manager.setLockLease(lockLease);
+        manager.setNodeId(nodeId);
+        manager.setBufferPoolSize(bufferPoolSize);
+        manager.setCompressionThreshold(compressionThreshold);
+        manager.setSessionFormat(sessionFormat);
         log.log(Level.FINE, "MemManagerStrategyBuilder.initializePersistenceStrategy: ioUtils={0}", ioUtils);
         GlassfishTranscoderUtil transcoder = new GlassfishTranscoderUtil();
         transcoder.setIoUtils(ioUtils);
@@ -248,6 +275,189 @@ public class CouchbaseManagerStrategyBuilderV3 extends CouchbaseManagerStrategyB
                         } catch (NumberFormatException e) {
                             log.log(Level.WARNING, "Invalid int format for extraInactiveInterval {0}", value);
                         }
+                    } else if (name.equalsIgnoreCase(PROP_COMPLETION_POOL_SIZE)) {
+                        log.log(Level.FINE, "completionPoolSize: {0}", value);
+                        try {
+                            completionPoolSize = Integer.parseInt(value);
+                            if (completionPoolSize < 1) {
+                                log.log(Level.WARNING, "Invalid int format for completionPoolSize {0}", value);
+                                completionPoolSize = DEFAULT_COMPLETION_POOL_SIZE;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for completionPoolSize {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_COMPLETION_QUEUE_SIZE)) {
+                        log.log(Level.FINE, "completionQueueSize: {0}", value);
+                        try {
+                            completionQueueSize = Integer.parseInt(value);
+                            if (completionQueueSize < 1) {
+                                log.log(Level.WARNING, "Invalid int format for completionQueueSize {0}", value);
+                                completionQueueSize = DEFAULT_COMPLETION_QUEUE_SIZE;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for completionQueueSize {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_COMPLETION_MODE)) {
+                        log.log(Level.FINE, "completionMode: {0}", value);
+                        try {
+                            completionMode = CompletionMode.valueOf(value);
+                        } catch (Exception e) {
+                            log.log(Level.WARNING, "Invalid CompletionMode enum {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_ATTR_PREFETCH)) {
+                        log.log(Level.FINE, "attrPrefetch: {0}", value);
+                        attrPrefetch = Boolean.parseBoolean(value);
+                    } else if (name.equalsIgnoreCase(PROP_ATTR_PREFETCH_USAGE)) {
+                        log.log(Level.FINE, "attrPrefetchUsage: {0}", value);
+                        try {
+                            attrPrefetchUsage = Integer.parseInt(value);
+                            if (attrPrefetchUsage < 0 || attrPrefetchUsage > 100) {
+                                log.log(Level.WARNING, "Invalid int format for attrPrefetchUsage {0}", value);
+                                attrPrefetchUsage = DEFAULT_ATTR_PREFETCH_USAGE;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for attrPrefetchUsage {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_NEGATIVE_CACHE_TYPE)) {
+                        log.log(Level.FINE, "negativeCacheType: {0}", value);
+                        try {
+                            negativeCacheType = NegativeCacheType.valueOf(value);
+                        } catch (Exception e) {
+                            log.log(Level.WARNING, "Invalid NegativeCacheType enum {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_NEGATIVE_CACHE_SIZE)) {
+                        log.log(Level.FINE, "negativeCacheSize: {0}", value);
+                        try {
+                            negativeCacheSize = Integer.parseInt(value);
+                            if (negativeCacheSize < 1) {
+                                log.log(Level.WARNING, "Invalid int format for negativeCacheSize {0}", value);
+                                negativeCacheSize = DEFAULT_NEGATIVE_CACHE_SIZE;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for negativeCacheSize {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_NEGATIVE_CACHE_TIME)) {
+                        log.log(Level.FINE, "negativeCacheTime: {0}", value);
+                        try {
+                            negativeCacheTime = Integer.parseInt(value);
+                            if (negativeCacheTime < 1) {
+                                log.log(Level.WARNING, "Invalid int format for negativeCacheTime {0}", value);
+                                negativeCacheTime = DEFAULT_NEGATIVE_CACHE_TIME;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for negativeCacheTime {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_ATTR_IMMUTABLE_CLASSES)) {
+                        log.log(Level.FINE, "attrImmutableClasses: {0}", value);
+                        for (String className : value.split(",")) {
+                            if (!className.trim().isEmpty()) {
+                                attrImmutableClasses.add(className.trim());
+                            }
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_TOUCH_ONLY_SLACK)) {
+                        log.log(Level.FINE, "touchOnlySlack: {0}", value);
+                        try {
+                            touchOnlySlack = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for touchOnlySlack {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_STICKY_CHECKPOINT_REQUESTS)) {
+                        log.log(Level.FINE, "stickyCheckpointRequests: {0}", value);
+                        try {
+                            stickyCheckpointRequests = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for stickyCheckpointRequests {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_STICKY_CHECKPOINT_TIME)) {
+                        log.log(Level.FINE, "stickyCheckpointTime: {0}", value);
+                        try {
+                            stickyCheckpointTime = Integer.parseInt(value);
+                            if (stickyCheckpointTime < 1) {
+                                log.log(Level.WARNING, "Invalid int format for stickyCheckpointTime {0}", value);
+                                stickyCheckpointTime = DEFAULT_STICKY_CHECKPOINT_TIME;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for stickyCheckpointTime {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_STICKY_PIPELINING)) {
+                        log.log(Level.FINE, "stickyPipelining: {0}", value);
+                        stickyPipelining = Boolean.parseBoolean(value);
+                    } else if (name.equalsIgnoreCase(PROP_LOCK_MODE)) {
+                        log.log(Level.FINE, "lockMode: {0}", value);
+                        try {
+                            lockMode = LockMode.valueOf(value);
+                        } catch (Exception e) {
+                            log.log(Level.WARNING, "Invalid LockMode enum {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_OPTIMISTIC_RETRIES)) {
+                        log.log(Level.FINE, "optimisticRetries: {0}", value);
+                        try {
+                            optimisticRetries = Integer.parseInt(value);
+                            if (optimisticRetries < 0) {
+                                log.log(Level.WARNING, "Invalid int format for optimisticRetries {0}", value);
+                                optimisticRetries = DEFAULT_OPTIMISTIC_RETRIES;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for optimisticRetries {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_OPTIMISTIC_FALLBACK)) {
+                        log.log(Level.FINE, "optimisticFallback: {0}", value);
+                        try {
+                            optimisticFallback = Integer.parseInt(value);
+                            if (optimisticFallback < 1) {
+                                log.log(Level.WARNING, "Invalid int format for optimisticFallback {0}", value);
+                                optimisticFallback = DEFAULT_OPTIMISTIC_FALLBACK;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for optimisticFallback {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_MERGE_POLICY)) {
+                        log.log(Level.FINE, "mergePolicy: {0}", value);
+                        try {
+                            mergePolicy = (MergePolicy) Class.forName(value).newInstance();
+                        } catch (Exception e) {
+                            log.log(Level.WARNING, "Invalid MergePolicy class " + value, e);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_LOCK_LEASE)) {
+                        log.log(Level.FINE, "lockLease: {0}", value);
+                        try {
+                            lockLease = Integer.parseInt(value);
+                            if (lockLease > 0 && lockLease < 2) {
+                                log.log(Level.WARNING, "Invalid int format for lockLease {0}", value);
+                                lockLease = 2;
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for lockLease {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_NODE_ID)) {
+                        log.log(Level.FINE, "nodeId: {0}", value);
+                        nodeId = value;
+                    } else if (name.equalsIgnoreCase(PROP_BUFFER_POOL_SIZE)) {
+                        log.log(Level.FINE, "bufferPoolSize: {0}", value);
+                        try {
+                            bufferPoolSize = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for bufferPoolSize {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_COMPRESSION_THRESHOLD)) {
+                        log.log(Level.FINE, "compressionThreshold: {0}", value);
+                        try {
+                            compressionThreshold = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for compressionThreshold {0}", value);
+                        }
+                    } else if (name.equalsIgnoreCase(PROP_SESSION_FORMAT)) {
+                        log.log(Level.FINE, "sessionFormat: {0}", value);
+                        try {
+                            int format = Integer.parseInt(value);
+                            if (format == SessionOutputStream.V0 || format == SessionOutputStream.V1) {
+                                sessionFormat = format;
+                            } else {
+                                log.log(Level.WARNING, "Invalid sessionFormat {0}", value);
+                            }
+                        } catch (NumberFormatException e) {
+                            log.log(Level.WARNING, "Invalid int format for sessionFormat {0}", value);
+                        }
                     }
                 }
                 // assign attr usage if not defined
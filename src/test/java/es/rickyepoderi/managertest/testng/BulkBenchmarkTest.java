@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.couchbase.BulkClientRequest;
+import es.rickyepoderi.couchbasemanager.couchbase.Client;
+import es.rickyepoderi.couchbasemanager.couchbase.ClientResult;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionMode;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Benchmark of the session save (bulk with external attributes and a final
+ * cas launched after them) against the number of external attributes.
+ * It needs a couchbase server running in localhost.
+ * 
+ * @author ricky
+ */
+public class BulkBenchmarkTest {
+    
+    private static final int[] ATTRIBUTES = {0, 1, 5, 10, 20, 50};
+    
+    private static final int ITERATIONS = 200;
+    
+    private static final int ATTR_SIZE = 10*1024;
+    
+    private Client client = null;
+    
+    public BulkBenchmarkTest() throws Exception {
+        URI uri = new URI("http://localhost:8091/pools");
+        List<URI> baseUris = new ArrayList<URI>();
+        baseUris.add(uri);
+        client = new Client(baseUris, "default", null, "");
+        client.setTimeout(30000L);
+    }
+    
+    private double saveLatency(int attrs) {
+        String id = UUID.randomUUID().toString();
+        byte[] data = new byte[ATTR_SIZE];
+        List<String> keys = new ArrayList<String>(attrs);
+        for (int i = 0; i < attrs; i++) {
+            keys.add(UUID.randomUUID().toString());
+        }
+        ClientResult res = client.addSync(id, data, 60);
+        Assert.assertTrue(res.isSuccess());
+        long cas = res.getCas();
+        long total = 0L;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            BulkClientRequest bulk = client.createBulk();
+            for (String key : keys) {
+                client.addOperationSet(bulk, key, data, 60);
+            }
+            client.waitAndFinishCasAsync(bulk, id, data, cas, 60, null);
+            res = client.waitForCompletion(bulk);
+            total += System.nanoTime() - start;
+            Assert.assertTrue(res.isSuccess());
+            cas = res.getCas();
+        }
+        for (String key : keys) {
+            client.deleteSync(key);
+        }
+        client.deleteSync(id);
+        return total / (ITERATIONS * 1000000.0);
+    }
+    
+    @Test(groups = "benchmark")
+    public void test01SaveLatency() {
+        System.out.println("** test01SaveLatency **");
+        for (CompletionMode mode : CompletionMode.values()) {
+            client.setCompletionMode(mode);
+            // warm up
+            saveLatency(1);
+            for (int attrs : ATTRIBUTES) {
+                System.out.println(String.format("%s attrs=%d save=%.3fms", 
+                        mode, attrs, saveLatency(attrs)));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.couchbase.ClientRequest;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionBarrier;
+import es.rickyepoderi.couchbasemanager.couchbase.CompletionExecutor;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author ricky
+ */
+public class CompletionExecutorTest {
+    
+    private Runnable blocker(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+    
+    @Test(groups = "session")
+    public void test01() throws Exception {
+        System.out.println("** test01 **");
+        // one thread busy and the queue full => the task goes to the fallback
+        CompletionExecutor executor = new CompletionExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(blocker(started, release));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.execute(blocker(new CountDownLatch(1), release));
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                thread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        // executed while the pool is still blocked and not by the caller
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(thread.get() == Thread.currentThread());
+        Assert.assertTrue(thread.get().getName().contains("-fallback-"));
+        Assert.assertEquals(executor.getRejected(), 1L);
+        Assert.assertEquals(executor.getSubmitted(), 3L);
+        release.countDown();
+        executor.shutdown();
+        try {
+            executor.execute(blocker(new CountDownLatch(1), release));
+            Assert.fail("The task was accepted after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+    
+    @Test(groups = "session")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        // a barrier without requests is opened right now
+        CompletionBarrier barrier = new CompletionBarrier(new ArrayList<ClientRequest>(), 1000L);
+        final CountDownLatch opened = new CountDownLatch(1);
+        Assert.assertFalse(barrier.isOpened());
+        barrier.start(new Runnable() {
+            @Override
+            public void run() {
+                opened.countDown();
+            }
+        });
+        Assert.assertTrue(barrier.isOpened());
+        Assert.assertTrue(barrier.await(0L));
+        Assert.assertEquals(opened.getCount(), 0L);
+        Assert.assertNull(barrier.getResult());
+        Assert.assertTrue(barrier.getResults().isEmpty());
+    }
+}
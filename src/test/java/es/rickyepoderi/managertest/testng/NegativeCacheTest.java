@@ -0,0 +1,72 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.session.NegativeCache;
+import es.rickyepoderi.couchbasemanager.session.NegativeCacheType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author ricky
+ */
+public class NegativeCacheTest {
+    
+    private void check(NegativeCache cache) throws Exception {
+        Assert.assertFalse(cache.contains("id1"));
+        cache.add("id1");
+        cache.add("id2");
+        Assert.assertTrue(cache.contains("id1"));
+        Assert.assertTrue(cache.contains("id2"));
+        // created in this node
+        cache.remove("id1");
+        Assert.assertFalse(cache.contains("id1"));
+        Assert.assertTrue(cache.contains("id2"));
+        // expiration
+        Thread.sleep(cache.getTime() + 50);
+        Assert.assertFalse(cache.contains("id2"));
+    }
+    
+    @Test(groups = "session")
+    public void test01() throws Exception {
+        System.out.println("** test01 **");
+        NegativeCache cache = NegativeCache.create(NegativeCacheType.LRU, 10, 200L);
+        check(cache);
+        // the eldest is discarded when full
+        for (int i = 0; i < 11; i++) {
+            cache.add("id" + i);
+        }
+        Assert.assertFalse(cache.contains("id0"));
+        Assert.assertTrue(cache.contains("id10"));
+    }
+    
+    @Test(groups = "session")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        NegativeCache cache = NegativeCache.create(NegativeCacheType.BLOOM, 1000, 200L);
+        check(cache);
+        // false positives should be around 1%
+        for (int i = 0; i < 1000; i++) {
+            cache.add("stale" + i);
+        }
+        int positives = 0;
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(cache.contains("stale" + i));
+            if (cache.contains("other" + i)) {
+                positives++;
+            }
+        }
+        Assert.assertTrue(positives < 50, "Too many false positives: " + positives);
+    }
+    
+    @Test(groups = "session")
+    public void test03() throws Exception {
+        System.out.println("** test03 **");
+        Assert.assertNull(NegativeCache.create(NegativeCacheType.NONE, 10, 200L));
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.Digest;
+import es.rickyepoderi.couchbasemanager.io.ReferenceObject;
+import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import es.rickyepoderi.couchbasemanager.session.CouchbaseManager;
+import es.rickyepoderi.couchbasemanager.session.CouchbaseWrapperSession;
+import es.rickyepoderi.couchbasemanager.session.LocalWinsMergePolicy;
+import es.rickyepoderi.couchbasemanager.session.ManagerStats;
+import es.rickyepoderi.couchbasemanager.session.SessionChanges;
+import es.rickyepoderi.couchbasemanager.session.StoredWinsMergePolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author ricky
+ */
+public class SessionMergeTest {
+    
+    private boolean stamp = false;
+    
+    /**
+     * Session that can be filled and saved without couchbase (locked).
+     */
+    public static class LoadedSession extends CouchbaseWrapperSession {
+        
+        public LoadedSession(CouchbaseManager manager, byte[] data) {
+            super(manager);
+            processFill(data, SessionMemStatus.FOREGROUND_LOCK, 1L);
+        }
+        
+        public void setThisAccessedTime(long time) {
+            this.thisAccessedTime = time;
+        }
+    }
+    
+    public static CouchbaseManager manager() {
+        CouchbaseManager manager = new CouchbaseManager("http://localhost:8091/pools");
+        manager.setTranscoder(new TranscoderUtil());
+        manager.setNodeId("node");
+        return manager;
+    }
+    
+    public static byte[] session(TranscoderUtil trans, Object... values) throws Exception {
+        // old format without username
+        SessionOutputStream sos = new SessionOutputStream();
+        sos.writeString("id");
+        sos.writeString(null);
+        sos.writeString(null);
+        sos.writeLong(1000L);
+        sos.writeInt(1800);
+        sos.writeBoolean(false);
+        sos.writeBoolean(true);
+        sos.writeLong(0L);
+        sos.writeString(null);
+        sos.writeLong(1500L);
+        sos.writeLong(1500L);
+        sos.writeString(null);
+        for (int i = 0; i < values.length; i += 2) {
+            sos.writeString((String) values[i]);
+            sos.writeObjectAsObject(trans, values[i + 1]);
+        }
+        return sos.toByteArray();
+    }
+    
+    private void writeHeader(SessionOutputStream sos, long accessed) throws Exception {
+        if (sos.getVersion() == SessionOutputStream.V1) {
+            // valid, username and owner
+            sos.writeByte(64 | 8 | 16);
+            sos.writeString("id");
+            sos.writeVarLong(1000L);
+            sos.writeVarInt(1800);
+            sos.writeVarLong(1L);
+            sos.writeString("user");
+            sos.writeVarLong(accessed - 1000L);
+            sos.writeVarLong(accessed - 1000L);
+            sos.writeString("node" + accessed);
+            sos.writeVarLong(accessed);
+            return;
+        }
+        sos.writeString("id");
+        sos.writeString(null);
+        sos.writeString(null);
+        sos.writeLong(1000L);
+        sos.writeInt(1800);
+        sos.writeBoolean(false);
+        sos.writeBoolean(true);
+        sos.writeLong(1L);
+        sos.writeString(null);
+        sos.writeLong(accessed);
+        sos.writeLong(accessed);
+        if (stamp) {
+            sos.writeInt(CouchbaseWrapperSession.OWNER_MARK);
+            sos.writeString("node" + accessed);
+            sos.writeLong(accessed);
+        }
+        sos.writeString("user");
+    }
+    
+    private Map<String,String> read(byte[] data) throws Exception {
+        SessionInputStream sis = new SessionInputStream(data);
+        if (sis.getVersion() == SessionOutputStream.V1) {
+            sis.read();
+            Assert.assertEquals(sis.readString(), "id");
+            Assert.assertEquals(sis.readVarLong(), 1000L);
+            sis.readVarInt();
+            sis.readVarLong();
+            Assert.assertEquals(sis.readString(), "user");
+            Assert.assertEquals(sis.readVarLong(), 1000L);
+            sis.readVarLong();
+            Assert.assertEquals(sis.readString(), "node2000");
+            Assert.assertEquals(sis.readVarLong(), 2000L);
+            return readAttributes(sis);
+        }
+        Assert.assertEquals(sis.readString(), "id");
+        sis.readString();
+        sis.readString();
+        sis.readLong();
+        sis.readInt();
+        sis.readBoolean();
+        sis.readBoolean();
+        sis.readLong();
+        sis.readString();
+        Assert.assertEquals(sis.readLong(), 2000L);
+        sis.readLong();
+        if (stamp) {
+            Assert.assertEquals(sis.readInt(), CouchbaseWrapperSession.OWNER_MARK);
+            Assert.assertEquals(sis.readString(), "node2000");
+            Assert.assertEquals(sis.readLong(), 2000L);
+        }
+        sis.readString();
+        return readAttributes(sis);
+    }
+    
+    private Map<String,String> readAttributes(SessionInputStream sis) throws Exception {
+        Map<String,String> attrs = new HashMap<String,String>();
+        while (sis.available() > 0) {
+            String name = sis.readString();
+            Map.Entry<Boolean,byte[]> value = sis.readObjectAsArray();
+            if (value.getKey()) {
+                attrs.put(name, ((ReferenceObject) new TranscoderUtil().deserialize(value.getValue())).getReference());
+            } else {
+                attrs.put(name, new String(value.getValue(), "UTF-8"));
+            }
+        }
+        return attrs;
+    }
+    
+    private byte[] stored() throws Exception {
+        // other server: a and d modified, e added
+        SessionOutputStream sos = new SessionOutputStream();
+        writeHeader(sos, 1500L);
+        String[] values = new String[] {"a", "a2", "b", "b1", "c", "c1", "d", "d2", "e", "e2"};
+        for (int i = 0; i < values.length; i += 2) {
+            sos.writeString(values[i]);
+            sos.writeObjectAsArray(values[i + 1].getBytes("UTF-8"), false);
+        }
+        return sos.toByteArray();
+    }
+    
+    private SessionChanges changes(SessionOutputStream sos) throws Exception {
+        // loaded a, b, c, d (v1), a modified, c removed, f added
+        Map<String,Long> loaded = new HashMap<String,Long>();
+        for (String name : new String[] {"a", "b", "c", "d"}) {
+            loaded.put(name, Digest.hash((name + "1").getBytes("UTF-8")));
+        }
+        writeHeader(sos, 2000L);
+        int header = sos.size();
+        Map<String,int[]> modified = new HashMap<String,int[]>();
+        String[] values = new String[] {"a", "a3", "b", "b1", "d", "d1", "f", "f3"};
+        for (int i = 0; i < values.length; i += 2) {
+            sos.writeString(values[i]);
+            int start = sos.size();
+            sos.writeObjectAsArray(values[i + 1].getBytes("UTF-8"), false);
+            if (values[i + 1].endsWith("3")) {
+                modified.put(values[i], new int[] {start, sos.size()});
+            }
+        }
+        Set<String> removed = new HashSet<String>();
+        removed.add("c");
+        return new SessionChanges(header, modified, removed, loaded);
+    }
+    
+    @Test(groups = "session")
+    public void test01() throws Exception {
+        System.out.println("** test01 **");
+        stamp = false;
+        SessionOutputStream sos = new SessionOutputStream();
+        SessionChanges changes = changes(sos);
+        ManagerStats stats = new ManagerStats();
+        Map<String,String> attrs = read(changes.merge(sos.toByteArray(), stored(), 
+                new LocalWinsMergePolicy(), stats));
+        Assert.assertEquals(attrs.size(), 5);
+        Assert.assertEquals(attrs.get("a"), "a3");
+        Assert.assertEquals(attrs.get("b"), "b1");
+        Assert.assertFalse(attrs.containsKey("c"));
+        Assert.assertEquals(attrs.get("d"), "d2");
+        Assert.assertEquals(attrs.get("e"), "e2");
+        Assert.assertEquals(attrs.get("f"), "f3");
+        Assert.assertEquals(stats.getMergedSaves(), 1L);
+        Assert.assertEquals(stats.getMergeConflicts(), 1L);
+        Assert.assertEquals(stats.getMergeStoredWins(), 0L);
+    }
+    
+    @Test(groups = "session")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        stamp = false;
+        SessionOutputStream sos = new SessionOutputStream();
+        SessionChanges changes = changes(sos);
+        ManagerStats stats = new ManagerStats();
+        Map<String,String> attrs = read(changes.merge(sos.toByteArray(), stored(), 
+                new StoredWinsMergePolicy(), stats));
+        Assert.assertEquals(attrs.get("a"), "a2");
+        Assert.assertFalse(attrs.containsKey("c"));
+        Assert.assertEquals(attrs.get("f"), "f3");
+        Assert.assertEquals(stats.getMergeConflicts(), 1L);
+        Assert.assertEquals(stats.getMergeStoredWins(), 1L);
+    }
+    
+    @Test(groups = "session")
+    public void test03() throws Exception {
+        System.out.println("** test03 **");
+        // sessions with the owner stamp
+        stamp = true;
+        SessionOutputStream sos = new SessionOutputStream();
+        SessionChanges changes = changes(sos);
+        ManagerStats stats = new ManagerStats();
+        Map<String,String> attrs = read(changes.merge(sos.toByteArray(), stored(), 
+                new LocalWinsMergePolicy(), stats));
+        Assert.assertEquals(attrs.size(), 5);
+        Assert.assertEquals(attrs.get("a"), "a3");
+        Assert.assertEquals(attrs.get("d"), "d2");
+        Assert.assertEquals(attrs.get("e"), "e2");
+    }
+    
+    @Test(groups = "session")
+    public void test04() throws Exception {
+        System.out.println("** test04 **");
+        // compact local session merged over an old stored one
+        stamp = true;
+        SessionOutputStream sos = new SessionOutputStream(SessionOutputStream.V1);
+        SessionChanges changes = changes(sos);
+        ManagerStats stats = new ManagerStats();
+        byte[] merged = changes.merge(sos.toByteArray(), stored(), 
+                new LocalWinsMergePolicy(), stats);
+        Assert.assertEquals(SessionInputStream.detectVersion(merged), SessionOutputStream.V1);
+        Map<String,String> attrs = read(merged);
+        Assert.assertEquals(attrs.size(), 5);
+        Assert.assertEquals(attrs.get("a"), "a3");
+        Assert.assertEquals(attrs.get("b"), "b1");
+        Assert.assertEquals(attrs.get("d"), "d2");
+        Assert.assertEquals(attrs.get("e"), "e2");
+        Assert.assertEquals(attrs.get("f"), "f3");
+        Assert.assertEquals(stats.getMergeConflicts(), 1L);
+    }
+    
+    private byte[] ref(String reference) throws Exception {
+        return new TranscoderUtil().serialize(new ReferenceObject(reference));
+    }
+    
+    private SessionChanges externalChanges(SessionOutputStream sos) throws Exception {
+        // x and y external (loaded x1, y1), x modified with a new reference, y removed
+        Map<String,Long> loaded = new HashMap<String,Long>();
+        loaded.put("x", Digest.hash(ref("ref-x1")));
+        loaded.put("y", Digest.hash(ref("ref-y1")));
+        writeHeader(sos, 2000L);
+        int header = sos.size();
+        Map<String,int[]> modified = new HashMap<String,int[]>();
+        sos.writeString("x");
+        int start = sos.size();
+        sos.writeObjectAsArray(ref("ref-x3"), true);
+        modified.put("x", new int[] {start, sos.size()});
+        Set<String> removed = new HashSet<String>();
+        removed.add("y");
+        Map<String,String> replaced = new HashMap<String,String>();
+        replaced.put("x", "ref-x1");
+        replaced.put("y", "ref-y1");
+        Map<String,String> created = new HashMap<String,String>();
+        created.put("x", "ref-x3");
+        return new SessionChanges(header, modified, removed, loaded, replaced, created);
+    }
+    
+    private byte[] externalStored() throws Exception {
+        // other server: x modified under its own new reference, y untouched
+        SessionOutputStream sos = new SessionOutputStream();
+        writeHeader(sos, 1500L);
+        sos.writeString("x");
+        sos.writeObjectAsArray(ref("ref-x2"), true);
+        sos.writeString("y");
+        sos.writeObjectAsArray(ref("ref-y1"), true);
+        return sos.toByteArray();
+    }
+    
+    @Test(groups = "session")
+    public void test05() throws Exception {
+        System.out.println("** test05 **");
+        // external attribute merged with stored wins => the stored reference survives
+        stamp = false;
+        SessionOutputStream sos = new SessionOutputStream();
+        SessionChanges changes = externalChanges(sos);
+        ManagerStats stats = new ManagerStats();
+        Map<String,String> attrs = read(changes.merge(sos.toByteArray(), externalStored(), 
+                new StoredWinsMergePolicy(), stats));
+        Assert.assertEquals(attrs.size(), 1);
+        Assert.assertEquals(attrs.get("x"), "ref-x2");
+        Assert.assertEquals(stats.getMergeStoredWins(), 1L);
+        // saved => our new reference and the removed one are obsolete, not the stored x
+        Set<String> refs = changes.getObsoleteReferences(true, new TranscoderUtil());
+        Assert.assertEquals(refs.size(), 2);
+        Assert.assertTrue(refs.contains("ref-x3"));
+        Assert.assertTrue(refs.contains("ref-y1"));
+        // not saved => only the new reference is obsolete
+        refs = changes.getObsoleteReferences(false, new TranscoderUtil());
+        Assert.assertEquals(refs.size(), 1);
+        Assert.assertTrue(refs.contains("ref-x3"));
+        // local wins => the new reference survives, the old one and the stored one are obsolete
+        sos = new SessionOutputStream();
+        changes = externalChanges(sos);
+        attrs = read(changes.merge(sos.toByteArray(), externalStored(), 
+                new LocalWinsMergePolicy(), stats));
+        Assert.assertEquals(attrs.get("x"), "ref-x3");
+        refs = changes.getObsoleteReferences(true, new TranscoderUtil());
+        Assert.assertEquals(refs.size(), 3);
+        Assert.assertTrue(refs.contains("ref-x1"));
+        Assert.assertTrue(refs.contains("ref-x2"));
+        Assert.assertTrue(refs.contains("ref-y1"));
+        // not saved => the stored one is still in use
+        refs = changes.getObsoleteReferences(false, new TranscoderUtil());
+        Assert.assertEquals(refs.size(), 1);
+        Assert.assertTrue(refs.contains("ref-x3"));
+    }
+    
+    @Test(groups = "session")
+    public void test06() throws Exception {
+        System.out.println("** test06 **");
+        // a mutable attribute only read is not a change => the write of the other server survives
+        CouchbaseManager manager = manager();
+        TranscoderUtil trans = manager.getTranscoder();
+        ArrayList<String> list = new ArrayList<String>(Arrays.asList("m1"));
+        LoadedSession local = new LoadedSession(manager, session(trans, "m", list, "s", "s1"));
+        Assert.assertEquals(local.getAttribute("m"), list);
+        local.setAttribute("s", "s3");
+        byte[] saved = local.processSave(null, null);
+        ArrayList<String> other = new ArrayList<String>(Arrays.asList("m2"));
+        byte[] stored = session(trans, "m", other, "s", "s1");
+        ManagerStats stats = new ManagerStats();
+        byte[] merged = local.getChanges().merge(saved, stored, new LocalWinsMergePolicy(), stats);
+        LoadedSession result = new LoadedSession(manager, merged);
+        Assert.assertEquals(result.getAttribute("m"), other);
+        Assert.assertEquals(result.getAttribute("s"), "s3");
+        Assert.assertEquals(stats.getMergeConflicts(), 0L);
+    }
+}
@@ -7,6 +7,7 @@
 package es.rickyepoderi.managertest.testng;
 
 import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.BufferPool;
 import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
 import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
 import java.io.IOException;
@@ -55,4 +56,116 @@ public class SessionOuputStreamTest {
             }
         }
     }
+    
+    @Test(groups = "io")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        SessionOutputStream sos = null;
+        SessionInputStream sis = null;
+        try {
+            sos = new SessionOutputStream(SessionOutputStream.V1);
+            Assert.assertEquals(sos.writeVarInt(0), 1);
+            Assert.assertEquals(sos.writeVarInt(-1), 1);
+            Assert.assertEquals(sos.writeVarLong(600000L), 3);
+            sos.writeVarLong(Long.MIN_VALUE);
+            sos.writeVarInt(Integer.MAX_VALUE);
+            Assert.assertEquals(sos.writeString("test02"), 7);
+            sos.writeString(null);
+            sos.writeObjectAsObject(new TranscoderUtil(), "sample1");
+            sos.writeObjectAsObject(new TranscoderUtil(), "sample2");
+            byte[] data = sos.getLastData();
+            Assert.assertEquals(sos.undoData(), data);
+            sos.writeObjectAsObject(new TranscoderUtil(), "sample3");
+            byte[] ouput = sos.toByteArray();
+            Assert.assertEquals(SessionInputStream.detectVersion(ouput), SessionOutputStream.V1);
+            sis = new SessionInputStream(ouput);
+            Assert.assertEquals(sis.getVersion(), SessionOutputStream.V1);
+            Assert.assertEquals(sis.readVarInt(), 0);
+            Assert.assertEquals(sis.readVarInt(), -1);
+            Assert.assertEquals(sis.readVarLong(), 600000L);
+            Assert.assertEquals(sis.readVarLong(), Long.MIN_VALUE);
+            Assert.assertEquals(sis.readVarInt(), Integer.MAX_VALUE);
+            Assert.assertEquals(sis.readString(), "test02");
+            Assert.assertNull(sis.readString());
+            Assert.assertEquals(sis.readObjectAsObject(new TranscoderUtil()), "sample1");
+            Assert.assertEquals(sis.readObjectAsObject(new TranscoderUtil()), "sample3");
+            Assert.assertEquals(sis.available(), 0);
+        } finally {
+            if (sos != null) {
+                try {sos.close();} catch(IOException e) {}
+            }
+            if (sis != null) {
+                try {sis.close();} catch(IOException e) {}
+            }
+        }
+    }
+    
+    @Test(groups = "io")
+    public void test03() throws Exception {
+        System.out.println("** test03 **");
+        // objects read as slices of the array without copying
+        SessionOutputStream sos = null;
+        SessionInputStream sis = null;
+        try {
+            TranscoderUtil trans = new TranscoderUtil();
+            sos = new SessionOutputStream(SessionOutputStream.V1);
+            sos.writeObjectAsObject(trans, "sample1");
+            byte[] ref = trans.serialize("sample2");
+            sos.writeObjectAsArray(ref, true);
+            byte[] ouput = sos.toByteArray();
+            sis = new SessionInputStream(ouput);
+            int length = sis.readObjectLength();
+            int offset = sis.getPosition();
+            sis.skipObject(length);
+            Assert.assertTrue(length > 0);
+            Assert.assertEquals(trans.deserialize(ouput, offset, length), "sample1");
+            length = sis.readObjectLength();
+            offset = sis.getPosition();
+            sis.skipObject(length);
+            Assert.assertEquals(length, -ref.length);
+            Assert.assertEquals(trans.deserialize(ouput, offset, -length), "sample2");
+            Assert.assertEquals(sis.available(), 0);
+        } finally {
+            if (sos != null) {
+                try {sos.close();} catch(IOException e) {}
+            }
+            if (sis != null) {
+                try {sis.close();} catch(IOException e) {}
+            }
+        }
+    }
+    
+    @Test(groups = "io")
+    public void test04() throws Exception {
+        System.out.println("** test04 **");
+        // stream using a pool of arrays (growing from 1KB)
+        BufferPool pool = new BufferPool(8 * 1024);
+        byte[] value = new byte[700];
+        for (int i = 0; i < 2; i++) {
+            SessionOutputStream sos = new SessionOutputStream(SessionOutputStream.V1, pool, 100);
+            for (int j = 0; j < 4; j++) {
+                value[0] = (byte) j;
+                sos.writeObjectAsArray(value, false);
+            }
+            byte[] ouput = sos.toByteArray();
+            sos.close();
+            Assert.assertEquals(sos.size(), 0);
+            SessionInputStream sis = new SessionInputStream(ouput);
+            for (int j = 0; j < 4; j++) {
+                byte[] read = sis.readObjectAsArray().getValue();
+                Assert.assertEquals(read.length, value.length);
+                Assert.assertEquals(read[0], (byte) j);
+            }
+            Assert.assertEquals(sis.available(), 0);
+        }
+        // first stream: 1KB, 2KB and 4KB are misses, second all hits
+        Assert.assertEquals(pool.getMisses(), 3L);
+        Assert.assertEquals(pool.getHits(), 3L);
+        Assert.assertEquals(pool.getPooled(), 7L * 1024);
+        // the cap discards the arrays that do not fit
+        pool.release(new byte[2048]);
+        Assert.assertEquals(pool.getPooled(), 7L * 1024);
+        pool.release(new byte[1024]);
+        Assert.assertEquals(pool.getPooled(), 8L * 1024);
+    }
 }
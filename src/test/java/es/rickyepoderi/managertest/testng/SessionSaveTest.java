@@ -0,0 +1,187 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.couchbase.ClientResult;
+import es.rickyepoderi.couchbasemanager.couchbase.ExecOnCompletion;
+import es.rickyepoderi.couchbasemanager.couchbase.OperationType;
+import es.rickyepoderi.couchbasemanager.couchbase.ResultStatus;
+import es.rickyepoderi.couchbasemanager.couchbase.transcoders.TranscoderUtil;
+import es.rickyepoderi.couchbasemanager.io.SessionInputStream;
+import es.rickyepoderi.couchbasemanager.io.SessionOutputStream;
+import es.rickyepoderi.couchbasemanager.session.CouchbaseManager;
+import es.rickyepoderi.couchbasemanager.session.CouchbaseWrapperSession;
+import es.rickyepoderi.couchbasemanager.session.LockMode;
+import es.rickyepoderi.couchbasemanager.session.SessionHeader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author ricky
+ */
+public class SessionSaveTest {
+
+    /**
+     * Manager that only remembers the saves (no couchbase).
+     */
+    public static class SavingManager extends CouchbaseManager {
+
+        private List<ExecOnCompletion> saves = new ArrayList<ExecOnCompletion>();
+
+        public SavingManager() {
+            super("http://localhost:8091/pools");
+            setTranscoder(new TranscoderUtil());
+            setNodeId("node");
+        }
+
+        @Override
+        public void doSessionSave(CouchbaseWrapperSession session, ExecOnCompletion exec) {
+            saves.add(exec);
+        }
+
+        public List<ExecOnCompletion> getSaves() {
+            return saves;
+        }
+    }
+
+    /**
+     * Session whose requests are simulated.
+     */
+    public static class RequestSession extends CouchbaseWrapperSession {
+
+        public RequestSession(CouchbaseManager manager) {
+            super(manager);
+        }
+
+        public void request() {
+            setMemStatus(SessionMemStatus.FOREGROUND_LOCK);
+        }
+
+        public void save() {
+            doSave();
+        }
+    }
+
+    public static ClientResult result(OperationType type, ResultStatus code) throws Exception {
+        Constructor<ClientResult> constructor = ClientResult.class.getDeclaredConstructor(OperationType.class);
+        constructor.setAccessible(true);
+        ClientResult res = constructor.newInstance(type);
+        Field field = ClientResult.class.getDeclaredField("code");
+        field.setAccessible(true);
+        field.set(res, code);
+        return res;
+    }
+
+    private boolean isTouchOnly(CouchbaseManager manager, long accessed, boolean modified) throws Exception {
+        byte[] old = SessionMergeTest.session(manager.getTranscoder(), "a", "a1");
+        SessionMergeTest.LoadedSession session = new SessionMergeTest.LoadedSession(manager, old);
+        session.setThisAccessedTime(accessed);
+        if (modified) {
+            session.setAttribute("a", "a2");
+        }
+        session.processSave(null, null);
+        return session.isTouchOnly();
+    }
+
+    @Test(groups = "session")
+    public void test01() throws Exception {
+        System.out.println("** test01 **");
+        // sticky pipelining: the saves of the requests are collapsed behind the one in flight
+        SavingManager manager = new SavingManager();
+        manager.setSticky(true);
+        manager.setStickyPipelining(true);
+        RequestSession session = new RequestSession(manager);
+        session.request();
+        session.save();
+        Assert.assertEquals(manager.getSaves().size(), 1);
+        Assert.assertTrue(session.isSaveInFlight());
+        // two requests while the save is in flight => only one save later
+        session.request();
+        session.save();
+        session.request();
+        session.save();
+        Assert.assertEquals(manager.getSaves().size(), 1);
+        Assert.assertEquals(manager.getStats().getCollapsedSaves(), 2L);
+        manager.getSaves().get(0).execute(result(OperationType.SET, ResultStatus.SUCCESS));
+        Assert.assertEquals(manager.getSaves().size(), 2);
+        Assert.assertTrue(session.isSaveInFlight());
+        manager.getSaves().get(1).execute(result(OperationType.SET, ResultStatus.SUCCESS));
+        Assert.assertEquals(manager.getSaves().size(), 2);
+        Assert.assertFalse(session.isSaveInFlight());
+    }
+
+    @Test(groups = "session")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        // the collapsed save is not launched while a request uses the session,
+        // the save of that request includes it (no extra save)
+        SavingManager manager = new SavingManager();
+        manager.setSticky(true);
+        manager.setStickyPipelining(true);
+        RequestSession session = new RequestSession(manager);
+        session.request();
+        session.save();
+        session.request();
+        session.save();
+        session.request();
+        manager.getSaves().get(0).execute(result(OperationType.SET, ResultStatus.SUCCESS));
+        Assert.assertEquals(manager.getSaves().size(), 1);
+        Assert.assertFalse(session.isSaveInFlight());
+        session.save();
+        Assert.assertEquals(manager.getSaves().size(), 2);
+        manager.getSaves().get(1).execute(result(OperationType.SET, ResultStatus.SUCCESS));
+        Assert.assertEquals(manager.getSaves().size(), 2);
+        Assert.assertFalse(session.isSaveInFlight());
+    }
+    
+    @Test(groups = "session")
+    public void test03() throws Exception {
+        System.out.println("** test03 **");
+        // a session written by the old manager is read and saved in the old format by default
+        CouchbaseManager manager = SessionMergeTest.manager();
+        TranscoderUtil trans = manager.getTranscoder();
+        byte[] old = SessionMergeTest.session(trans, "a", "a1");
+        SessionHeader.read(new SessionInputStream(old), old.length);
+        SessionMergeTest.LoadedSession session = new SessionMergeTest.LoadedSession(manager, old);
+        Assert.assertEquals(session.getAttribute("a"), "a1");
+        byte[] saved = session.processSave(null, null);
+        Assert.assertEquals(SessionInputStream.detectVersion(saved), SessionOutputStream.V0);
+        // no owner stamp (same layout) if not OWNER mode
+        Assert.assertEquals(saved, old);
+        session = new SessionMergeTest.LoadedSession(manager, saved);
+        Assert.assertEquals(session.getAttribute("a"), "a1");
+        // the compact format is only written if configured
+        manager.setSessionFormat(SessionOutputStream.V1);
+        saved = session.processSave(null, null);
+        Assert.assertEquals(SessionInputStream.detectVersion(saved), SessionOutputStream.V1);
+        session = new SessionMergeTest.LoadedSession(manager, saved);
+        Assert.assertEquals(session.getAttribute("a"), "a1");
+    }
+    
+    @Test(groups = "session")
+    public void test04() throws Exception {
+        System.out.println("** test04 **");
+        // touch only saves when only the access times changed (stored time 1500)
+        CouchbaseManager manager = SessionMergeTest.manager();
+        Assert.assertEquals(manager.getTouchOnlySlack(), 0);
+        Assert.assertFalse(isTouchOnly(manager, 2500L, false));
+        manager.setTouchOnlySlack(60);
+        Assert.assertTrue(isTouchOnly(manager, 2500L, false));
+        Assert.assertFalse(isTouchOnly(manager, 2500L, true));
+        // stale access time in couchbase => full write
+        Assert.assertTrue(isTouchOnly(manager, 61500L, false));
+        Assert.assertFalse(isTouchOnly(manager, 61501L, false));
+        // OWNER mode always writes the session (the touch does not return the cas)
+        manager.setLockMode(LockMode.OWNER);
+        Assert.assertFalse(isTouchOnly(manager, 2500L, false));
+    }
+}
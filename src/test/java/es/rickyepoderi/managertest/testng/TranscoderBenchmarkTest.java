@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package es.rickyepoderi.managertest.testng;
+
+import es.rickyepoderi.couchbasemanager.couchbase.transcoders.RawTranscoder;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the pass-through transcoder and benchmark against the default
+ * transcoder of the client (encode plus decode of session blobs of 
+ * several sizes). It does not need a couchbase server.
+ * 
+ * @author ricky
+ */
+public class TranscoderBenchmarkTest {
+    
+    private static final int[] SIZES = {512, 2*1024, 16*1024, 64*1024, 256*1024};
+    
+    private static final int ITERATIONS = 2000;
+    
+    private byte[] session(int size) {
+        // half random half repeated (like a serialized session)
+        byte[] data = new byte[size];
+        Random r = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (i % 2 == 0)? (byte) r.nextInt() : (byte) (i % 16);
+        }
+        return data;
+    }
+    
+    private double run(Transcoder<Object> trans, byte[] data) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            trans.decode(trans.encode(data));
+        }
+        return (System.nanoTime() - start) / (ITERATIONS * 1000.0);
+    }
+    
+    @Test(groups = "io")
+    public void test01() throws Exception {
+        System.out.println("** test01 **");
+        RawTranscoder trans = new RawTranscoder();
+        byte[] data = session(1024);
+        CachedData cd = trans.encode(data);
+        Assert.assertEquals(cd.getFlags(), RawTranscoder.SPECIAL_BYTEARRAY);
+        Assert.assertSame(cd.getData(), data);
+        Assert.assertSame(trans.decode(cd), data);
+        // documents compressed by the default transcoder
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        cd = new CachedData(RawTranscoder.SPECIAL_BYTEARRAY | RawTranscoder.COMPRESSED, 
+                bos.toByteArray(), CachedData.MAX_SIZE);
+        Assert.assertEquals((byte[]) trans.decode(cd), data);
+        // unknown reserved encoding
+        cd = new CachedData(RawTranscoder.SPECIAL_BYTEARRAY | (1 << 23), data, CachedData.MAX_SIZE);
+        try {
+            trans.decode(cd);
+            Assert.fail("Unknown encoding decoded");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        // corrupt deflate data
+        cd = new CachedData(RawTranscoder.SPECIAL_BYTEARRAY | RawTranscoder.DEFLATED, data, CachedData.MAX_SIZE);
+        try {
+            trans.decode(cd);
+            Assert.fail("Corrupt data decoded");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+    }
+    
+    @Test(groups = "io")
+    public void test02() throws Exception {
+        System.out.println("** test02 **");
+        RawTranscoder trans = new RawTranscoder();
+        trans.setCompressionThreshold(1024);
+        // small data is not compressed
+        byte[] data = session(512);
+        Assert.assertEquals(trans.encode(data).getFlags(), RawTranscoder.SPECIAL_BYTEARRAY);
+        // compressible data
+        data = session(16*1024);
+        CachedData cd = trans.encode(data);
+        Assert.assertEquals(cd.getFlags(), RawTranscoder.SPECIAL_BYTEARRAY | RawTranscoder.DEFLATED);
+        Assert.assertTrue(cd.getData().length < data.length * RawTranscoder.MAX_RATIO);
+        Assert.assertEquals((byte[]) trans.decode(cd), data);
+        // already encoded documents are not encoded again
+        Assert.assertSame(trans.encode(cd), cd);
+        // random data is not compressed (poor ratio)
+        byte[] random = new byte[16*1024];
+        new Random(0).nextBytes(random);
+        cd = trans.encode(random);
+        Assert.assertEquals(cd.getFlags(), RawTranscoder.SPECIAL_BYTEARRAY);
+        Assert.assertSame(trans.decode(cd), random);
+        Assert.assertEquals(trans.getCompressions(), 1L);
+        Assert.assertEquals(trans.getCompressionSkips(), 1L);
+        Assert.assertEquals(trans.getDecompressions(), 1L);
+        Assert.assertTrue(trans.getCompressionRatio() < RawTranscoder.MAX_RATIO);
+        System.out.println(trans);
+    }
+    
+    @Test(groups = "benchmark")
+    public void test03Benchmark() throws Exception {
+        System.out.println("** test03Benchmark **");
+        RawTranscoder raw = new RawTranscoder();
+        RawTranscoder deflate = new RawTranscoder();
+        deflate.setCompressionThreshold(1024);
+        SerializingTranscoder def = new SerializingTranscoder();
+        // warm up
+        run(raw, session(1024));
+        run(deflate, session(2048));
+        run(def, session(1024));
+        for (int size : SIZES) {
+            byte[] data = session(size);
+            System.out.println(String.format("size=%d raw=%.3fus deflate=%.3fus default=%.3fus", 
+                    size, run(raw, data), run(deflate, data), run(def, data)));
+        }
+        System.out.println(deflate);
+    }
+}